@@ -42,6 +42,29 @@ public interface MidiDeviceReceiver {
      */
     void send(@NonNull ShortMessage message);
 
+    /**
+     * Send a short message without creating a {@link ShortMessage}.
+     *
+     * @param status the status byte
+     * @param data1 the first data byte
+     * @param data2 the second data byte
+     * @param timestampMicros the time in microseconds, in the time base of
+     *        {@link AudioSynthesizer#getMicrosecondPosition()}, when the
+     *        message should be processed, or -1 to process it immediately
+     */
+    void send(int status, int data1, int data2, long timestampMicros);
+
+    /**
+     * Send several short messages at once.
+     *
+     * @param packed the messages, each packed as
+     *        <code>status | (data1 &lt;&lt; 8) | (data2 &lt;&lt; 16)</code>
+     * @param timestamps the timestamps in microseconds, or -1 to process
+     *        the message immediately
+     * @param count the number of messages to send
+     */
+    void send(@NonNull int[] packed, @NonNull long[] timestamps, int count);
+
     /**
      * Close the {@link MidiDeviceReceiver}
      */
@@ -31,11 +31,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 
 /**
  * This class is a pointer to a binary array either in memory or on disk.
  *
+ * Data on disk can be memory mapped, it is then read straight from the
+ * mapping and paged in by the operating system when it is accessed.
+ * Sample data can be held compressed, it is then decompressed block by
+ * block as it is read.
+ *
  * @author Karl Helgason
  */
 public class ModelByteBuffer {
@@ -43,9 +50,207 @@ public class ModelByteBuffer {
     private ModelByteBuffer root = this;
     private File file;
     private long fileoffset;
-    private byte[] buffer;
+    // buffer, mapped and compressed are volatile as compress replaces
+    // the data while other threads read it
+    private volatile byte[] buffer;
     private long offset;
     private final long len;
+    // Read-only mapping of the file data, in chunks of MAP_CHUNK_SIZE bytes,
+    // shared with independent sub buffers
+    private volatile ByteBuffer[] mapped;
+    private long mapoffset;
+    // Compressed data, shared with independent sub buffers
+    private volatile CompressedData compressed;
+
+    private static final long MAP_CHUNK_SIZE = 1L << 30;
+
+    // The compressed data and where the data of the buffer is in it, set
+    // together so a reader never sees the data with another position
+    private static final class CompressedData {
+
+        private final ModelCompressedBuffer data;
+        // Added to arrayOffset() to get the position in data
+        private final long offset;
+
+        private CompressedData(ModelCompressedBuffer data, long offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+    }
+
+    private class MappedInputStream extends InputStream {
+
+        // Own views of the mapping, the position of a buffer is not
+        // thread safe
+        private final ByteBuffer[] views;
+        private long pos;
+        private final long end;
+        private long mark;
+
+        public MappedInputStream(ByteBuffer[] mapped) {
+            views = new ByteBuffer[mapped.length];
+            for (int i = 0; i < mapped.length; i++)
+                views[i] = mapped[i].duplicate();
+            pos = root.mapoffset + arrayOffset();
+            end = pos + capacity();
+            mark = pos;
+        }
+
+        public int available() throws IOException {
+            long left = end - pos;
+            if (left > Integer.MAX_VALUE)
+                return Integer.MAX_VALUE;
+            return (int)left;
+        }
+
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void reset() throws IOException {
+            pos = mark;
+        }
+
+        public long skip(long n) throws IOException {
+            if (n < 0)
+                return 0;
+            if (n > end - pos)
+                n = end - pos;
+            pos += n;
+            return n;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (pos == end)
+                return -1;
+            if (len > end - pos)
+                len = (int)(end - pos);
+            int read = 0;
+            while (read != len) {
+                // A read can span two chunks
+                ByteBuffer view = views[(int)(pos / MAP_CHUNK_SIZE)];
+                int p = (int)(pos % MAP_CHUNK_SIZE);
+                int n = Math.min(len - read, view.limit() - p);
+                view.position(p);
+                view.get(b, off + read, n);
+                read += n;
+                pos += n;
+            }
+            return len;
+        }
+
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        public int read() throws IOException {
+            if (pos == end)
+                return -1;
+            ByteBuffer view = views[(int)(pos / MAP_CHUNK_SIZE)];
+            int b = view.get((int)(pos % MAP_CHUNK_SIZE)) & 0xFF;
+            pos++;
+            return b;
+        }
+    }
+
+    private class CompressedInputStream extends InputStream {
+
+        private final ModelCompressedBuffer data;
+        private long pos;
+        private final long end;
+        private long mark;
+        // The two blocks decompressed last, so a loop spanning a block
+        // boundary, or reset to its start, does not decompress again
+        private final byte[][] blocks = new byte[2][];
+        private final int[] blockindex = {-1, -1};
+        private int lastblock = 0;
+
+        public CompressedInputStream(CompressedData compressed) {
+            data = compressed.data;
+            pos = compressed.offset + arrayOffset();
+            end = pos + capacity();
+            mark = pos;
+        }
+
+        private byte[] getBlock(int index) {
+            if (blockindex[lastblock] == index)
+                return blocks[lastblock];
+            int other = 1 - lastblock;
+            if (blockindex[other] != index) {
+                if (blocks[other] == null)
+                    blocks[other] = new byte[ModelCompressedBuffer.BLOCK_BYTES];
+                data.decode(index, blocks[other]);
+                blockindex[other] = index;
+            }
+            lastblock = other;
+            return blocks[other];
+        }
+
+        public int available() throws IOException {
+            long left = end - pos;
+            if (left > Integer.MAX_VALUE)
+                return Integer.MAX_VALUE;
+            return (int)left;
+        }
+
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void reset() throws IOException {
+            pos = mark;
+        }
+
+        public long skip(long n) throws IOException {
+            if (n < 0)
+                return 0;
+            if (n > end - pos)
+                n = end - pos;
+            pos += n;
+            return n;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (pos == end)
+                return -1;
+            if (len > end - pos)
+                len = (int)(end - pos);
+            int read = 0;
+            while (read != len) {
+                int index = (int)(pos / ModelCompressedBuffer.BLOCK_BYTES);
+                int p = (int)(pos % ModelCompressedBuffer.BLOCK_BYTES);
+                int n = Math.min(len - read,
+                        ModelCompressedBuffer.BLOCK_BYTES - p);
+                System.arraycopy(getBlock(index), p, b, off + read, n);
+                read += n;
+                pos += n;
+            }
+            return len;
+        }
+
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        public int read() throws IOException {
+            if (pos == end)
+                return -1;
+            byte[] block = getBlock(
+                    (int)(pos / ModelCompressedBuffer.BLOCK_BYTES));
+            int b = block[(int)(pos % ModelCompressedBuffer.BLOCK_BYTES)]
+                    & 0xFF;
+            pos++;
+            return b;
+        }
+    }
 
     private class RandomFileInputStream extends InputStream {
 
@@ -150,16 +355,31 @@ public class ModelByteBuffer {
             endIndex = parent_len;
         if (beginIndex > endIndex)
             beginIndex = endIndex;
+        // offset is from the root, as arrayOffset adds it to the offset of
+        // the root
         offset = beginIndex;
+        if (parent != root)
+            offset += parent.offset;
         len = endIndex - beginIndex;
-        if (independent) {
+        // Data in memory is always read from the root, so compressing the
+        // root replaces the data of all its sub buffers and the array is
+        // dropped
+        if (independent && root.file != null) {
+            long arrayoffset = arrayOffset();
+            CompressedData rootcompressed = root.compressed;
             buffer = root.buffer;
-            if (root.file != null) {
-                file = root.file;
-                fileoffset = root.fileoffset + arrayOffset();
+            file = root.file;
+            fileoffset = root.fileoffset + arrayOffset();
+            if (root.mapped != null) {
+                mapped = root.mapped;
+                mapoffset = root.mapoffset + arrayOffset();
+            }
+            offset = 0;
+            if (rootcompressed != null) {
+                compressed = new CompressedData(rootcompressed.data,
+                        rootcompressed.offset + arrayoffset);
                 offset = 0;
-            } else
-                offset = arrayOffset();
+            }
             root = this;
         }
     }
@@ -188,19 +408,131 @@ public class ModelByteBuffer {
         this.len = len;
     }
 
+    /**
+     * Memory map the data of the file, instead of reading it into memory
+     * with load. Sub buffers, independent or not, are views of the same
+     * mapping.
+     */
+    public void map() throws IOException {
+        if (root != this) {
+            root.map();
+            return;
+        }
+        if (buffer != null || mapped != null)
+            return;
+        if (file == null) {
+            throw new IllegalStateException(
+                    "No file associated with this ByteBuffer!");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer[] chunks
+                    = new ByteBuffer[(int)((len + MAP_CHUNK_SIZE - 1) / MAP_CHUNK_SIZE)];
+            for (int i = 0; i < chunks.length; i++) {
+                long pos = i * MAP_CHUNK_SIZE;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        fileoffset + pos, Math.min(MAP_CHUNK_SIZE, len - pos));
+            }
+            mapped = chunks;
+            mapoffset = 0;
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    public boolean isMapped() {
+        return root.mapped != null;
+    }
+
+    /**
+     * Replace the data, read as 16-bit little-endian samples of channels
+     * interleaved channels, with a lossless compressed copy that is
+     * decompressed as it is read. Returns false, and leaves the data as
+     * it is, if it does not compress. Streams opened before, or while, the
+     * data is replaced keep reading the data they were opened on.
+     * The data of the root is compressed, with the data of all the sub
+     * buffers sharing it.
+     */
+    public synchronized boolean compress(int channels) throws IOException {
+        if (root != this)
+            return root.compress(channels);
+        if (compressed != null)
+            return true;
+        if (len > Integer.MAX_VALUE)
+            return false;
+        byte[] data = buffer;
+        int off = (int) offset;
+        if (data == null && file == null)
+            return false;
+        if (data == null) {
+            DataInputStream is = new DataInputStream(getInputStream());
+            data = new byte[(int) len];
+            off = 0;
+            try {
+                is.readFully(data);
+            } finally {
+                is.close();
+            }
+        }
+        ModelCompressedBuffer c = ModelCompressedBuffer.compress(data, off,
+                (int) len, channels);
+        if (c == null)
+            return false;
+        // The compressed data is published before the data it replaces is
+        // dropped, a reader that sees no data finds the compressed data.
+        // offset is kept for a reader that got buffer before it was dropped.
+        compressed = new CompressedData(c, -offset);
+        buffer = null;
+        mapped = null;
+        return true;
+    }
+
+    public boolean isCompressed() {
+        return root.compressed != null;
+    }
+
+    /**
+     * Bytes of memory the data takes, the size of the compressed data if
+     * it is compressed.
+     */
+    public long getMemorySize() {
+        CompressedData c = root.compressed;
+        if (c != null)
+            return (long) c.data.compressedLength() * len / c.data.length();
+        return len;
+    }
+
     public void writeTo(OutputStream out) throws IOException {
-        if (root.file != null && root.buffer == null) {
+        byte[] b = root.buffer;
+        if (b == null) {
             InputStream is = getInputStream();
             byte[] buff = new byte[1024];
             int ret;
             while ((ret = is.read(buff)) != -1)
                 out.write(buff, 0, ret);
         } else
-            out.write(array(), (int) arrayOffset(), (int) capacity());
+            out.write(b, (int) arrayOffset(), (int) capacity());
     }
 
     public InputStream getInputStream() {
-        if (root.file != null && root.buffer == null) {
+        CompressedData c = root.compressed;
+        if (c != null)
+            return new CompressedInputStream(c);
+        // Read in the reverse order of compress, if both are gone the
+        // data has been compressed
+        ByteBuffer[] m = root.mapped;
+        byte[] b = root.buffer;
+        if (m == null && b == null) {
+            c = root.compressed;
+            if (c != null)
+                return new CompressedInputStream(c);
+        }
+        if (m != null && b == null)
+            return new MappedInputStream(m);
+        if (root.file != null && b == null) {
             try {
                 return new RandomFileInputStream();
             } catch (IOException e) {
@@ -208,7 +540,7 @@ public class ModelByteBuffer {
                 return null;
             }
         }
-        return new ByteArrayInputStream(array(),
+        return new ByteArrayInputStream(b,
                 (int)arrayOffset(), (int)capacity());
     }
 
@@ -260,7 +592,8 @@ public class ModelByteBuffer {
                 mbuff = mbuff.root;
                 if (mbuff.file == null)
                     continue;
-                if (mbuff.buffer != null)
+                if (mbuff.buffer != null || mbuff.mapped != null
+                        || mbuff.compressed != null)
                     continue;
                 if (selfile == null || !selfile.equals(mbuff.file)) {
                     if (raf != null) {
@@ -300,7 +633,7 @@ public class ModelByteBuffer {
             root.load();
             return;
         }
-        if (buffer != null)
+        if (buffer != null || compressed != null)
             return;
         if (file == null) {
             throw new IllegalStateException(
@@ -325,5 +658,7 @@ public class ModelByteBuffer {
                     "No file associated with this ByteBuffer!");
         }
         root.buffer = null;
+        root.mapped = null;
+        root.compressed = null;
     }
 }
@@ -47,6 +47,10 @@ public class ModelByteBufferWavetable implements ModelWavetable {
         int pos2 = 0;
         int markpos = 0;
         int markpos2 = 0;
+        private InputStream in1 = null;
+        private InputStream in2 = null;
+        private byte[] mapped1 = new byte[0];
+        private byte[] mapped2 = new byte[0];
 
         public Buffer8PlusInputStream() {
             framesize_pc = format.getFrameSize() / format.getChannels();
@@ -61,8 +65,24 @@ public class ModelByteBufferWavetable implements ModelWavetable {
                 len = avail;
             byte[] buff1 = buffer.array();
             byte[] buff2 = buffer8.array();
-            pos += buffer.arrayOffset();
-            pos2 += buffer8.arrayOffset();
+            int offset1 = (int)buffer.arrayOffset();
+            int offset2 = (int)buffer8.arrayOffset();
+            if (buff1 == null || buff2 == null) {
+                // Memory mapped, copy the frames out of the mapping first
+                int frames = (len + framesize_pc) / (framesize_pc + 1);
+                if (in1 == null) {
+                    in1 = buffer.getInputStream();
+                    in2 = buffer8.getInputStream();
+                }
+                mapped1 = readMapped(in1, pos, frames * framesize_pc, mapped1);
+                mapped2 = readMapped(in2, pos2, frames, mapped2);
+                buff1 = mapped1;
+                buff2 = mapped2;
+                offset1 = -pos;
+                offset2 = -pos2;
+            }
+            pos += offset1;
+            pos2 += offset2;
             if (bigendian) {
                 for (int i = 0; i < len; i += (framesize_pc + 1)) {
                     System.arraycopy(buff1, pos, b, i, framesize_pc);
@@ -78,11 +98,28 @@ public class ModelByteBufferWavetable implements ModelWavetable {
                     pos2 += 1;
                 }
             }
-            pos -= buffer.arrayOffset();
-            pos2 -= buffer8.arrayOffset();
+            pos -= offset1;
+            pos2 -= offset2;
             return len;
         }
 
+        private byte[] readMapped(InputStream in, int pos, int len,
+                byte[] data) throws IOException {
+            if (data.length < len)
+                data = new byte[len];
+            // Mapped streams are marked at their start
+            in.reset();
+            in.skip(pos);
+            int read = 0;
+            while (read < len) {
+                int n = in.read(data, read, len - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+            return data;
+        }
+
         public long skip(long n) throws IOException {
             int avail = available();
             if (avail <= 0)
@@ -190,6 +227,11 @@ public class ModelByteBufferWavetable implements ModelWavetable {
         return format;
     }
 
+    // True when buffer holds raw samples in format, instead of an audio file
+    boolean isRawData() {
+        return format != null;
+    }
+
     public AudioFloatInputStream openStream() {
         if (buffer == null)
             return null;
@@ -204,7 +246,9 @@ public class ModelByteBufferWavetable implements ModelWavetable {
             }
             return AudioFloatInputStream.getInputStream(ais);
         }
-        if (buffer.array() == null) {
+        // The data can be compressed by another thread, array is read once
+        byte[] array = buffer.array();
+        if (array == null && !buffer.isMapped()) {
             return AudioFloatInputStream.getInputStream(new AudioInputStream(
                     buffer.getInputStream(), format, 
                     buffer.capacity() / format.getFrameSize()));
@@ -227,7 +271,13 @@ public class ModelByteBufferWavetable implements ModelWavetable {
                 return AudioFloatInputStream.getInputStream(ais);
             }
         }
-        return AudioFloatInputStream.getInputStream(format, buffer.array(),
+        if (array == null) {
+            // Read straight from the memory mapping
+            return AudioFloatInputStream.getInputStream(new AudioInputStream(
+                    buffer.getInputStream(), format,
+                    buffer.capacity() / format.getFrameSize()));
+        }
+        return AudioFloatInputStream.getInputStream(format, array,
                 (int)buffer.arrayOffset(), (int)buffer.capacity());
     }
 
@@ -0,0 +1,252 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Lossless compressed 16-bit little-endian sample data.
+ *
+ * The samples are split into blocks of BLOCK_SIZE samples that are
+ * compressed on their own, so any block can be decompressed without the
+ * others. A block holds the residuals of a first or second order
+ * predictor, taken across the samples of the same channel, as Rice codes
+ * with the parameter that gives the shortest block. Blocks that do not
+ * compress are stored as they are.
+ */
+final class ModelCompressedBuffer {
+
+    // Samples in a block, and bytes of a decompressed block
+    static final int BLOCK_SIZE = 1024;
+    static final int BLOCK_BYTES = BLOCK_SIZE * 2;
+
+    private static final int MODE_RAW = 0;
+    // Quotients from ESCAPE up are written as ESCAPE followed by the
+    // residual in ESCAPE_BITS bits
+    private static final int ESCAPE = 20;
+    private static final int ESCAPE_BITS = 20;
+    private static final int MAX_K = 16;
+
+    private final byte[] data;
+    private final int[] blockoffsets;
+    private final int length;
+    private final int channels;
+
+    private ModelCompressedBuffer(byte[] data, int[] blockoffsets,
+            int length, int channels) {
+        this.data = data;
+        this.blockoffsets = blockoffsets;
+        this.length = length;
+        this.channels = channels;
+    }
+
+    /**
+     * Bytes of the decompressed data.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Bytes of the compressed data.
+     */
+    int compressedLength() {
+        return data.length + blockoffsets.length * 4;
+    }
+
+    private static final class BitWriter {
+
+        byte[] data = new byte[4096];
+        int pos = 0;
+        long bits = 0;
+        int nbits = 0;
+
+        void write(int value, int n) {
+            bits = (bits << n) | (value & ((1L << n) - 1));
+            nbits += n;
+            while (nbits >= 8) {
+                nbits -= 8;
+                put((int) (bits >>> nbits));
+            }
+        }
+
+        void writeRice(int u, int k) {
+            int q = u >>> k;
+            if (q < ESCAPE) {
+                write(1, q + 1);
+                if (k != 0)
+                    write(u, k);
+            } else {
+                write(1, ESCAPE + 1);
+                write(u, ESCAPE_BITS);
+            }
+        }
+
+        // Blocks start at a byte boundary
+        void align() {
+            if (nbits != 0)
+                write(0, 8 - nbits);
+        }
+
+        void put(int b) {
+            if (pos == data.length) {
+                byte[] newdata = new byte[data.length * 2];
+                System.arraycopy(data, 0, newdata, 0, pos);
+                data = newdata;
+            }
+            data[pos++] = (byte) b;
+        }
+    }
+
+    private static int zigzag(int r) {
+        return (r << 1) ^ (r >> 31);
+    }
+
+    private static int residual(short[] s, int i, int order, int stride) {
+        if (order == 1)
+            return s[i] - s[i - stride];
+        return s[i] - 2 * s[i - stride] + s[i - 2 * stride];
+    }
+
+    private static int riceBits(int u, int k) {
+        int q = u >>> k;
+        if (q < ESCAPE)
+            return q + 1 + k;
+        return ESCAPE + 1 + ESCAPE_BITS;
+    }
+
+    /**
+     * Compress len bytes of 16-bit little-endian samples of channels
+     * interleaved channels, returns null if they do not compress.
+     */
+    static ModelCompressedBuffer compress(byte[] b, int off, int len,
+            int channels) {
+        if (len % 2 != 0 || channels < 1)
+            return null;
+        int nsamples = len / 2;
+        int nblocks = (nsamples + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        int[] blockoffsets = new int[nblocks];
+        short[] s = new short[BLOCK_SIZE];
+        int[] u = new int[BLOCK_SIZE];
+        BitWriter out = new BitWriter();
+        for (int block = 0; block < nblocks; block++) {
+            int start = block * BLOCK_SIZE;
+            int n = Math.min(BLOCK_SIZE, nsamples - start);
+            for (int i = 0; i < n; i++) {
+                int p = off + (start + i) * 2;
+                s[i] = (short) ((b[p] & 0xFF) | (b[p + 1] << 8));
+            }
+            int bestorder = MODE_RAW;
+            int bestk = 0;
+            int bestbits = n * 16;
+            for (int order = 1; order <= 2; order++) {
+                int warmup = Math.min(n, order * channels);
+                long sum = 0;
+                for (int i = warmup; i < n; i++) {
+                    u[i] = zigzag(residual(s, i, order, channels));
+                    sum += u[i];
+                }
+                // The best parameter is near log2 of the mean, only the
+                // parameters next to it are tried
+                int k0 = 0;
+                while (k0 < MAX_K && (n - warmup) * (1L << (k0 + 1)) <= sum)
+                    k0++;
+                for (int k = Math.max(0, k0 - 1);
+                        k <= Math.min(MAX_K, k0 + 1); k++) {
+                    int bits = warmup * 16;
+                    for (int i = warmup; i < n; i++)
+                        bits += riceBits(u[i], k);
+                    if (bits < bestbits) {
+                        bestbits = bits;
+                        bestorder = order;
+                        bestk = k;
+                    }
+                }
+            }
+
+            blockoffsets[block] = out.pos;
+            out.write((bestorder << 5) | bestk, 8);
+            int warmup = bestorder == MODE_RAW ? n
+                    : Math.min(n, bestorder * channels);
+            for (int i = 0; i < warmup; i++)
+                out.write(s[i], 16);
+            for (int i = warmup; i < n; i++)
+                out.writeRice(zigzag(residual(s, i, bestorder, channels)),
+                        bestk);
+            out.align();
+        }
+        // Padding, the decoder reads up to 8 bytes ahead
+        for (int i = 0; i < 8; i++)
+            out.put(0);
+        if (out.pos + nblocks * 4 >= len)
+            return null;
+        byte[] data = new byte[out.pos];
+        System.arraycopy(out.data, 0, data, 0, out.pos);
+        return new ModelCompressedBuffer(data, blockoffsets, len, channels);
+    }
+
+    /**
+     * Decompress block into out as 16-bit little-endian samples, returns
+     * the number of bytes written.
+     */
+    int decode(int block, byte[] out) {
+        int n = Math.min(BLOCK_SIZE, length / 2 - block * BLOCK_SIZE);
+        byte[] data = this.data;
+        int pos = blockoffsets[block];
+        int header = data[pos++] & 0xFF;
+        int order = header >>> 5;
+        int k = header & 0x1F;
+        int stride = channels;
+
+        // The next bits are the top nbits bits of window
+        long window = 0;
+        int nbits = 0;
+        int warmup = order == MODE_RAW ? n : Math.min(n, order * stride);
+        int i = 0;
+        for (; i < warmup; i++) {
+            while (nbits <= 56) {
+                window |= (long) (data[pos++] & 0xFF) << (56 - nbits);
+                nbits += 8;
+            }
+            int v = (short) (window >>> 48);
+            window <<= 16;
+            nbits -= 16;
+            out[i * 2] = (byte) v;
+            out[i * 2 + 1] = (byte) (v >> 8);
+        }
+        for (; i < n; i++) {
+            while (nbits <= 56) {
+                window |= (long) (data[pos++] & 0xFF) << (56 - nbits);
+                nbits += 8;
+            }
+            int q = Long.numberOfLeadingZeros(window);
+            int u;
+            if (q < ESCAPE) {
+                window <<= q + 1;
+                nbits -= q + 1;
+                if (k != 0) {
+                    u = (q << k) | (int) (window >>> (64 - k));
+                    window <<= k;
+                    nbits -= k;
+                } else
+                    u = q;
+            } else {
+                window <<= ESCAPE + 1;
+                u = (int) (window >>> (64 - ESCAPE_BITS));
+                window <<= ESCAPE_BITS;
+                nbits -= ESCAPE + 1 + ESCAPE_BITS;
+            }
+            int r = (u >>> 1) ^ -(u & 1);
+            int p1 = i - stride;
+            int prev = (short) ((out[p1 * 2] & 0xFF) | (out[p1 * 2 + 1] << 8));
+            int v;
+            if (order == 1) {
+                v = prev + r;
+            } else {
+                int p2 = p1 - stride;
+                int prev2 = (short) ((out[p2 * 2] & 0xFF)
+                        | (out[p2 * 2 + 1] << 8));
+                v = 2 * prev - prev2 + r;
+            }
+            out[i * 2] = (byte) v;
+            out[i * 2 + 1] = (byte) (v >> 8);
+        }
+        return n * 2;
+    }
+}
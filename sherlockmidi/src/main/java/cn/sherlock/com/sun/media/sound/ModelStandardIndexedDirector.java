@@ -44,6 +44,14 @@ public class ModelStandardIndexedDirector implements ModelDirector {
 
     public ModelStandardIndexedDirector(ModelPerformer[] performers,
             ModelDirectedPlayer player) {
+        this(performers, player, null, null, null);
+    }
+
+    // Uses the index tables of a director of the same performers, built
+    // before, instead of building them again
+    ModelStandardIndexedDirector(ModelPerformer[] performers,
+            ModelDirectedPlayer player, byte[][] trantables, int[] counters,
+            int[][] mat) {
         this.performers = performers;
         this.player = player;
         for (int i = 0; i < performers.length; i++) {
@@ -54,7 +62,13 @@ public class ModelStandardIndexedDirector implements ModelDirector {
                 noteOnUsed = true;
             }
         }
-        buildindex();
+        if (trantables == null) {
+            buildindex();
+        } else {
+            this.trantables = trantables;
+            this.counters = counters;
+            this.mat = mat;
+        }
     }
     
     private int[] lookupIndex(int x, int y) {
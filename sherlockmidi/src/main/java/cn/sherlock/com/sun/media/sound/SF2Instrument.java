@@ -47,6 +47,22 @@ public class SF2Instrument extends ModelInstrument {
     protected SF2GlobalRegion globalregion = null;
     protected List<SF2InstrumentRegion> regions
             = new ArrayList<SF2InstrumentRegion>();
+    // Table the regions are built from on first use, null once built
+    volatile SF2PdtaTable pdta = null;
+    int pdta_index;
+
+    // Lowers the filter cutoff for velocities under 64
+    static final class VelocityToFilterTransform implements ModelTransform {
+        public double transform(double value) {
+            if (value < 0.5)
+                return 1 - value * 2;
+            else
+                return 0;
+        }
+    }
+
+    static final ModelTransform VELOCITY_TO_FILTER_TRANSFORM
+            = new VelocityToFilterTransform();
 
     public SF2Instrument() {
         super(null, null, null, null);
@@ -109,15 +125,24 @@ public class SF2Instrument extends ModelInstrument {
         this.morphology = morphology;
     }
 
+    private void loadRegions() {
+        SF2PdtaTable table = pdta;
+        if (table != null)
+            table.loadRegions(this);
+    }
+
     public List<SF2InstrumentRegion> getRegions() {
+        loadRegions();
         return regions;
     }
 
     public SF2GlobalRegion getGlobalRegion() {
+        loadRegions();
         return globalregion;
     }
 
     public void setGlobalZone(SF2GlobalRegion zone) {
+        loadRegions();
         globalregion = zone;
     }
 
@@ -130,6 +155,7 @@ public class SF2Instrument extends ModelInstrument {
     }
 
     public ModelPerformer[] getPerformers() {
+        loadRegions();
         int performercount = 0;
         for (SF2InstrumentRegion presetzone : regions)
             performercount += presetzone.getLayer().getRegions().size();
@@ -607,14 +633,7 @@ public class SF2Instrument extends ModelInstrument {
                 performer.getConnectionBlocks().add(
                     new ModelConnectionBlock(
                         new ModelSource(ModelSource.SOURCE_NOTEON_VELOCITY,
-                            new ModelTransform() {
-                                public double transform(double value) {
-                                    if (value < 0.5)
-                                        return 1 - value * 2;
-                                    else
-                                        return 0;
-                                }
-                            }),
+                            VELOCITY_TO_FILTER_TRANSFORM),
                         -2400,
                         new ModelDestination(
                             ModelDestination.DESTINATION_FILTER_FREQ)));
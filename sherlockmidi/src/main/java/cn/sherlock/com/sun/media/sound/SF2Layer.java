@@ -39,6 +39,9 @@ public class SF2Layer extends SoundbankResource {
     protected String name = "";
     protected SF2GlobalRegion globalregion = null;
     protected List<SF2LayerRegion> regions = new ArrayList<SF2LayerRegion>();
+    // Table the regions are built from on first use, null once built
+    volatile SF2PdtaTable pdta = null;
+    int pdta_index;
 
     public SF2Layer(SF2Soundbank soundBank) {
         super(soundBank, null, null);
@@ -60,15 +63,24 @@ public class SF2Layer extends SoundbankResource {
         this.name = name;
     }
 
+    private void loadRegions() {
+        SF2PdtaTable table = pdta;
+        if (table != null)
+            table.loadRegions(this);
+    }
+
     public List<SF2LayerRegion> getRegions() {
+        loadRegions();
         return regions;
     }
 
     public SF2GlobalRegion getGlobalRegion() {
+        loadRegions();
         return globalregion;
     }
 
     public void setGlobalZone(SF2GlobalRegion zone) {
+        loadRegions();
         globalregion = zone;
     }
 
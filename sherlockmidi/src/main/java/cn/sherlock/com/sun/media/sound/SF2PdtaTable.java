@@ -0,0 +1,492 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * The preset data (pdta chunk) of a SoundFont, decoded into arrays.
+ *
+ * The whole chunk is decoded from memory into primitive arrays, one entry
+ * per header, zone, generator and modulator. SF2Soundbank creates its
+ * presets, instruments and samples from the headers, while the regions of
+ * a preset or instrument are only built from the arrays the first time
+ * they are used.
+ *
+ * Zones are assigned their generators and modulators the same way the
+ * previous stream reader did, including modulators of instrument zones
+ * being assigned by generator index, so banks load into the same model.
+ */
+final class SF2PdtaTable {
+
+    // The zones of preset or instrument headers, from pbag or ibag, and
+    // their generators and modulators
+    private static class Zones {
+        // First zone and zone count of each header
+        int[] first;
+        int[] count;
+        // Generators and modulators of each zone, start to end exclusive
+        int[] gen_start;
+        int[] gen_end;
+        int[] mod_start;
+        int[] mod_end;
+        int[] gen_operator;
+        short[] gen_amount;
+        // 5 values per modulator: source, destination, amount,
+        // amount source and transform
+        int[] modulators;
+    }
+
+    private static final int PHDR_SIZE = 38;
+    private static final int INST_SIZE = 22;
+    private static final int BAG_SIZE = 4;
+    private static final int MOD_SIZE = 10;
+    private static final int GEN_SIZE = 4;
+    private static final int SHDR_SIZE = 46;
+
+    // Preset headers, without the terminal record
+    private String[] preset_name;
+    private int[] preset_preset;
+    private int[] preset_bank;
+    private long[] preset_library;
+    private long[] preset_genre;
+    private long[] preset_morphology;
+    private final Zones preset_zones;
+
+    // Instrument headers, without the terminal record
+    private String[] inst_name;
+    private final Zones inst_zones;
+
+    // Sample headers, without the terminal record
+    private String[] sample_name;
+    private long[] sample_start;
+    private long[] sample_end;
+    private long[] sample_startloop;
+    private long[] sample_endloop;
+    private long[] sample_rate;
+    private int[] sample_pitch;
+    private byte[] sample_correction;
+    private int[] sample_link;
+    private int[] sample_type;
+
+    private SF2Layer[] layers;
+    private SF2Sample[] samples;
+
+    /**
+     * Decode the contents of a pdta list chunk, the bytes after its type.
+     */
+    SF2PdtaTable(byte[] pdta) throws RIFFInvalidDataException {
+        ByteBuffer phdr = null;
+        ByteBuffer pbag = null;
+        ByteBuffer pmod = null;
+        ByteBuffer pgen = null;
+        ByteBuffer inst = null;
+        ByteBuffer ibag = null;
+        ByteBuffer imod = null;
+        ByteBuffer igen = null;
+        ByteBuffer shdr = null;
+
+        ByteBuffer buffer = ByteBuffer.wrap(pdta).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            // Skip null paddings, as RIFFReader does
+            if (buffer.get(buffer.position()) == 0) {
+                buffer.get();
+                continue;
+            }
+            if (buffer.remaining() < 8)
+                throw new RIFFInvalidDataException();
+            String format = readString(buffer, 4);
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            if (size > buffer.remaining())
+                throw new RIFFInvalidDataException();
+            ByteBuffer chunk = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            chunk.limit((int) size);
+            buffer.position(buffer.position() + (int) size);
+            switch (format) {
+                case "phdr": phdr = chunk; break;
+                case "pbag": pbag = chunk; break;
+                case "pmod": pmod = chunk; break;
+                case "pgen": pgen = chunk; break;
+                case "inst": inst = chunk; break;
+                case "ibag": ibag = chunk; break;
+                case "imod": imod = chunk; break;
+                case "igen": igen = chunk; break;
+                case "shdr": shdr = chunk; break;
+            }
+        }
+
+        int[] preset_bagndx = readPresetHeaders(phdr);
+        preset_zones = readZones(pbag, preset_bagndx);
+        readModulators(pmod, preset_zones);
+        readGenerators(pgen, preset_zones);
+
+        int[] inst_bagndx = readInstrumentHeaders(inst);
+        inst_zones = readZones(ibag, inst_bagndx);
+        readModulators(imod, inst_zones);
+        readGenerators(igen, inst_zones);
+        // Instrument modulators go to the zone of the generator with the
+        // same index
+        int modcount = inst_zones.modulators.length / 5;
+        for (int i = 0; i < inst_zones.gen_start.length; i++) {
+            inst_zones.mod_start[i] = Math.min(inst_zones.gen_start[i], modcount);
+            inst_zones.mod_end[i] = Math.min(inst_zones.gen_end[i], modcount);
+        }
+
+        readSampleHeaders(shdr);
+    }
+
+    private static String readString(ByteBuffer buffer, int len) {
+        byte[] buff = new byte[len];
+        buffer.get(buff);
+        int i = 0;
+        while (i < len && buff[i] != 0)
+            i++;
+        try {
+            return new String(buff, 0, i, "ascii");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int getRecordCount(ByteBuffer chunk, int size)
+            throws RIFFInvalidDataException {
+        if (chunk == null)
+            return 0;
+        if (chunk.remaining() % size != 0)
+            throw new RIFFInvalidDataException();
+        return chunk.remaining() / size;
+    }
+
+    private int[] readPresetHeaders(ByteBuffer phdr)
+            throws RIFFInvalidDataException {
+        int count = getRecordCount(phdr, PHDR_SIZE);
+        int[] bagndx = new int[count];
+        int n = Math.max(count - 1, 0);
+        preset_name = new String[n];
+        preset_preset = new int[n];
+        preset_bank = new int[n];
+        preset_library = new long[n];
+        preset_genre = new long[n];
+        preset_morphology = new long[n];
+        for (int i = 0; i < count; i++) {
+            if (i == n) {
+                phdr.position(phdr.position() + 24);
+                bagndx[i] = phdr.getShort() & 0xFFFF;
+                phdr.position(phdr.position() + 12);
+                break;
+            }
+            preset_name[i] = readString(phdr, 20);
+            preset_preset[i] = phdr.getShort() & 0xFFFF;
+            preset_bank[i] = phdr.getShort() & 0xFFFF;
+            bagndx[i] = phdr.getShort() & 0xFFFF;
+            preset_library[i] = phdr.getInt() & 0xFFFFFFFFL;
+            preset_genre[i] = phdr.getInt() & 0xFFFFFFFFL;
+            preset_morphology[i] = phdr.getInt() & 0xFFFFFFFFL;
+        }
+        return bagndx;
+    }
+
+    private int[] readInstrumentHeaders(ByteBuffer inst)
+            throws RIFFInvalidDataException {
+        int count = getRecordCount(inst, INST_SIZE);
+        int[] bagndx = new int[count];
+        int n = Math.max(count - 1, 0);
+        inst_name = new String[n];
+        for (int i = 0; i < count; i++) {
+            String name = readString(inst, 20);
+            if (i != n)
+                inst_name[i] = name;
+            bagndx[i] = inst.getShort() & 0xFFFF;
+        }
+        return bagndx;
+    }
+
+    private static Zones readZones(ByteBuffer bag, int[] bagndx)
+            throws RIFFInvalidDataException {
+        Zones zones = new Zones();
+        int headers = Math.max(bagndx.length - 1, 0);
+        zones.first = new int[headers];
+        zones.count = new int[headers];
+        int zonecount = 0;
+        for (int i = 0; i < headers; i++) {
+            zones.first[i] = zonecount;
+            // Without a bag chunk the headers have no zones
+            if (bag != null)
+                zones.count[i] = Math.max(bagndx[i + 1] - bagndx[i], 0);
+            zonecount += zones.count[i];
+        }
+        zones.gen_start = new int[zonecount];
+        zones.gen_end = new int[zonecount];
+        zones.mod_start = new int[zonecount];
+        zones.mod_end = new int[zonecount];
+        zones.gen_operator = new int[0];
+        zones.gen_amount = new short[0];
+        zones.modulators = new int[0];
+        if (bag == null)
+            return zones;
+
+        int records = getRecordCount(bag, BAG_SIZE);
+        if (bagndx.length == 0)
+            throw new RIFFInvalidDataException();
+        // The first record, and records before the first zone (there
+        // should be none), start the generators of no zone
+        int offset = bagndx[0];
+        if (records < 1 + offset + zonecount)
+            throw new RIFFInvalidDataException();
+        int gencount = 0;
+        int modcount = 0;
+        for (int i = 0; i <= offset; i++) {
+            gencount = Math.max(gencount, bag.getShort() & 0xFFFF);
+            modcount = Math.max(modcount, bag.getShort() & 0xFFFF);
+        }
+        // A zone has the generators up to where the next zone starts
+        for (int i = 0; i < zonecount; i++) {
+            zones.gen_start[i] = gencount;
+            zones.mod_start[i] = modcount;
+            gencount = Math.max(gencount, bag.getShort() & 0xFFFF);
+            modcount = Math.max(modcount, bag.getShort() & 0xFFFF);
+            zones.gen_end[i] = gencount;
+            zones.mod_end[i] = modcount;
+        }
+        zones.gen_operator = new int[gencount];
+        zones.gen_amount = new short[gencount];
+        zones.modulators = new int[modcount * 5];
+        return zones;
+    }
+
+    private static void readModulators(ByteBuffer mod, Zones zones)
+            throws RIFFInvalidDataException {
+        int count = zones.modulators.length / 5;
+        if (mod == null) {
+            // No modulators to assign
+            zones.modulators = new int[0];
+            for (int i = 0; i < zones.mod_start.length; i++)
+                zones.mod_end[i] = zones.mod_start[i] = 0;
+            return;
+        }
+        if (mod.remaining() < count * MOD_SIZE)
+            throw new RIFFInvalidDataException();
+        int[] modulators = zones.modulators;
+        for (int i = 0; i < count * 5; i += 5) {
+            modulators[i] = mod.getShort() & 0xFFFF;
+            modulators[i + 1] = mod.getShort() & 0xFFFF;
+            modulators[i + 2] = mod.getShort();
+            modulators[i + 3] = mod.getShort() & 0xFFFF;
+            modulators[i + 4] = mod.getShort() & 0xFFFF;
+        }
+    }
+
+    private static void readGenerators(ByteBuffer gen, Zones zones)
+            throws RIFFInvalidDataException {
+        int count = zones.gen_operator.length;
+        if (gen == null) {
+            // No generators to assign
+            zones.gen_operator = new int[0];
+            zones.gen_amount = new short[0];
+            for (int i = 0; i < zones.gen_start.length; i++)
+                zones.gen_end[i] = zones.gen_start[i] = 0;
+            return;
+        }
+        if (gen.remaining() < count * GEN_SIZE)
+            throw new RIFFInvalidDataException();
+        for (int i = 0; i < count; i++) {
+            zones.gen_operator[i] = gen.getShort() & 0xFFFF;
+            zones.gen_amount[i] = gen.getShort();
+        }
+    }
+
+    private void readSampleHeaders(ByteBuffer shdr)
+            throws RIFFInvalidDataException {
+        int n = Math.max(getRecordCount(shdr, SHDR_SIZE) - 1, 0);
+        sample_name = new String[n];
+        sample_start = new long[n];
+        sample_end = new long[n];
+        sample_startloop = new long[n];
+        sample_endloop = new long[n];
+        sample_rate = new long[n];
+        sample_pitch = new int[n];
+        sample_correction = new byte[n];
+        sample_link = new int[n];
+        sample_type = new int[n];
+        for (int i = 0; i < n; i++) {
+            sample_name[i] = readString(shdr, 20);
+            sample_start[i] = shdr.getInt() & 0xFFFFFFFFL;
+            sample_end[i] = shdr.getInt() & 0xFFFFFFFFL;
+            sample_startloop[i] = shdr.getInt() & 0xFFFFFFFFL;
+            sample_endloop[i] = shdr.getInt() & 0xFFFFFFFFL;
+            sample_rate[i] = shdr.getInt() & 0xFFFFFFFFL;
+            sample_pitch[i] = shdr.get() & 0xFF;
+            sample_correction[i] = shdr.get();
+            sample_link[i] = shdr.getShort() & 0xFFFF;
+            sample_type[i] = shdr.getShort() & 0xFFFF;
+        }
+    }
+
+    /**
+     * Create the presets, their regions are built on first use.
+     */
+    void createPresets(SF2Soundbank soundbank, List<SF2Instrument> presets) {
+        for (int i = 0; i < preset_name.length; i++) {
+            SF2Instrument preset = new SF2Instrument(soundbank);
+            preset.name = preset_name[i];
+            preset.preset = preset_preset[i];
+            preset.bank = preset_bank[i];
+            preset.library = preset_library[i];
+            preset.genre = preset_genre[i];
+            preset.morphology = preset_morphology[i];
+            preset.pdta = this;
+            preset.pdta_index = i;
+            presets.add(preset);
+        }
+    }
+
+    /**
+     * Create the instruments, their regions are built on first use.
+     */
+    void createLayers(SF2Soundbank soundbank, List<SF2Layer> layers) {
+        this.layers = new SF2Layer[inst_name.length];
+        for (int i = 0; i < inst_name.length; i++) {
+            SF2Layer layer = new SF2Layer(soundbank);
+            layer.name = inst_name[i];
+            layer.pdta = this;
+            layer.pdta_index = i;
+            this.layers[i] = layer;
+            layers.add(layer);
+        }
+    }
+
+    void createSamples(SF2Soundbank soundbank, ModelByteBuffer sampleData,
+            ModelByteBuffer sampleData24, List<SF2Sample> samples) {
+        this.samples = new SF2Sample[sample_name.length];
+        for (int i = 0; i < sample_name.length; i++) {
+            SF2Sample sample = new SF2Sample(soundbank);
+            long start = sample_start[i];
+            long end = sample_end[i];
+            sample.name = sample_name[i];
+            sample.data = sampleData.subbuffer(start * 2, end * 2, true);
+            if (sampleData24 != null)
+                sample.data24 = sampleData24.subbuffer(start, end, true);
+            sample.startLoop = sample_startloop[i] - start;
+            sample.endLoop = sample_endloop[i] - start;
+            if (sample.startLoop < 0)
+                sample.startLoop = -1;
+            if (sample.endLoop < 0)
+                sample.endLoop = -1;
+            sample.sampleRate = sample_rate[i];
+            sample.originalPitch = sample_pitch[i];
+            sample.pitchCorrection = sample_correction[i];
+            sample.sampleLink = sample_link[i];
+            sample.sampleType = sample_type[i];
+            this.samples[i] = sample;
+            samples.add(sample);
+        }
+    }
+
+    /**
+     * Check the instrument and sample indexes of all zones, so banks
+     * with invalid links still fail when they are loaded.
+     */
+    void checkLinks() throws RIFFInvalidDataException {
+        checkLinks(preset_zones, SF2Region.GENERATOR_INSTRUMENT,
+                layers == null ? 0 : layers.length);
+        checkLinks(inst_zones, SF2Region.GENERATOR_SAMPLEID,
+                samples == null ? 0 : samples.length);
+    }
+
+    private static void checkLinks(Zones zones, int operator, int count)
+            throws RIFFInvalidDataException {
+        for (int i = 0; i < zones.gen_start.length; i++) {
+            int link = -1;
+            boolean linked = false;
+            for (int g = zones.gen_start[i]; g < zones.gen_end[i]; g++) {
+                if (zones.gen_operator[g] == operator) {
+                    link = zones.gen_amount[g];
+                    linked = true;
+                }
+            }
+            if (linked && (link < 0 || link >= count))
+                throw new RIFFInvalidDataException();
+        }
+    }
+
+    private static void readRegion(Zones zones, int zone, SF2Region region) {
+        for (int g = zones.gen_start[zone]; g < zones.gen_end[zone]; g++)
+            region.generators.put(zones.gen_operator[g], zones.gen_amount[g]);
+        int[] modulators = zones.modulators;
+        for (int m = zones.mod_start[zone]; m < zones.mod_end[zone]; m++) {
+            SF2Modulator modulator = new SF2Modulator();
+            modulator.sourceOperator = modulators[m * 5];
+            modulator.destinationOperator = modulators[m * 5 + 1];
+            modulator.amount = (short) modulators[m * 5 + 2];
+            modulator.amountSourceOperator = modulators[m * 5 + 3];
+            modulator.transportOperator = modulators[m * 5 + 4];
+            region.modulators.add(modulator);
+        }
+    }
+
+    private static SF2GlobalRegion toGlobalRegion(SF2Region region) {
+        SF2GlobalRegion gsplit = new SF2GlobalRegion();
+        gsplit.generators = region.generators;
+        gsplit.modulators = region.modulators;
+        return gsplit;
+    }
+
+    /**
+     * Build the regions of a preset created by createPresets, unless they
+     * have been built already.
+     */
+    synchronized void loadRegions(SF2Instrument preset) {
+        if (preset.pdta != this)
+            return;
+        Zones zones = preset_zones;
+        int first = zones.first[preset.pdta_index];
+        int count = zones.count[preset.pdta_index];
+        SF2InstrumentRegion globalsplit = null;
+        for (int i = first; i < first + count; i++) {
+            SF2InstrumentRegion split = new SF2InstrumentRegion();
+            readRegion(zones, i, split);
+            Short instrumentid = split.generators.remove(
+                    SF2Region.GENERATOR_INSTRUMENT);
+            if (instrumentid != null)
+                split.layer = layers[instrumentid];
+            else
+                globalsplit = split;
+            preset.regions.add(split);
+        }
+        if (globalsplit != null) {
+            preset.regions.remove(globalsplit);
+            preset.globalregion = toGlobalRegion(globalsplit);
+        }
+        preset.pdta = null;
+    }
+
+    /**
+     * Build the regions of an instrument created by createLayers, unless
+     * they have been built already.
+     */
+    synchronized void loadRegions(SF2Layer layer) {
+        if (layer.pdta != this)
+            return;
+        Zones zones = inst_zones;
+        int first = zones.first[layer.pdta_index];
+        int count = zones.count[layer.pdta_index];
+        SF2LayerRegion globalsplit = null;
+        for (int i = first; i < first + count; i++) {
+            SF2LayerRegion split = new SF2LayerRegion();
+            readRegion(zones, i, split);
+            Short sampleid = split.generators.remove(
+                    SF2Region.GENERATOR_SAMPLEID);
+            if (sampleid != null)
+                split.sample = samples[sampleid];
+            else
+                globalsplit = split;
+            layer.regions.add(split);
+        }
+        if (globalsplit != null) {
+            layer.regions.remove(globalsplit);
+            layer.globalregion = toGlobalRegion(globalsplit);
+        }
+        layer.pdta = null;
+    }
+}
@@ -34,7 +34,6 @@ import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -207,6 +206,7 @@ public class SF2Soundbank implements Soundbank {
                 } else {
                     this.sampleData = new ModelByteBuffer(sampleFile,
                             chunk.getFilePointer(), chunk.available());
+                    mapSampleData(this.sampleData);
                 }
             }
             if (chunk.getFormat().equals("sm24")) {
@@ -230,289 +230,32 @@ public class SF2Soundbank implements Soundbank {
                 } else {
                     this.sampleData24 = new ModelByteBuffer(sampleFile,
                             chunk.getFilePointer(), chunk.available());
+                    mapSampleData(this.sampleData24);
                 }
 
             }
         }
     }
 
-    private void readPdtaChunk(RIFFReader riff) throws IOException {
-
-        List<SF2Instrument> presets = new ArrayList<>();
-        List<Integer> presets_bagNdx = new ArrayList<>();
-        List<SF2InstrumentRegion> presets_splits_gen
-                = new ArrayList<>();
-        List<SF2InstrumentRegion> presets_splits_mod
-                = new ArrayList<>();
-
-        List<SF2Layer> instruments = new ArrayList<>();
-        List<Integer> instruments_bagNdx = new ArrayList<>();
-        List<SF2LayerRegion> instruments_splits_gen
-                = new ArrayList<>();
-        List<SF2LayerRegion> instruments_splits_mod
-                = new ArrayList<>();
-
-        while (riff.hasNextChunk()) {
-            RIFFReader chunk = riff.nextChunk();
-            String format = chunk.getFormat();
-            if (format.equals("phdr")) {
-                // Preset Header / Instrument
-                if (chunk.available() % 38 != 0)
-                    throw new RIFFInvalidDataException();
-                int count = chunk.available() / 38;
-                for (int i = 0; i < count; i++) {
-                    SF2Instrument preset = new SF2Instrument(this);
-                    preset.name = chunk.readString(20);
-                    preset.preset = chunk.readUnsignedShort();
-                    preset.bank = chunk.readUnsignedShort();
-                    presets_bagNdx.add(chunk.readUnsignedShort());
-                    preset.library = chunk.readUnsignedInt();
-                    preset.genre = chunk.readUnsignedInt();
-                    preset.morphology = chunk.readUnsignedInt();
-                    presets.add(preset);
-                    if (i != count - 1)
-                        this.instruments.add(preset);
-                }
-            } else if (format.equals("pbag")) {
-                // Preset Zones / Instruments splits
-                if (chunk.available() % 4 != 0)
-                    throw new RIFFInvalidDataException();
-                int count = chunk.available() / 4;
-
-                // Skip first record
-                {
-                    int gencount = chunk.readUnsignedShort();
-                    int modcount = chunk.readUnsignedShort();
-                    while (presets_splits_gen.size() < gencount)
-                        presets_splits_gen.add(null);
-                    while (presets_splits_mod.size() < modcount)
-                        presets_splits_mod.add(null);
-                    count--;
-                }
-
-                int offset = presets_bagNdx.get(0);
-                // Offset should be 0 (but just case)
-                for (int i = 0; i < offset; i++) {
-                    if (count == 0)
-                        throw new RIFFInvalidDataException();
-                    int gencount = chunk.readUnsignedShort();
-                    int modcount = chunk.readUnsignedShort();
-                    while (presets_splits_gen.size() < gencount)
-                        presets_splits_gen.add(null);
-                    while (presets_splits_mod.size() < modcount)
-                        presets_splits_mod.add(null);
-                    count--;
-                }
-
-                for (int i = 0; i < presets_bagNdx.size() - 1; i++) {
-                    int zone_count = presets_bagNdx.get(i + 1)
-                                     - presets_bagNdx.get(i);
-                    SF2Instrument preset = presets.get(i);
-                    for (int ii = 0; ii < zone_count; ii++) {
-                        if (count == 0)
-                            throw new RIFFInvalidDataException();
-                        int gencount = chunk.readUnsignedShort();
-                        int modcount = chunk.readUnsignedShort();
-                        SF2InstrumentRegion split = new SF2InstrumentRegion();
-                        preset.regions.add(split);
-                        while (presets_splits_gen.size() < gencount)
-                            presets_splits_gen.add(split);
-                        while (presets_splits_mod.size() < modcount)
-                            presets_splits_mod.add(split);
-                        count--;
-                    }
-                }
-            } else if (format.equals("pmod")) {
-                // Preset Modulators / Split Modulators
-                for (int i = 0; i < presets_splits_mod.size(); i++) {
-                    SF2Modulator modulator = new SF2Modulator();
-                    modulator.sourceOperator = chunk.readUnsignedShort();
-                    modulator.destinationOperator = chunk.readUnsignedShort();
-                    modulator.amount = chunk.readShort();
-                    modulator.amountSourceOperator = chunk.readUnsignedShort();
-                    modulator.transportOperator = chunk.readUnsignedShort();
-                    SF2InstrumentRegion split = presets_splits_mod.get(i);
-                    if (split != null)
-                        split.modulators.add(modulator);
-                }
-            } else if (format.equals("pgen")) {
-                // Preset Generators / Split Generators
-                for (int i = 0; i < presets_splits_gen.size(); i++) {
-                    int operator = chunk.readUnsignedShort();
-                    short amount = chunk.readShort();
-                    SF2InstrumentRegion split = presets_splits_gen.get(i);
-                    if (split != null)
-                        split.generators.put(operator, amount);
-                }
-            } else if (format.equals("inst")) {
-                // Instrument Header / Layers
-                if (chunk.available() % 22 != 0)
-                    throw new RIFFInvalidDataException();
-                int count = chunk.available() / 22;
-                for (int i = 0; i < count; i++) {
-                    SF2Layer layer = new SF2Layer(this);
-                    layer.name = chunk.readString(20);
-                    instruments_bagNdx.add(chunk.readUnsignedShort());
-                    instruments.add(layer);
-                    if (i != count - 1)
-                        this.layers.add(layer);
-                }
-            } else if (format.equals("ibag")) {
-                // Instrument Zones / Layer splits
-                if (chunk.available() % 4 != 0)
-                    throw new RIFFInvalidDataException();
-                int count = chunk.available() / 4;
-
-                // Skip first record
-                {
-                    int gencount = chunk.readUnsignedShort();
-                    int modcount = chunk.readUnsignedShort();
-                    while (instruments_splits_gen.size() < gencount)
-                        instruments_splits_gen.add(null);
-                    while (instruments_splits_mod.size() < modcount)
-                        instruments_splits_mod.add(null);
-                    count--;
-                }
-
-                int offset = instruments_bagNdx.get(0);
-                // Offset should be 0 (but just case)
-                for (int i = 0; i < offset; i++) {
-                    if (count == 0)
-                        throw new RIFFInvalidDataException();
-                    int gencount = chunk.readUnsignedShort();
-                    int modcount = chunk.readUnsignedShort();
-                    while (instruments_splits_gen.size() < gencount)
-                        instruments_splits_gen.add(null);
-                    while (instruments_splits_mod.size() < modcount)
-                        instruments_splits_mod.add(null);
-                    count--;
-                }
-
-                for (int i = 0; i < instruments_bagNdx.size() - 1; i++) {
-                    int zone_count = instruments_bagNdx.get(i + 1) - instruments_bagNdx.get(i);
-                    SF2Layer layer = layers.get(i);
-                    for (int ii = 0; ii < zone_count; ii++) {
-                        if (count == 0)
-                            throw new RIFFInvalidDataException();
-                        int gencount = chunk.readUnsignedShort();
-                        int modcount = chunk.readUnsignedShort();
-                        SF2LayerRegion split = new SF2LayerRegion();
-                        layer.regions.add(split);
-                        while (instruments_splits_gen.size() < gencount)
-                            instruments_splits_gen.add(split);
-                        while (instruments_splits_mod.size() < modcount)
-                            instruments_splits_mod.add(split);
-                        count--;
-                    }
-                }
-
-            } else if (format.equals("imod")) {
-                // Instrument Modulators / Split Modulators
-                for (int i = 0; i < instruments_splits_mod.size(); i++) {
-                    SF2Modulator modulator = new SF2Modulator();
-                    modulator.sourceOperator = chunk.readUnsignedShort();
-                    modulator.destinationOperator = chunk.readUnsignedShort();
-                    modulator.amount = chunk.readShort();
-                    modulator.amountSourceOperator = chunk.readUnsignedShort();
-                    modulator.transportOperator = chunk.readUnsignedShort();
-                    SF2LayerRegion split = instruments_splits_gen.get(i);
-                    if (split != null)
-                        split.modulators.add(modulator);
-                }
-            } else if (format.equals("igen")) {
-                // Instrument Generators / Split Generators
-                for (int i = 0; i < instruments_splits_gen.size(); i++) {
-                    int operator = chunk.readUnsignedShort();
-                    short amount = chunk.readShort();
-                    SF2LayerRegion split = instruments_splits_gen.get(i);
-                    if (split != null)
-                        split.generators.put(operator, amount);
-                }
-            } else if (format.equals("shdr")) {
-                // Sample Headers
-                if (chunk.available() % 46 != 0)
-                    throw new RIFFInvalidDataException();
-                int count = chunk.available() / 46;
-                for (int i = 0; i < count; i++) {
-                    SF2Sample sample = new SF2Sample(this);
-                    sample.name = chunk.readString(20);
-                    long start = chunk.readUnsignedInt();
-                    long end = chunk.readUnsignedInt();
-                    sample.data = sampleData.subbuffer(start * 2, end * 2, true);
-                    if (sampleData24 != null)
-                        sample.data24 = sampleData24.subbuffer(start, end, true);
-                    /*
-                    sample.data = new ModelByteBuffer(sampleData, (int)(start*2),
-                            (int)((end - start)*2));
-                    if (sampleData24 != null)
-                        sample.data24 = new ModelByteBuffer(sampleData24,
-                                (int)start, (int)(end - start));
-                     */
-                    sample.startLoop = chunk.readUnsignedInt() - start;
-                    sample.endLoop = chunk.readUnsignedInt() - start;
-                    if (sample.startLoop < 0)
-                        sample.startLoop = -1;
-                    if (sample.endLoop < 0)
-                        sample.endLoop = -1;
-                    sample.sampleRate = chunk.readUnsignedInt();
-                    sample.originalPitch = chunk.readUnsignedByte();
-                    sample.pitchCorrection = chunk.readByte();
-                    sample.sampleLink = chunk.readUnsignedShort();
-                    sample.sampleType = chunk.readUnsignedShort();
-                    if (i != count - 1)
-                        this.samples.add(sample);
-                }
-            }
-        }
-
-        for (SF2Layer layer : this.layers) {
-            Iterator<SF2LayerRegion> siter = layer.regions.iterator();
-            SF2Region globalsplit = null;
-            while (siter.hasNext()) {
-                SF2LayerRegion split = siter.next();
-                if (split.generators.get(SF2LayerRegion.GENERATOR_SAMPLEID) != null) {
-                    int sampleid = split.generators.get(
-                            SF2LayerRegion.GENERATOR_SAMPLEID);
-                    split.generators.remove(SF2LayerRegion.GENERATOR_SAMPLEID);
-                    split.sample = samples.get(sampleid);
-                } else {
-                    globalsplit = split;
-                }
-            }
-            if (globalsplit != null) {
-                layer.getRegions().remove(globalsplit);
-                SF2GlobalRegion gsplit = new SF2GlobalRegion();
-                gsplit.generators = globalsplit.generators;
-                gsplit.modulators = globalsplit.modulators;
-                layer.setGlobalZone(gsplit);
-            }
-        }
-
-
-        for (SF2Instrument instrument : this.instruments) {
-            Iterator<SF2InstrumentRegion> siter = instrument.regions.iterator();
-            SF2Region globalsplit = null;
-            while (siter.hasNext()) {
-                SF2InstrumentRegion split = siter.next();
-                if (split.generators.get(SF2LayerRegion.GENERATOR_INSTRUMENT) != null) {
-                    int instrumentid = split.generators.get(
-                            SF2InstrumentRegion.GENERATOR_INSTRUMENT);
-                    split.generators.remove(SF2LayerRegion.GENERATOR_INSTRUMENT);
-                    split.layer = layers.get(instrumentid);
-                } else {
-                    globalsplit = split;
-                }
-            }
-
-            if (globalsplit != null) {
-                instrument.getRegions().remove(globalsplit);
-                SF2GlobalRegion gsplit = new SF2GlobalRegion();
-                gsplit.generators = globalsplit.generators;
-                gsplit.modulators = globalsplit.modulators;
-                instrument.setGlobalZone(gsplit);
-            }
+    // Samples are paged in from the mapping when they are played, or read
+    // from the file if the file can not be mapped.
+    private static void mapSampleData(ModelByteBuffer data) {
+        try {
+            data.map();
+        } catch (IOException e) {
         }
+    }
 
+    private void readPdtaChunk(RIFFReader riff) throws IOException {
+        // Read the chunk at once and decode it from memory, the regions of
+        // presets and instruments are built when they are first used
+        byte[] pdta = new byte[riff.available()];
+        riff.readFully(pdta);
+        SF2PdtaTable table = new SF2PdtaTable(pdta);
+        table.createPresets(this, instruments);
+        table.createLayers(this, layers);
+        table.createSamples(this, sampleData, sampleData24, samples);
+        table.checkLinks();
     }
 
     public void save(String name) throws IOException {
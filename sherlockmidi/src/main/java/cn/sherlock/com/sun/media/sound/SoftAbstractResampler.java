@@ -40,6 +40,11 @@ public abstract class SoftAbstractResampler implements SoftResampler {
     private class ModelAbstractResamplerStream implements SoftResamplerStreamer {
 
         AudioFloatInputStream stream;
+        // Decoded samples read instead of stream, data_pos and data_mark
+        // are stream positions in samples
+        float[] data;
+        int data_pos;
+        int data_mark;
         boolean stream_eof = false;
         int loopmode;
         boolean loopdirection = true; // true = forward
@@ -84,6 +89,12 @@ public abstract class SoftAbstractResampler implements SoftResampler {
 
         public void open(ModelWavetable osc, float outputsamplerate)
                 throws IOException {
+            open(osc, null, outputsamplerate);
+        }
+
+        public void open(ModelWavetable osc,
+                SoftSampleCache.DecodedSample decoded, float outputsamplerate)
+                throws IOException {
 
             eof = false;
             nrofchannels = osc.getChannels();
@@ -91,12 +102,21 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 ibuffer = new float[nrofchannels][sector_size + pad2];
             }
 
-            stream = osc.openStream();
+            if (decoded != null) {
+                stream = null;
+                data = decoded.data;
+                data_pos = 0;
+                data_mark = 0;
+                samplerateconv = decoded.samplerate / outputsamplerate;
+            } else {
+                data = null;
+                stream = osc.openStream();
+                samplerateconv
+                        = stream.getFormat().getSampleRate() / outputsamplerate;
+            }
             streampos = 0;
             stream_eof = false;
             pitchcorrection = osc.getPitchcorrection();
-            samplerateconv
-                    = stream.getFormat().getSampleRate() / outputsamplerate;
             looplen = osc.getLoopLength();
             loopstart = osc.getLoopStart();
             sector_loopstart = (int) (loopstart / sector_size);
@@ -153,7 +173,10 @@ public abstract class SoftAbstractResampler implements SoftResampler {
             if (ix[0] < pad) {
                 if (markset) {
                     // reset to target sector
-                    stream.reset();
+                    if (data != null)
+                        data_pos = data_mark;
+                    else
+                        stream.reset();
                     ix[0] += streampos - (sector_loopstart * sector_size);
                     sector_pos = sector_loopstart;
                     streampos = sector_pos * sector_size;
@@ -178,13 +201,21 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 ix[0] -= sector_size * skips;
                 sector_pos += skips;
                 streampos += sector_size * skips;
-                stream.skip(sector_size * skips);
+                if (data != null) {
+                    if (data_pos < data.length)
+                        data_pos = Math.min(data_pos + sector_size * skips,
+                                data.length);
+                } else
+                    stream.skip(sector_size * skips);
             }
 
             while (ix[0] >= sector_size + pad) {
                 if (!markset) {
                     if (sector_pos + 1 == sector_loopstart) {
-                        stream.mark(marklimit);
+                        if (data != null)
+                            data_mark = data_pos;
+                        else
+                            stream.mark(marklimit);
                         markset = true;
                     }
                 }
@@ -199,7 +230,9 @@ public abstract class SoftAbstractResampler implements SoftResampler {
                 }
 
                 int ret;
-                if (nrofchannels == 1)
+                if (data != null)
+                    ret = readData();
+                else if (nrofchannels == 1)
                     ret = stream.read(ibuffer[0], pad2, sector_size);
                 else {
                     int slen = sector_size * nrofchannels;
@@ -240,6 +273,29 @@ public abstract class SoftAbstractResampler implements SoftResampler {
 
         }
 
+        // Reads the next sector from the decoded samples, like reading it
+        // from the stream would.
+        private int readData() {
+            if (data_pos >= data.length)
+                return -1;
+            int slen = Math.min(sector_size * nrofchannels,
+                    data.length - data_pos);
+            int ret = slen / nrofchannels;
+            if (nrofchannels == 1)
+                System.arraycopy(data, data_pos, ibuffer[0], pad2, ret);
+            else {
+                for (int i = 0; i < nrofchannels; i++) {
+                    float[] buff = ibuffer[i];
+                    int ix = data_pos + i;
+                    int ox = pad2;
+                    for (int j = 0; j < ret; j++, ix += nrofchannels, ox++)
+                        buff[ox] = data[ix];
+                }
+            }
+            data_pos += slen;
+            return ret;
+        }
+
         public void reverseBuffers() {
             ibuffer_order = !ibuffer_order;
             for (int c = 0; c < nrofchannels; c++) {
@@ -374,7 +430,9 @@ public abstract class SoftAbstractResampler implements SoftResampler {
         }
 
         public void close() throws IOException {
-            stream.close();
+            data = null;
+            if (stream != null)
+                stream.close();
         }
     }
 
@@ -101,6 +101,7 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     private final Object control_mutex;
     private int channel;
     private SoftVoice[] voices;
+    private SoftVoiceIndex voiceindex;
     private int bank;
     private int program;
     private SoftSynthesizer synthesizer;
@@ -116,6 +117,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     protected int tuning_program = 0;
     protected SoftInstrument current_instrument = null;
     protected ModelChannelMixer current_mixer = null;
+    // Voices without an instrument channel mixer are routed through
+    // this mixer, it is used to capture the output of the channel.
+    protected ModelChannelMixer output_mixer = null;
     protected ModelDirector current_director = null;
 
     // Controller Destination Settings
@@ -209,6 +213,7 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
     public SoftChannel(SoftSynthesizer synth, int channel) {
         this.channel = channel;
         this.voices = synth.getVoices();
+        this.voiceindex = synth.voiceindex;
         this.synthesizer = synth;
         this.mainmixer = synth.getMainMixer();
         control_mutex = synth.control_mutex;
@@ -225,13 +230,20 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             // Therefore we have to return -1.
             return -1;
         }
-        for (int i = x; i < voices.length; i++)
-            if (!voices[i].active)
+        int vmode = synthesizer.getVoiceAllocationMode();
+        VoiceStealingPolicy policy = synthesizer.getVoiceStealingPolicy();
+        if (vmode != 1) {
+            int i = policy.selectChannelVoice(channel, voices, voiceindex);
+            if (i != -1)
                 return i;
+        }
+
+        int i = voiceindex.nextFree(x);
+        if (i != -1)
+            return i;
 
         // No free voice was found, we must steal one
 
-        int vmode = synthesizer.getVoiceAllocationMode();
         if (vmode == 1) {
             // DLS Static Voice Allocation
 
@@ -290,46 +302,8 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             return voiceNo;
 
         } else {
-            // Default Voice Allocation
-            //  * Find voice that is on
-            //      and Find voice which has lowest voiceID ( oldest voice)
-            //  * Or find voice that is off
-            //      and Find voice which has lowest voiceID ( oldest voice)
-
-            int voiceNo = -1;
-
-            SoftVoice v = null;
-            // Search for oldest voice in off state
-            for (int j = 0; j < voices.length; j++) {
-                if (voices[j].stealer_channel == null && !voices[j].on) {
-                    if (v == null) {
-                        v = voices[j];
-                        voiceNo = j;
-                    }
-                    if (voices[j].voiceID < v.voiceID) {
-                        v = voices[j];
-                        voiceNo = j;
-                    }
-                }
-            }
-            // Search for oldest voice in on state
-            if (voiceNo == -1) {
-
-                for (int j = 0; j < voices.length; j++) {
-                    if (voices[j].stealer_channel == null) {
-                        if (v == null) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                        if (voices[j].voiceID < v.voiceID) {
-                            v = voices[j];
-                            voiceNo = j;
-                        }
-                    }
-                }
-            }
-
-            return voiceNo;
+            // Default Voice Allocation, see SoftReleaseFirstStealingPolicy
+            return policy.selectVoice(channel, voices, voiceindex);
         }
 
     }
@@ -339,6 +313,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             ModelChannelMixer channelmixer, boolean releaseTriggered) {
         if (voice.active) {
             // Voice is active , we must steal the voice
+            if (voice.stealer_channel == null) {
+                voiceindex.stealers++;
+                voiceindex.stolen(voice);
+            }
             voice.stealer_channel = this;
             voice.stealer_performer = p;
             voice.stealer_voiceID = voiceID;
@@ -347,9 +325,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             voice.stealer_extendedConnectionBlocks = connectionBlocks;
             voice.stealer_channelmixer = channelmixer;
             voice.stealer_releaseTriggered = releaseTriggered;
-            for (SoftVoice softVoice : voices)
-                if (softVoice.active && softVoice.voiceID == voice.voiceID)
-                    softVoice.soundOff();
+            for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1))
+                if (voices[i].voiceID == voice.voiceID)
+                    voices[i].soundOff();
             return;
         }
 
@@ -430,10 +408,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         synchronized (control_mutex) {
             if (sustain) {
                 sustain = false;
-                for (SoftVoice voice : voices) {
-                    if ((voice.sustain || voice.on)
-                            && voice.channel == channel && voice.active
-                            && voice.note == noteNumber) {
+                for (int i = voiceindex.firstOnNote(channel, noteNumber);
+                        i != -1; i = voiceindex.nextOnNote(i)) {
+                    SoftVoice voice = voices[i];
+                    if (voice.sustain || voice.on) {
                         voice.sustain = false;
                         voice.on = true;
                         voice.noteOff(0);
@@ -447,10 +425,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if (mono) {
                 if (portamento) {
                     boolean n_found = false;
-                    for (SoftVoice voice : voices) {
-                        if (voice.on && voice.channel == channel
-                                && voice.active
-                                && !voice.releaseTriggered) {
+                    for (int i = voiceindex.next(channel, 0); i != -1;
+                            i = voiceindex.next(channel, i + 1)) {
+                        SoftVoice voice = voices[i];
+                        if (voice.on && !voice.releaseTriggered) {
                             voice.portamento = true;
                             voice.setNote(noteNumber);
                             n_found = true;
@@ -464,10 +442,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
 
                 if (controller[84] != 0) {
                     boolean n_found = false;
-                    for (SoftVoice voice : voices) {
-                        if (voice.on && voice.channel == channel
-                                && voice.active
-                                && voice.note == controller[84]
+                    for (int i = voiceindex.next(channel, 0); i != -1;
+                            i = voiceindex.next(channel, i + 1)) {
+                        SoftVoice voice = voices[i];
+                        if (voice.on && voice.note == controller[84]
                                 && !voice.releaseTriggered) {
                             voice.portamento = true;
                             voice.setNote(noteNumber);
@@ -498,6 +476,7 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
                 applyInstrumentCustomization();
             }
             prevVoiceID = synthesizer.voiceIDCounter++;
+            current_instrument.last_used = prevVoiceID;
             firstVoice = true;
             voiceNo = 0;
 
@@ -564,22 +543,30 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             }
 
             mainmixer.activity();
-            for (SoftVoice voice : voices) {
-                if (voice.on && voice.channel == channel
-                        && voice.note == noteNumber
-                        && !voice.releaseTriggered) {
+            for (int i = voiceindex.firstOnNote(channel, noteNumber);
+                    i != -1; i = voiceindex.nextOnNote(i)) {
+                SoftVoice voice = voices[i];
+                if (voice.on && !voice.releaseTriggered) {
                     voice.noteOff(velocity);
                 }
-                // We must also check stolen voices
-                if (voice.stealer_channel == this && voice.stealer_noteNumber == noteNumber) {
-                    voice.stealer_releaseTriggered = false;
-                    voice.stealer_channel = null;
-                    voice.stealer_performer = null;
-                    voice.stealer_voiceID = -1;
-                    voice.stealer_noteNumber = 0;
-                    voice.stealer_velocity = 0;
-                    voice.stealer_extendedConnectionBlocks = null;
-                    voice.stealer_channelmixer = null;
+            }
+            // We must also check stolen voices, only active voices can
+            // have a stealer.
+            if (voiceindex.stealers != 0) {
+                for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1)) {
+                    SoftVoice voice = voices[i];
+                    if (voice.stealer_channel == this && voice.stealer_noteNumber == noteNumber) {
+                        voiceindex.stealers--;
+                        voice.stealer_releaseTriggered = false;
+                        voice.stealer_channel = null;
+                        voice.stealer_performer = null;
+                        voice.stealer_voiceID = -1;
+                        voice.stealer_noteNumber = 0;
+                        voice.stealer_velocity = 0;
+                        voice.stealer_extendedConnectionBlocks = null;
+                        voice.stealer_channelmixer = null;
+                        voiceindex.stealCancelled(voice);
+                    }
                 }
             }
 
@@ -635,9 +622,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             firstVoice = false;
             if (p.exclusiveClass != 0) {
                 int x = p.exclusiveClass;
-                for (SoftVoice voice : voices) {
-                    if (voice.active && voice.channel == channel
-                            && voice.exclusiveClass == x) {
+                for (int i = voiceindex.next(channel, 0); i != -1;
+                        i = voiceindex.next(channel, i + 1)) {
+                    SoftVoice voice = voices[i];
+                    if (voice.exclusiveClass == x) {
                         if (!(p.selfNonExclusive && voice.note == noteNumber))
                             voice.shutdown();
                     }
@@ -651,7 +639,8 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             return;
 
         initVoice(voices[voiceNo], p, prevVoiceID, noteNumber, velocity, delay,
-                connectionBlocks, current_mixer, releasetriggered);
+                connectionBlocks, current_mixer != null ? current_mixer
+                        : output_mixer, releasetriggered);
     }
 
     public void noteOff(int noteNumber) {
@@ -670,10 +659,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             mainmixer.activity();
             co_midi[noteNumber].get(0, "poly_pressure")[0] = pressure*(1.0/128.0);
             polypressure[noteNumber] = pressure;
-            for (SoftVoice voice : voices) {
-                if (voice.active && voice.note == noteNumber)
-                    voice.setPolyPressure(pressure);
-            }
+            for (int i = voiceindex.firstOnNote(channel, noteNumber);
+                    i != -1; i = voiceindex.nextOnNote(i))
+                voices[i].setPolyPressure(pressure);
         }
     }
 
@@ -691,10 +679,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             mainmixer.activity();
             co_midi_channel_pressure[0] = pressure * (1.0 / 128.0);
             channelpressure = pressure;
-            for (SoftVoice voice : voices) {
-                if (voice.active)
-                    voice.setChannelPressure(pressure);
-            }
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].setChannelPressure(pressure);
         }
     }
 
@@ -1025,17 +1012,17 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         }
 
         if (controller < 120) {
-            for (SoftVoice voice : voices)
-                if (voice.active)
-                    voice.controlChange(controller, -1);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].controlChange(controller, -1);
         } else if (controller == 120) {
-            for (SoftVoice voice : voices)
-                if (voice.active)
-                    voice.rpnChange(1, -1);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].rpnChange(1, -1);
         } else if (controller == 121) {
-            for (SoftVoice voice : voices)
-                if (voice.active)
-                    voice.rpnChange(2, -1);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].rpnChange(2, -1);
         }
 
     }
@@ -1117,9 +1104,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
                 if (sustain != on) {
                     sustain = on;
                     if (!on) {
-                        for (SoftVoice voice : voices) {
-                            if (voice.active && voice.sustain &&
-                                    voice.channel == channel) {
+                        for (int i = voiceindex.next(channel, 0); i != -1;
+                                i = voiceindex.next(channel, i + 1)) {
+                            SoftVoice voice = voices[i];
+                            if (voice.sustain) {
                                 voice.sustain = false;
                                 if (!voice.on) {
                                     voice.on = true;
@@ -1128,9 +1116,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
                             }
                         }
                     } else {
-                        for (SoftVoice voice : voices)
-                            if (voice.active && voice.channel == channel)
-                                voice.redamp();
+                        for (int i = voiceindex.next(channel, 0); i != -1;
+                                i = voiceindex.next(channel, i + 1))
+                            voices[i].redamp();
                     }
                 }
                 break;
@@ -1147,17 +1135,17 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             case 66: // Sostenuto (cc#66)
                 on = value >= 64;
                 if (on) {
-                    for (SoftVoice voice : voices) {
-                        if (voice.active && voice.on &&
-                                voice.channel == channel) {
-                            voice.sostenuto = true;
-                        }
+                    for (int i = voiceindex.next(channel, 0); i != -1;
+                            i = voiceindex.next(channel, i + 1)) {
+                        if (voices[i].on)
+                            voices[i].sostenuto = true;
                     }
                 }
                 if (!on) {
-                    for (SoftVoice voice : voices) {
-                        if (voice.active && voice.sostenuto &&
-                                voice.channel == channel) {
+                    for (int i = voiceindex.next(channel, 0); i != -1;
+                            i = voiceindex.next(channel, i + 1)) {
+                        SoftVoice voice = voices[i];
+                        if (voice.sostenuto) {
                             voice.sostenuto = false;
                             if (!voice.on) {
                                 voice.on = true;
@@ -1229,9 +1217,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if(controller < 0x20)
                 this.controller[controller + 0x20] = 0;
 
-            for (SoftVoice voice : voices)
-                if (voice.active)
-                    voice.controlChange(controller, value);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].controlChange(controller, value);
 
         }
     }
@@ -1286,9 +1274,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             mainmixer.activity();
             co_midi_pitch[0] = bend * (1.0 / 16384.0);
             pitchbend = bend;
-            for (SoftVoice voice : voices)
-                if (voice.active)
-                    voice.setPitchBend(bend);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].setPitchBend(bend);
         }
     }
 
@@ -1351,9 +1339,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         val_i[0] = value;
         val_d[0] = val_i[0] * (1.0 / 16384.0);
 
-        for (SoftVoice voice : voices)
-            if (voice.active)
-                voice.nrpnChange(controller, val_i[0]);
+        for (int i = voiceindex.next(channel, 0); i != -1;
+                i = voiceindex.next(channel, i + 1))
+            voices[i].nrpnChange(controller, val_i[0]);
 
     }
 
@@ -1388,9 +1376,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         val_i[0] = value;
         val_d[0] = val_i[0] * (1.0 / 16384.0);
 
-        for (SoftVoice voice : voices)
-            if (voice.active)
-                voice.rpnChange(controller, val_i[0]);
+        for (int i = voiceindex.next(channel, 0); i != -1;
+                i = voiceindex.next(channel, i + 1))
+            voices[i].rpnChange(controller, val_i[0]);
     }
 
     public void resetAllControllers() {
@@ -1462,11 +1450,13 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         if (current_mixer != null)
             current_mixer.allNotesOff();
         synchronized (control_mutex) {
-            for (SoftVoice voice : voices)
-                if (voice.on && voice.channel == channel
-                        && !voice.releaseTriggered) {
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1)) {
+                SoftVoice voice = voices[i];
+                if (voice.on && !voice.releaseTriggered) {
                     voice.noteOff(0);
                 }
+            }
         }
     }
 
@@ -1474,9 +1464,10 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
         if (current_mixer != null)
             current_mixer.allSoundOff();
         synchronized (control_mutex) {
-            for (SoftVoice voice : voices)
-                if (voice.on && voice.channel == channel)
-                    voice.soundOff();
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                if (voices[i].on)
+                    voices[i].soundOff();
         }
     }
 
@@ -1515,9 +1506,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             current_mixer.setMute(mute);
         synchronized (control_mutex) {
             this.mute = mute;
-            for (SoftVoice voice : voices)
-                if (voice.active && voice.channel == channel)
-                    voice.setMute(mute);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].setMute(mute);
         }
     }
 
@@ -1560,9 +1551,9 @@ public class SoftChannel implements MidiChannel, ModelDirectedPlayer {
             if (solomute == mute)
                 return;
             this.solomute = mute;
-            for (SoftVoice voice : voices)
-                if (voice.active && voice.channel == channel)
-                    voice.setSoloMute(solomute);
+            for (int i = voiceindex.next(channel, 0); i != -1;
+                    i = voiceindex.next(channel, i + 1))
+                voices[i].setSoloMute(solomute);
         }
     }
 
@@ -0,0 +1,39 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Limits the number of voices of each channel. A channel which already
+ * uses its limit steals from its own voices, oldest released voice first,
+ * otherwise voices are stolen like SoftReleaseFirstStealingPolicy does.
+ */
+public class SoftChannelLimitStealingPolicy
+        extends SoftReleaseFirstStealingPolicy {
+
+    private final int limit;
+
+    public SoftChannelLimitStealingPolicy(int limit) {
+        if (limit < 1)
+            throw new IllegalArgumentException("Invalid voice limit.");
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int selectChannelVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        if (index.getActiveCount(channel) < limit)
+            return -1;
+        int oldest = -1;
+        for (int i = index.oldest(); i != -1; i = index.younger(i)) {
+            SoftVoice voice = voices[i];
+            if (voice.channel != channel || voice.isStolen())
+                continue;
+            if (voice.isReleased())
+                return i;
+            if (oldest == -1)
+                oldest = i;
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,75 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Hann windowed sinc interpolation resampler with anti-alias filtering,
+ * using a much smaller table than SoftSincResampler.
+ *
+ * The table has a quarter of the anti-alias scales and 64 fractional
+ * phases, and the filter is linearly interpolated between the two phases
+ * around each sample position. The shared table is about 200 KB instead
+ * of about 9.6 MB.
+ */
+public class SoftCompactSincResampler extends SoftAbstractResampler {
+
+    private static final int SCALE_STEP = 4;
+    private static final int PHASES = 64;
+
+    // Shared by all instances, see SoftSincTable
+    private static final SoftSincTable table = new SoftSincTable(
+            100 / SCALE_STEP, SCALE_STEP, PHASES, 1, 30);
+
+    int sinc_table_size = 30;
+    int sinc_table_center = sinc_table_size / 2;
+
+    public int getPadding() // must be at least half of sinc_table_size
+    {
+        return sinc_table_size / 2 + 2;
+    }
+
+    public void interpolate(float[] in, float[] in_offset, float in_end,
+            float[] startpitch, float pitchstep, float[] out, int[] out_offset,
+            int out_end) {
+        float pitch = startpitch[0];
+        float ix = in_offset[0];
+        int ox = out_offset[0];
+        float ix_end = in_end;
+        int ox_end = out_end;
+        int max_p = table.getScaleCount() - 1;
+        int last_p = -1;
+        float[][] sinc_table_f = null;
+        while (ix < ix_end && ox < ox_end) {
+            int iix = (int) ix;
+            int p = (int) ((pitch - 1) * (10.0f / SCALE_STEP));
+            if (p < 0)
+                p = 0;
+            else if (p > max_p)
+                p = max_p;
+            if (p != last_p) {
+                sinc_table_f = table.getRow(p);
+                last_p = p;
+            }
+
+            float phase = (ix - iix) * PHASES;
+            int iphase = (int) phase;
+            float frac = phase - iphase;
+            float[] sinc_table_a = sinc_table_f[iphase];
+            float[] sinc_table_b = sinc_table_f[iphase + 1];
+            int xx = iix - sinc_table_center;
+            float ya = 0;
+            float yb = 0;
+            for (int i = 0; i < sinc_table_size; i++, xx++) {
+                float v = in[xx];
+                ya += v * sinc_table_a[i];
+                yb += v * sinc_table_b[i];
+            }
+            out[ox++] = ya + (yb - ya) * frac;
+
+            ix += pitch;
+            pitch += pitchstep;
+        }
+        in_offset[0] = ix;
+        out_offset[0] = ox;
+        startpitch[0] = pitch;
+
+    }
+}
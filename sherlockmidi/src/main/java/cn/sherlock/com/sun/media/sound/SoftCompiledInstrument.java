@@ -0,0 +1,79 @@
+package cn.sherlock.com.sun.media.sound;
+
+import jp.kshoji.javax.sound.midi.MidiChannel;
+import jp.kshoji.javax.sound.midi.Patch;
+import jp.kshoji.javax.sound.midi.Soundbank;
+
+/**
+ * An instrument read from a soundbank cache file, see SoftSoundbankCache.
+ *
+ * Besides its performers it holds what SoftPerformer and
+ * ModelStandardIndexedDirector computed from them when the cache was
+ * written, so loading and playing the instrument does not compile the
+ * performers again.
+ */
+public class SoftCompiledInstrument extends ModelInstrument {
+
+    private final ModelPerformer[] performers;
+    // Connections compiled by SoftPerformer, for each performer
+    private final ModelConnectionBlock[][] connections;
+    private final boolean[] forcedVelocity;
+    private final boolean[] forcedKeynumber;
+    // Index tables of ModelStandardIndexedDirector for all performers
+    private final byte[][] trantables;
+    private final int[] counters;
+    private final int[][] mat;
+
+    SoftCompiledInstrument(Soundbank soundbank, Patch patch, String name,
+            ModelPerformer[] performers, ModelConnectionBlock[][] connections,
+            boolean[] forcedVelocity, boolean[] forcedKeynumber,
+            byte[][] trantables, int[] counters, int[][] mat) {
+        super(soundbank, patch, name, null);
+        this.performers = performers;
+        this.connections = connections;
+        this.forcedVelocity = forcedVelocity;
+        this.forcedKeynumber = forcedKeynumber;
+        this.trantables = trantables;
+        this.counters = counters;
+        this.mat = mat;
+    }
+
+    public Object getData() {
+        return null;
+    }
+
+    public ModelPerformer[] getPerformers() {
+        return performers.clone();
+    }
+
+    private boolean isAllPerformers(ModelPerformer[] performers) {
+        if (performers.length != this.performers.length)
+            return false;
+        for (int i = 0; i < performers.length; i++)
+            if (performers[i] != this.performers[i])
+                return false;
+        return true;
+    }
+
+    public ModelDirector getDirector(ModelPerformer[] performers,
+            MidiChannel channel, ModelDirectedPlayer player) {
+        if (!isAllPerformers(performers))
+            return super.getDirector(performers, channel, player);
+        return new ModelStandardIndexedDirector(performers, player,
+                trantables, counters, mat);
+    }
+
+    /**
+     * Returns a SoftPerformer for performer, from the compiled connections
+     * if it is one of the performers of this instrument.
+     */
+    SoftPerformer createSoftPerformer(ModelPerformer performer) {
+        for (int i = 0; i < performers.length; i++) {
+            if (performers[i] == performer) {
+                return new SoftPerformer(performer, connections[i],
+                        forcedVelocity[i], forcedKeynumber[i]);
+            }
+        }
+        return new SoftPerformer(performer);
+    }
+}
@@ -0,0 +1,478 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+import cn.sherlock.javax.sound.sampled.AudioInputStream;
+
+/**
+ * Plays samples straight from disk, for soundbanks too large to load.
+ *
+ * Only the start of each sample, and everything from its loop start on,
+ * are loaded into memory. A voice plays the start from memory while a
+ * background thread reads the rest of the sample from the file into a
+ * ring buffer of the voice, the loop is played from memory again. The
+ * ring buffers are allocated once for the polyphony of the synthesizer
+ * and reused by the following notes. When
+ * the thread has not read far enough the voice plays silence instead of
+ * waiting for the disk, these underruns are counted.
+ *
+ * Only file backed samples of ModelByteBufferWavetable with a known
+ * format and without a 24-bit extension are streamed, other wavetables
+ * play as before.
+ */
+public class SoftDiskStreamer {
+
+    // Bytes read from disk for a voice at once
+    private static final int READ_SIZE = 16384;
+
+    // Loop starts are preloaded from this many frames before, resamplers
+    // mark a sector before the loop start and read a few frames around it
+    private static final int LOOP_MARGIN = 1024;
+
+    private static class Preload {
+        File file;
+        long fileoffset;
+        long length;
+        byte[] head;
+        long tail_from;
+        byte[] tail;
+    }
+
+    // A ring buffer, used by one stream at a time
+    private static class Ring {
+        final byte[] data;
+        // The stream reading the ring, null if it is free
+        volatile Stream stream = null;
+
+        Ring(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private class Stream extends InputStream {
+
+        private final Preload preload;
+        private final Ring owner;
+        private final byte[] ring;
+        private long pos = 0;
+        private long markpos = 0;
+        // Ring holds the bytes from fill_start to fill_end, guarded by this
+        private long fill_start;
+        private long fill_end;
+        private volatile boolean failed = false;
+
+        Stream(Preload preload, Ring owner) {
+            this.preload = preload;
+            this.owner = owner;
+            ring = owner.data;
+            fill_start = preload.head.length;
+            fill_end = fill_start;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            Preload p = preload;
+            if (pos >= p.length || owner.stream != this)
+                return -1;
+            if (len > p.length - pos)
+                len = (int) (p.length - pos);
+            int done = 0;
+            while (done != len) {
+                int n;
+                if (pos < p.head.length) {
+                    n = (int) Math.min(len - done, p.head.length - pos);
+                    System.arraycopy(p.head, (int) pos, b, off + done, n);
+                } else if (pos >= p.tail_from) {
+                    n = len - done;
+                    System.arraycopy(p.tail, (int) (pos - p.tail_from),
+                            b, off + done, n);
+                } else {
+                    n = (int) Math.min(len - done, p.tail_from - pos);
+                    readRing(b, off + done, n);
+                }
+                pos += n;
+                done += n;
+            }
+            return len;
+        }
+
+        private void readRing(byte[] b, int off, int len) {
+            long p = pos;
+            int avail;
+            synchronized (this) {
+                if (p < fill_start || p > fill_end) {
+                    // Skipped or looped outside the ring, read from p on
+                    fill_start = p;
+                    fill_end = p;
+                }
+                avail = (int) Math.min(len, fill_end - p);
+            }
+            int ix = (int) (p % ring.length);
+            int n = Math.min(avail, ring.length - ix);
+            System.arraycopy(ring, ix, b, off, n);
+            System.arraycopy(ring, 0, b, off + n, avail - n);
+            if (avail != len) {
+                // The disk can not keep up, play silence
+                Arrays.fill(b, off + avail, off + len, (byte) 0);
+                underruns.incrementAndGet();
+            }
+            synchronized (this) {
+                fill_start = p + len;
+                if (fill_end < fill_start)
+                    fill_end = fill_start;
+            }
+            LockSupport.unpark(thread);
+        }
+
+        public int read(byte[] b) throws IOException {
+            return read(b, 0, b.length);
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            if (read(b, 0, 1) == -1)
+                return -1;
+            return b[0] & 0xFF;
+        }
+
+        public long skip(long n) throws IOException {
+            if (n < 0)
+                return 0;
+            if (n > preload.length - pos)
+                n = preload.length - pos;
+            pos += n;
+            return n;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(preload.length - pos, Integer.MAX_VALUE);
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public synchronized void mark(int readlimit) {
+            markpos = pos;
+        }
+
+        public synchronized void reset() throws IOException {
+            pos = markpos;
+        }
+
+        public void close() throws IOException {
+            // The ring may already be used by the stream of another note
+            synchronized (rings_lock) {
+                if (owner.stream == this)
+                    owner.stream = null;
+            }
+        }
+
+        // Reads the next bytes of the ring from the file, called from the
+        // streaming thread. Returns false if there is nothing to read.
+        boolean fill(Map<File, RandomAccessFile> files) {
+            if (failed)
+                return false;
+            long start;
+            long limit;
+            synchronized (this) {
+                start = fill_end;
+                limit = Math.min(preload.tail_from, fill_start + ring.length);
+            }
+            if (start >= limit)
+                return false;
+            int ix = (int) (start % ring.length);
+            int n = (int) Math.min(Math.min(limit - start, READ_SIZE),
+                    ring.length - ix);
+            try {
+                RandomAccessFile raf = files.get(preload.file);
+                if (raf == null) {
+                    raf = new RandomAccessFile(preload.file, "r");
+                    files.put(preload.file, raf);
+                }
+                raf.seek(preload.fileoffset + start);
+                raf.readFully(ring, ix, n);
+            } catch (IOException e) {
+                // The voice plays silence from here
+                failed = true;
+                return false;
+            }
+            synchronized (this) {
+                // Unless the voice moved, or the note ended, while reading
+                if (fill_end == start && owner.stream == this)
+                    fill_end = start + n;
+            }
+            return true;
+        }
+    }
+
+    private class StreamingWavetable implements ModelWavetable {
+
+        private final ModelByteBufferWavetable wavetable;
+        private final Preload preload;
+
+        StreamingWavetable(ModelByteBufferWavetable wavetable,
+                Preload preload) {
+            this.wavetable = wavetable;
+            this.preload = preload;
+        }
+
+        public AudioFloatInputStream openStream() {
+            Stream stream = acquire(preload);
+            start();
+            LockSupport.unpark(thread);
+            AudioFormat format = wavetable.getFormat();
+            return AudioFloatInputStream.getInputStream(new AudioInputStream(
+                    stream, format, preload.length / format.getFrameSize()));
+        }
+
+        public float getLoopLength() {
+            return wavetable.getLoopLength();
+        }
+
+        public float getLoopStart() {
+            return wavetable.getLoopStart();
+        }
+
+        public int getLoopType() {
+            return wavetable.getLoopType();
+        }
+
+        public float getPitchcorrection() {
+            return wavetable.getPitchcorrection();
+        }
+
+        public int getChannels() {
+            return wavetable.getChannels();
+        }
+
+        public float getAttenuation() {
+            return wavetable.getAttenuation();
+        }
+
+        public ModelOscillatorStream open(float samplerate) {
+            return null;
+        }
+    }
+
+    private final int preload_time;
+    private final int ring_size;
+    private final Map<ModelByteBuffer, Preload> preloads
+            = new IdentityHashMap<ModelByteBuffer, Preload>();
+    // Read by the streaming thread without locking, replaced when grown
+    private volatile Ring[] rings;
+    private final Object rings_lock = new Object();
+    private final AtomicLong underruns = new AtomicLong(0);
+    private volatile Thread thread = null;
+    private volatile boolean running = false;
+
+    /**
+     * @param preload_time milliseconds of the start of each sample to
+     *        keep in memory
+     * @param ring_size bytes of the ring buffer of each voice
+     * @param polyphony number of ring buffers to allocate up front, one
+     *        for each voice that can play at once
+     */
+    public SoftDiskStreamer(int preload_time, int ring_size, int polyphony) {
+        if (preload_time < 0)
+            throw new IllegalArgumentException("Negative preload time.");
+        if (ring_size < 1)
+            throw new IllegalArgumentException("Invalid ring buffer size.");
+        if (polyphony < 0)
+            throw new IllegalArgumentException("Negative polyphony.");
+        this.preload_time = preload_time;
+        this.ring_size = ring_size;
+        rings = new Ring[polyphony];
+        for (int i = 0; i < polyphony; i++)
+            rings[i] = new Ring(ring_size);
+    }
+
+    // Takes a free ring for a new stream of preload, called from the
+    // audio thread. Only allocates if more streams are open than rings.
+    private Stream acquire(Preload preload) {
+        synchronized (rings_lock) {
+            Ring[] r = rings;
+            for (int i = 0; i < r.length; i++) {
+                if (r[i].stream == null) {
+                    Stream stream = new Stream(preload, r[i]);
+                    r[i].stream = stream;
+                    return stream;
+                }
+            }
+            Ring ring = new Ring(ring_size);
+            Ring[] grown = Arrays.copyOf(r, r.length + 1);
+            grown[r.length] = ring;
+            Stream stream = new Stream(preload, ring);
+            ring.stream = stream;
+            rings = grown;
+            return stream;
+        }
+    }
+
+    private static byte[] readFully(RandomAccessFile raf, long pos, int len)
+            throws IOException {
+        byte[] b = new byte[len];
+        raf.seek(pos);
+        raf.readFully(b);
+        return b;
+    }
+
+    /**
+     * Load the start and the loop of the samples played by performers.
+     */
+    public void preload(ModelPerformer[] performers) throws IOException {
+        for (ModelPerformer performer : performers) {
+            if (performer.getOscillators() == null)
+                continue;
+            for (ModelOscillator osc : performer.getOscillators())
+                if (osc instanceof ModelByteBufferWavetable)
+                    preload((ModelByteBufferWavetable) osc);
+        }
+    }
+
+    private void preload(ModelByteBufferWavetable wavetable)
+            throws IOException {
+        ModelByteBuffer buffer = wavetable.getBuffer();
+        if (buffer == null || buffer.array() != null
+                || buffer.getRoot().getFile() == null
+                || wavetable.get8BitExtensionBuffer() != null
+                || !wavetable.isRawData())
+            return;
+        AudioFormat format = wavetable.getFormat();
+        int framesize = format.getFrameSize();
+        long length = buffer.capacity();
+        long head = (long) (format.getFrameRate() * preload_time / 1000.0)
+                * framesize;
+        head = Math.min(head, length);
+        long tail_from = length;
+        if (wavetable.getLoopType() != ModelWavetable.LOOP_TYPE_OFF) {
+            long loopstart = (long) wavetable.getLoopStart() - LOOP_MARGIN;
+            tail_from = Math.max(head, Math.max(0, loopstart) * framesize);
+        }
+
+        synchronized (preloads) {
+            Preload p = preloads.get(buffer);
+            // Regions sharing a sample can have different loops
+            if (p != null && p.tail_from <= tail_from)
+                return;
+            File file = buffer.getRoot().getFile();
+            long fileoffset = buffer.getRoot().getFilePointer()
+                    + buffer.arrayOffset();
+            // Voices may be playing p, it is replaced instead of changed
+            Preload preload = new Preload();
+            preload.file = file;
+            preload.fileoffset = fileoffset;
+            preload.length = length;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (p != null)
+                    preload.head = p.head;
+                else
+                    preload.head = readFully(raf, fileoffset, (int) head);
+                tail_from = Math.max(tail_from, preload.head.length);
+                preload.tail = readFully(raf, fileoffset + tail_from,
+                        (int) (length - tail_from));
+                preload.tail_from = tail_from;
+            } finally {
+                raf.close();
+            }
+            preloads.put(buffer, preload);
+        }
+    }
+
+    /**
+     * Returns the wavetable to play osc with, a wavetable streaming from
+     * disk if the sample of osc has been preloaded.
+     */
+    public ModelWavetable open(ModelWavetable osc) {
+        if (!(osc instanceof ModelByteBufferWavetable))
+            return osc;
+        ModelByteBufferWavetable wavetable = (ModelByteBufferWavetable) osc;
+        Preload preload;
+        synchronized (preloads) {
+            preload = preloads.get(wavetable.getBuffer());
+        }
+        if (preload == null || preload.tail_from == preload.head.length)
+            return osc; // all in memory
+        return new StreamingWavetable(wavetable, preload);
+    }
+
+    private synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread("Disk streamer") {
+            public void run() {
+                Map<File, RandomAccessFile> files
+                        = new HashMap<File, RandomAccessFile>();
+                try {
+                    while (running) {
+                        boolean read = false;
+                        for (Ring ring : rings) {
+                            Stream stream = ring.stream;
+                            if (stream != null && stream.fill(files))
+                                read = true;
+                        }
+                        if (!read)
+                            LockSupport.parkNanos(5000000);
+                    }
+                } finally {
+                    for (RandomAccessFile raf : files.values()) {
+                        try {
+                            raf.close();
+                        } catch (IOException e) {
+                            //e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Stop streaming and release the preloaded samples.
+     */
+    public synchronized void close() {
+        running = false;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        synchronized (rings_lock) {
+            for (Ring ring : rings)
+                ring.stream = null;
+        }
+        synchronized (preloads) {
+            preloads.clear();
+        }
+    }
+
+    /**
+     * Bytes of sample data held in memory.
+     */
+    public long getPreloadedBytes() {
+        long bytes = 0;
+        synchronized (preloads) {
+            for (Preload p : preloads.values())
+                bytes += p.head.length + p.tail.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Number of reads the disk could not keep up with, played as silence.
+     */
+    public long getUnderrunCount() {
+        return underruns.get();
+    }
+}
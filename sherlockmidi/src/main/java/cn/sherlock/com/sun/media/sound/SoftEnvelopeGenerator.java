@@ -46,6 +46,9 @@ public class SoftEnvelopeGenerator implements SoftProcess {
     private int[] stage_ix = new int[max_count];
     private double[] stage_v = new double[max_count];
     private int[] stage_count = new int[max_count];
+    // Part of a step the release or shutdown stage is behind stage_ix,
+    // when it started inside a control block
+    private double[] stage_frac = new double[max_count];
     private double[][] on = new double[max_count][1];
     private double[][] active = new double[max_count][1];
     private double[][] out = new double[max_count][1];
@@ -64,6 +67,7 @@ public class SoftEnvelopeGenerator implements SoftProcess {
     public void reset() {
         for (int i = 0; i < used_count; i++) {
             stage[i] = 0;
+            stage_frac[i] = 0;
             on[i][0] = 0;
             out[i][0] = 0;
             delay[i][0] = 0;
@@ -118,47 +122,88 @@ public class SoftEnvelopeGenerator implements SoftProcess {
         return null;
     }
 
+    // Starts the release or shutdown stage if on has gone off
+    private void processGate(int i) {
+        if ((stage[i] > EG_OFF) && (stage[i] < EG_RELEASE)) {
+            if (on[i][0] < 0.5) {
+                stage_frac[i] = 0;
+                if (on[i][0] < -0.5) {
+                    stage_count[i] = (int)(Math.pow(2,
+                            this.shutdown[i][0] / 1200.0) / control_time);
+                    if (stage_count[i] < 0)
+                        stage_count[i] = 0;
+                    stage_v[i] = out[i][0];
+                    stage_ix[i] = 0;
+                    stage[i] = EG_SHUTDOWN;
+                } else {
+                    if ((release2[i][0] < 0.000001) && release[i][0] < 0
+                            && Double.isInfinite(release[i][0])) {
+                        out[i][0] = 0;
+                        active[i][0] = 0;
+                        stage[i] = EG_END;
+                        return;
+                    }
+
+                    stage_count[i] = (int)(Math.pow(2,
+                            this.release[i][0] / 1200.0) / control_time);
+                    stage_count[i]
+                            += (int)(this.release2[i][0]/(control_time * 1000));
+                    if (stage_count[i] < 0)
+                        stage_count[i] = 0;
+                    // stage_v[i] = out[i][0];
+                    stage_ix[i] = 0;
+
+                    double m = 1 - out[i][0];
+                    stage_ix[i] = (int)(stage_count[i] * m);
+
+                    stage[i] = EG_RELEASE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start the release or shutdown of the envelopes whose on input went
+     * off inside a control block, fraction is the part of the block left
+     * after it. The output is set to where the envelope is at the end of
+     * the block, the other stages still only change in
+     * processControlLogic.
+     */
+    public void processGateLogic(double fraction) {
+        for (int i = 0; i < used_count; i++) {
+            int before = stage[i];
+            if (before == EG_END)
+                continue;
+            processGate(i);
+            if (stage[i] == before || stage[i] == EG_END)
+                continue;
+            // One step ahead, less the part of it before the gate change
+            stage_ix[i]++;
+            stage_frac[i] = 1 - fraction;
+            if (stage_ix[i] - stage_frac[i] >= stage_count[i]) {
+                out[i][0] = 0;
+                active[i][0] = 0;
+                stage[i] = EG_END;
+            } else {
+                double m = (stage_ix[i] - stage_frac[i])
+                        / ((double)stage_count[i]);
+                if (stage[i] == EG_RELEASE)
+                    out[i][0] = 1 - m;
+                else
+                    out[i][0] = (1 - m) * stage_v[i];
+            }
+        }
+    }
+
     public void processControlLogic() {
         for (int i = 0; i < used_count; i++) {
 
             if (stage[i] == EG_END)
                 continue;
 
-            if ((stage[i] > EG_OFF) && (stage[i] < EG_RELEASE)) {
-                if (on[i][0] < 0.5) {
-                    if (on[i][0] < -0.5) {
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.shutdown[i][0] / 1200.0) / control_time);
-                        if (stage_count[i] < 0)
-                            stage_count[i] = 0;
-                        stage_v[i] = out[i][0];
-                        stage_ix[i] = 0;
-                        stage[i] = EG_SHUTDOWN;
-                    } else {
-                        if ((release2[i][0] < 0.000001) && release[i][0] < 0
-                                && Double.isInfinite(release[i][0])) {
-                            out[i][0] = 0;
-                            active[i][0] = 0;
-                            stage[i] = EG_END;
-                            continue;
-                        }
-
-                        stage_count[i] = (int)(Math.pow(2,
-                                this.release[i][0] / 1200.0) / control_time);
-                        stage_count[i]
-                                += (int)(this.release2[i][0]/(control_time * 1000));
-                        if (stage_count[i] < 0)
-                            stage_count[i] = 0;
-                        // stage_v[i] = out[i][0];
-                        stage_ix[i] = 0;
-
-                        double m = 1 - out[i][0];
-                        stage_ix[i] = (int)(stage_count[i] * m);
-
-                        stage[i] = EG_RELEASE;
-                    }
-                }
-            }
+            processGate(i);
+            if (stage[i] == EG_END)
+                continue;
 
             switch (stage[i]) {
             case EG_OFF:
@@ -242,12 +287,13 @@ public class SoftEnvelopeGenerator implements SoftProcess {
                 break;
             case EG_RELEASE:
                 stage_ix[i]++;
-                if (stage_ix[i] >= stage_count[i]) {
+                if (stage_ix[i] - stage_frac[i] >= stage_count[i]) {
                     out[i][0] = 0;
                     active[i][0] = 0;
                     stage[i] = EG_END;
                 } else {
-                    double m = ((double)stage_ix[i]) / ((double)stage_count[i]);
+                    double m = (stage_ix[i] - stage_frac[i])
+                            / ((double)stage_count[i]);
                     out[i][0] = (1 - m); // *stage_v[i];
 
                     if (on[i][0] < -0.5) {
@@ -257,6 +303,7 @@ public class SoftEnvelopeGenerator implements SoftProcess {
                             stage_count[i] = 0;
                         stage_v[i] = out[i][0];
                         stage_ix[i] = 0;
+                        stage_frac[i] = 0;
                         stage[i] = EG_SHUTDOWN;
                     }
 
@@ -280,12 +327,13 @@ public class SoftEnvelopeGenerator implements SoftProcess {
                 break;
             case EG_SHUTDOWN:
                 stage_ix[i]++;
-                if (stage_ix[i] >= stage_count[i]) {
+                if (stage_ix[i] - stage_frac[i] >= stage_count[i]) {
                     out[i][0] = 0;
                     active[i][0] = 0;
                     stage[i] = EG_END;
                 } else {
-                    double m = ((double)stage_ix[i]) / ((double)stage_count[i]);
+                    double m = (stage_ix[i] - stage_frac[i])
+                            / ((double)stage_count[i]);
                     out[i][0] = (1 - m) * stage_v[i];
                 }
                 break;
@@ -129,25 +129,37 @@ public class SoftFilter {
     }
 
     public void processAudio(SoftAudioBuffer sbuffer) {
+        float[] buffer = sbuffer.array();
+        processAudio(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Filter samples [from, to) of buffer, coefficient changes are ramped
+     * over that range.
+     */
+    public void processAudio(float[] buffer, int from, int to) {
         if (filtertype == FILTERTYPE_LP6)
-            filter1(sbuffer);
+            filter1(buffer, from, to);
         if (filtertype == FILTERTYPE_LP12)
-            filter2(sbuffer);
+            filter2(buffer, from, to);
         if (filtertype == FILTERTYPE_HP12)
-            filter2(sbuffer);
+            filter2(buffer, from, to);
         if (filtertype == FILTERTYPE_BP12)
-            filter2(sbuffer);
+            filter2(buffer, from, to);
         if (filtertype == FILTERTYPE_NP12)
-            filter2(sbuffer);
+            filter2(buffer, from, to);
         if (filtertype == FILTERTYPE_LP24)
-            filter4(sbuffer);
+            filter4(buffer, from, to);
         if (filtertype == FILTERTYPE_HP24)
-            filter4(sbuffer);
+            filter4(buffer, from, to);
     }
 
     public void filter4(SoftAudioBuffer sbuffer) {
-
         float[] buffer = sbuffer.array();
+        filter4(buffer, 0, buffer.length);
+    }
+
+    public void filter4(float[] buffer, int from, int to) {
 
         if (dirty) {
             filter2calc();
@@ -166,7 +178,7 @@ public class SoftFilter {
 
         if (wet > 0 || last_wet > 0) {
 
-            int len = buffer.length;
+            int len = to - from;
             float a0 = this.last_a0;
             float a1 = this.last_a1;
             float a2 = this.last_a2;
@@ -191,7 +203,7 @@ public class SoftFilter {
             float yy2 = this.yy2;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -215,7 +227,7 @@ public class SoftFilter {
                 }
             } else if (a0_delta == 0 && a1_delta == 0 && a2_delta == 0
                     && b1_delta == 0 && b2_delta == 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     float x = buffer[i];
                     float y = (a0*x + a1*x1 + a2*x2 - b1*y1 - b2*y2);
                     float xx = (y * gain) * wet + (x) * (1 - wet);
@@ -231,7 +243,7 @@ public class SoftFilter {
                     yy1 = yy;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -411,8 +423,11 @@ public class SoftFilter {
     }
 
     public void filter2(SoftAudioBuffer sbuffer) {
-
         float[] buffer = sbuffer.array();
+        filter2(buffer, 0, buffer.length);
+    }
+
+    public void filter2(float[] buffer, int from, int to) {
 
         if (dirty) {
             filter2calc();
@@ -432,7 +447,7 @@ public class SoftFilter {
 
         if (wet > 0 || last_wet > 0) {
 
-            int len = buffer.length;
+            int len = to - from;
             float a0 = this.last_a0;
             float a1 = this.last_a1;
             float a2 = this.last_a2;
@@ -453,7 +468,7 @@ public class SoftFilter {
             float y2 = this.y2;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -471,7 +486,7 @@ public class SoftFilter {
                 }
             } else if (a0_delta == 0 && a1_delta == 0 && a2_delta == 0
                     && b1_delta == 0 && b2_delta == 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     float x = buffer[i];
                     float y = (a0*x + a1*x1 + a2*x2 - b1*y1 - b2*y2);
                     buffer[i] = y * gain;
@@ -481,7 +496,7 @@ public class SoftFilter {
                     y1 = y;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     a1 += a1_delta;
                     a2 += a2_delta;
@@ -542,6 +557,11 @@ public class SoftFilter {
     }
 
     public void filter1(SoftAudioBuffer sbuffer) {
+        float[] buffer = sbuffer.array();
+        filter1(buffer, 0, buffer.length);
+    }
+
+    public void filter1(float[] buffer, int from, int to) {
 
         if (dirty) {
             filter1calc();
@@ -557,8 +577,7 @@ public class SoftFilter {
 
         if (wet > 0 || last_wet > 0) {
 
-            float[] buffer = sbuffer.array();
-            int len = buffer.length;
+            int len = to - from;
             float a0 = this.last_a0;
             float q = this.last_q;
             float gain = this.last_gain;
@@ -571,7 +590,7 @@ public class SoftFilter {
             float y1 = this.y1;
 
             if (wet_delta != 0) {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     q += q_delta;
                     gain += gain_delta;
@@ -583,13 +602,13 @@ public class SoftFilter {
                 }
             } else if (a0_delta == 0 && q_delta == 0) {
                 float ga0 = (1 - q * a0);
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     y1 = ga0 * y1 + (a0) * (buffer[i] - y2);
                     y2 = ga0 * y2 + (a0) * y1;
                     buffer[i] = y2 * gain;
                 }
             } else {
-                for (int i = 0; i < len; i++) {
+                for (int i = from; i < to; i++) {
                     a0 += a0_delta;
                     q += q_delta;
                     gain += gain_delta;
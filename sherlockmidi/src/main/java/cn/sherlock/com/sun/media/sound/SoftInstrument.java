@@ -38,6 +38,9 @@ public class SoftInstrument extends Instrument {
     private ModelPerformer[] modelperformers;
     private Object data;
     private ModelInstrument ins;
+    // SoftSynthesizer.voiceIDCounter when the instrument last played a
+    // note, guarded by control_mutex
+    long last_used = 0;
 
     public SoftInstrument(ModelInstrument ins) {
         super(ins.getSoundbank(), ins.getPatch(), ins.getName(),
@@ -59,8 +62,10 @@ public class SoftInstrument extends Instrument {
     private void initPerformers(ModelPerformer[] modelperformers) {
         this.modelperformers = modelperformers;
         performers = new SoftPerformer[modelperformers.length];
-        for (int i = 0; i < modelperformers.length; i++)
-            performers[i] = new SoftPerformer(modelperformers[i]);
+        for (int i = 0; i < modelperformers.length; i++) {
+            performers[i] = SoftSoundbankPool.getSoftPerformer(ins,
+                    modelperformers[i]);
+        }
     }
 
     public ModelDirector getDirector(MidiChannel channel,
@@ -68,6 +73,10 @@ public class SoftInstrument extends Instrument {
         return ins.getDirector(modelperformers, channel, player);
     }
 
+    ModelPerformer[] getModelPerformers() {
+        return modelperformers;
+    }
+
     public ModelInstrument getSourceInstrument() {
         return ins;
     }
@@ -0,0 +1,144 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.kshoji.javax.sound.midi.Patch;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+
+/**
+ * The patches a Sequence plays and the keys and velocities it plays them
+ * with.
+ *
+ * Bank selects and program changes are followed per channel the way
+ * SoftChannel does: a bank select only takes effect with the next program
+ * change, and channel 10 plays percussion patches unless the bank is one
+ * of the GM2 banks 0x78 and 0x79. Every channel starts on program 0 of
+ * bank 0. Tunings and system exclusive resets are not followed, so the
+ * keys are the note numbers.
+ */
+public class SoftInstrumentUsage {
+
+    private static class Usage {
+        final Patch patch;
+        // Bit set of the velocities played on each key, 2 words per key
+        final long[] velocities = new long[256];
+
+        Usage(Patch patch) {
+            this.patch = patch;
+        }
+    }
+
+    private final Map<String, Usage> usage
+            = new LinkedHashMap<String, Usage>();
+
+    public SoftInstrumentUsage(Sequence sequence) {
+        int[] bank = new int[16];
+        int[] program_bank = new int[16];
+        int[] program = new int[16];
+        Usage[] current = new Usage[16];
+        SoftOfflineRenderer.MergedEvents events
+                = SoftOfflineRenderer.mergeTracks(sequence);
+        for (int i = 0; i < events.count; i++) {
+            int status;
+            int data1;
+            int data2;
+            if (events.packed[i] >= 0) {
+                status = events.packed[i] & 0xFF;
+                data1 = (events.packed[i] >> 8) & 0xFF;
+                data2 = (events.packed[i] >> 16) & 0xFF;
+            } else if (events.messages[i] instanceof ShortMessage) {
+                ShortMessage sms = (ShortMessage) events.messages[i];
+                status = sms.getStatus();
+                data1 = sms.getData1();
+                data2 = sms.getData2();
+            } else
+                continue;
+            int channel = status & 0x0F;
+            switch (status & 0xF0) {
+            case ShortMessage.CONTROL_CHANGE:
+                if (data1 == 0x00)
+                    bank[channel] = data2 << 7;
+                else if (data1 == 0x20)
+                    bank[channel] = (bank[channel] & (127 << 7)) + data2;
+                break;
+            case ShortMessage.PROGRAM_CHANGE:
+                program_bank[channel] = bank[channel];
+                program[channel] = data1;
+                current[channel] = null;
+                break;
+            case ShortMessage.NOTE_ON:
+                if (data2 == 0)
+                    break;
+                if (current[channel] == null)
+                    current[channel] = getUsage(program_bank[channel],
+                            program[channel], channel);
+                current[channel].velocities[data1 * 2 + (data2 >> 6)]
+                        |= 1L << (data2 & 63);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private Usage getUsage(int bank, int program, int channel) {
+        boolean percussion = channel == 9
+                && bank >> 7 != 0x78 && bank >> 7 != 0x79;
+        String key = (percussion ? "p." : "") + program + "." + bank;
+        Usage u = usage.get(key);
+        if (u == null) {
+            u = new Usage(new ModelPatch(bank, program, percussion));
+            usage.put(key, u);
+        }
+        return u;
+    }
+
+    /**
+     * The patches played, percussion patches are ModelPatch instances with
+     * isPercussion set.
+     */
+    public Patch[] getPatches() {
+        List<Patch> patches = new ArrayList<Patch>();
+        for (Usage u : usage.values())
+            patches.add(u.patch);
+        return patches.toArray(new Patch[patches.size()]);
+    }
+
+    /**
+     * Returns true if patch is played on a key between keyFrom and keyTo
+     * with a velocity between velFrom and velTo, all inclusive.
+     */
+    public boolean isPlayed(Patch patch, int keyFrom, int keyTo,
+            int velFrom, int velTo) {
+        boolean percussion = patch instanceof ModelPatch
+                && ((ModelPatch) patch).isPercussion();
+        Usage u = usage.get((percussion ? "p." : "") + patch.getProgram()
+                + "." + patch.getBank());
+        if (u == null)
+            return false;
+        keyFrom = Math.max(keyFrom, 0);
+        keyTo = Math.min(keyTo, 127);
+        velFrom = Math.max(velFrom, 0);
+        velTo = Math.min(velTo, 127);
+        if (velFrom > velTo)
+            return false;
+        // Mask of the velocities in range, in each of the 2 words
+        long[] mask = new long[2];
+        for (int w = 0; w < 2; w++) {
+            int from = Math.max(velFrom - w * 64, 0);
+            int to = Math.min(velTo - w * 64, 63);
+            if (from <= to)
+                mask[w] = (-1L >>> (63 - to)) & (-1L << from);
+        }
+        for (int key = keyFrom; key <= keyTo; key++) {
+            if ((u.velocities[key * 2] & mask[0]) != 0
+                    || (u.velocities[key * 2 + 1] & mask[1]) != 0)
+                return true;
+        }
+        return false;
+    }
+}
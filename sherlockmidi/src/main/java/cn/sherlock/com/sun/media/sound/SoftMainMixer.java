@@ -29,10 +29,7 @@ import android.support.annotation.NonNull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeMap;
 
 import cn.sherlock.javax.sound.sampled.AudioInputStream;
 import cn.sherlock.javax.sound.sampled.AudioSystem;
@@ -70,7 +67,7 @@ public class SoftMainMixer {
     public final static int CHANNEL_SCRATCH2 = 13;
     protected boolean active_sensing_on = false;
     private long msec_last_activity = -1;
-    private boolean pusher_silent = false;
+    private volatile boolean pusher_silent = false;
     private int pusher_silent_count = 0;
     private long sample_pos;
     protected boolean readfully = true;
@@ -83,11 +80,14 @@ public class SoftMainMixer {
     private SoftReverb reverb;
     private SoftAudioProcessor chorus;
     private SoftAudioProcessor agc;
+    private SoftVoiceRenderPool renderpool = null;
+    private SoftVoiceIndex voiceindex;
     private long msec_buffer_len;
     private int buffer_len;
-    protected TreeMap<Long, Object> midimessages = new TreeMap<>();
+    protected SoftMidiEventQueue midimessages;
     private int delay_midievent = 0;
     private int max_delay_midievent;
+    private boolean sample_accurate = false;
     double last_volume_left = 1.0;
     double last_volume_right = 1.0;
     private double[] co_master_balance = new double[1];
@@ -416,20 +416,81 @@ public class SoftMainMixer {
         }
     }
 
+    private int getEventDelay(long eventTimeStamp, long timeStamp) {
+        long msec_delay = eventTimeStamp - timeStamp;
+        int delay = (int)(msec_delay * (samplerate / 1000000.0) + 0.5);
+        if(delay > max_delay_midievent)
+            delay = max_delay_midievent;
+        if(delay < 0)
+            delay = 0;
+        return delay;
+    }
+
     private void processMessages(long timeStamp) {
-        Iterator<Entry<Long, Object>> iter = midimessages.entrySet().iterator();
-        while (iter.hasNext()) {
-            Entry<Long, Object> entry = iter.next();
-            if (entry.getKey() >= (timeStamp + msec_buffer_len))
-                return;
-            long msec_delay = entry.getKey() - timeStamp;            
-            delay_midievent = (int)(msec_delay * (samplerate / 1000000.0) + 0.5);
-            if(delay_midievent > max_delay_midievent)
-                delay_midievent = max_delay_midievent;
-            if(delay_midievent < 0)
-                delay_midievent = 0;
-            processMessage(entry.getValue());
-            iter.remove();
+        SoftMidiEventQueue queue = midimessages;
+        queue.fill();
+        while (queue.hasNext()) {
+            long eventTimeStamp = queue.nextTimestamp();
+            if (eventTimeStamp >= (timeStamp + msec_buffer_len))
+                break;
+            delay_midievent = getEventDelay(eventTimeStamp, timeStamp);
+            // In sample accurate mode messages inside the block are
+            // processed by processSubBlockMessages
+            if (sample_accurate && delay_midievent != 0)
+                break;
+            byte[] sysex = queue.nextSysex();
+            int message = queue.nextMessage();
+            queue.remove();
+            if (sysex != null)
+                processMessage(sysex);
+            else
+                processMessage(message & 0x0F, message & 0xF0,
+                        (message >> 8) & 0xFF, (message >> 16) & 0xFF);
+        }
+        delay_midievent = 0;
+    }
+
+    private int nextVoice(int channel, int from) {
+        if (channel == -1)
+            return voiceindex.next(from);
+        return voiceindex.next(channel, from);
+    }
+
+    /*
+     * Sample accurate mode: process the messages inside the block after
+     * the control logic. The voices a message affects, all voices of its
+     * channel, are first rendered up to the sample of the message, and
+     * continue with the changed parameters from there. Other voices are
+     * rendered in one piece.
+     */
+    private void processSubBlockMessages(long timeStamp) {
+        SoftMidiEventQueue queue = midimessages;
+        while (queue.hasNext()) {
+            long eventTimeStamp = queue.nextTimestamp();
+            if (eventTimeStamp >= (timeStamp + msec_buffer_len))
+                break;
+            delay_midievent = getEventDelay(eventTimeStamp, timeStamp);
+            byte[] sysex = queue.nextSysex();
+            int message = queue.nextMessage();
+            queue.remove();
+            int channel = -1;
+            if (sysex == null && (message & 0xF0) != 0xF0)
+                channel = message & 0x0F;
+
+            for (int i = nextVoice(channel, 0); i != -1;
+                    i = nextVoice(channel, i + 1))
+                voicestatus[i].processAudioLogic(delay_midievent, buffer_len);
+
+            if (sysex != null)
+                processMessage(sysex);
+            else
+                processMessage(message & 0x0F, message & 0xF0,
+                        (message >> 8) & 0xFF, (message >> 16) & 0xFF);
+
+            for (int i = nextVoice(channel, 0); i != -1;
+                    i = nextVoice(channel, i + 1))
+                voicestatus[i].processMessageLogic(delay_midievent,
+                        buffer_len);
         }
         delay_midievent = 0;
     }
@@ -496,9 +557,12 @@ public class SoftMainMixer {
 
             }
 
-            for (SoftVoice softVoice : voicestatus)
-                if (softVoice.active)
-                    softVoice.processControlLogic();
+            for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1))
+                voicestatus[i].processControlLogic();
+
+            if (sample_accurate)
+                processSubBlockMessages(msec_pos);
+
             sample_pos += buffer_len;
 
             double volume = co_master_volume[0];
@@ -581,12 +645,13 @@ public class SoftMainMixer {
                     cbuffer[1] = buffers[CHANNEL_RIGHT].array();
                 
                 boolean hasactivevoices = false;
-                for (SoftVoice softVoice : voicestatus)
-                    if (softVoice.active)
-                        if (softVoice.channelmixer == cmixer.mixer) {
-                            softVoice.processAudioLogic(buffers);
-                            hasactivevoices = true;
-                        }
+                for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1)) {
+                    SoftVoice softVoice = voicestatus[i];
+                    if (softVoice.channelmixer == cmixer.mixer) {
+                        softVoice.processAudioLogic(buffers);
+                        hasactivevoices = true;
+                    }
+                }
                 
 
                 if(!buffers[CHANNEL_MONO].isSilent())
@@ -645,10 +710,12 @@ public class SoftMainMixer {
 
         }
 
-        for (SoftVoice softVoice : voicestatus)
-            if (softVoice.active)
-                if (softVoice.channelmixer == null)
-                    softVoice.processAudioLogic(buffers);
+        if (renderpool != null)
+            renderpool.render(voicestatus, voiceindex, buffers);
+        else
+            for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1))
+                if (voicestatus[i].channelmixer == null)
+                    voicestatus[i].processAudioLogic(buffers);
 
         if(!buffers[CHANNEL_MONO].isSilent())
         {
@@ -728,12 +795,7 @@ public class SoftMainMixer {
             && buffers[CHANNEL_RIGHT].isSilent())
         {       
             
-            int midimessages_size;
-            synchronized (control_mutex) {
-                midimessages_size = midimessages.size();
-            }    
-            
-            if(midimessages_size == 0)
+            if(midimessages.isEmpty())
             {
                 pusher_silent_count++;
                 if(pusher_silent_count > 5)
@@ -755,6 +817,44 @@ public class SoftMainMixer {
 
     }
         
+    /**
+     * Queue a packed short message, see {@link SoftMidiEventQueue#pack}.
+     * The timestamp is in microseconds of the mixer position or
+     * {@link SoftMidiEventQueue#IMMEDIATE}.
+     */
+    public boolean queueMessage(long timeStamp, int message) {
+        boolean ok = midimessages.offer(timeStamp, message);
+        wakeUp();
+        return ok;
+    }
+
+    /**
+     * Queue a system exclusive message, the data array is not copied.
+     */
+    public boolean queueMessage(long timeStamp, byte[] data) {
+        boolean ok = midimessages.offer(timeStamp, data);
+        wakeUp();
+        return ok;
+    }
+
+    // The mixer isn't pulled while the pusher is silent,
+    // queued messages would never be processed.
+    private void wakeUp() {
+        if (pusher_silent) {
+            synchronized (control_mutex) {
+                activity();
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return midimessages.getDepth();
+    }
+
+    public long getQueueDroppedCount() {
+        return midimessages.getDroppedCount();
+    }
+
     // Must only we called within control_mutex synchronization
     public void activity()
     {        
@@ -812,6 +912,9 @@ public class SoftMainMixer {
         buffer_len = buffersize;
         
         max_delay_midievent = buffersize;
+        sample_accurate = synth.sample_accurate;
+
+        midimessages = new SoftMidiEventQueue(synth.midi_queue_size);
 
         control_mutex = synth.control_mutex;
         buffers = new SoftAudioBuffer[14];
@@ -819,6 +922,11 @@ public class SoftMainMixer {
             buffers[i] = new SoftAudioBuffer(buffersize, synth.getFormat());
         }
         voicestatus = synth.getVoices();
+        voiceindex = synth.voiceindex;
+
+        if (synth.render_threads > 1)
+            renderpool = new SoftVoiceRenderPool(synth.render_threads,
+                    voicestatus.length, buffersize, synth.getFormat());
 
         reverb = new SoftReverb();
         chorus = new SoftChorus();
@@ -1132,5 +1240,7 @@ public class SoftMainMixer {
     }
 
     public void close() {
+        if (renderpool != null)
+            renderpool.close();
     }
 }
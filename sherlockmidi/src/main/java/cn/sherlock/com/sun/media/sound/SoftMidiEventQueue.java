@@ -0,0 +1,210 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer queue of timestamped MIDI events.
+ *
+ * Short messages are packed into an int as
+ * <code>status | (data1 &lt;&lt; 8) | (data2 &lt;&lt; 16)</code> and stored
+ * together with their timestamp in primitive arrays, so offering an event
+ * neither locks nor allocates. System exclusive messages keep a reference
+ * to their data in a side buffer.
+ *
+ * Producers may offer from any thread. The consumer (the audio thread)
+ * calls {@link #fill()} once per control block, which moves all offered
+ * events into a private staging area sorted by timestamp, and then takes
+ * the due events from the front of it.
+ */
+public class SoftMidiEventQueue {
+
+    /** Timestamp of events that should be processed as soon as possible. */
+    public static final long IMMEDIATE = -1;
+
+    private final int capacity;
+    private final int mask;
+
+    // Ring buffer, slot ownership is tracked with per-slot sequence numbers
+    private final AtomicLongArray sequence;
+    private final long[] timestamps;
+    private final int[] messages;
+    private final byte[][] sysex;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0;
+
+    // Consumer-only staging area, sorted by timestamp
+    private final long[] pending_timestamps;
+    private final int[] pending_messages;
+    private final byte[][] pending_sysex;
+    private int pending_start = 0;
+    private int pending_end = 0;
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong offered = new AtomicLong(0);
+
+    public SoftMidiEventQueue(int size) {
+        int capacity = 1;
+        while (capacity < size)
+            capacity <<= 1;
+        this.capacity = capacity;
+        mask = capacity - 1;
+        sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            sequence.set(i, i);
+        timestamps = new long[capacity];
+        messages = new int[capacity];
+        sysex = new byte[capacity][];
+        pending_timestamps = new long[capacity];
+        pending_messages = new int[capacity];
+        pending_sysex = new byte[capacity][];
+    }
+
+    public static int pack(int status, int data1, int data2) {
+        return (status & 0xFF) | ((data1 & 0xFF) << 8) | ((data2 & 0xFF) << 16);
+    }
+
+    private boolean offer(long timestamp, int message, byte[] data) {
+        long pos;
+        while (true) {
+            pos = tail.get();
+            int ix = (int) (pos & mask);
+            long seq = sequence.get(ix);
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+            } else if (seq < pos) {
+                // Queue is full
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        int ix = (int) (pos & mask);
+        timestamps[ix] = timestamp;
+        messages[ix] = message;
+        sysex[ix] = data;
+        sequence.set(ix, pos + 1);
+        offered.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Offer a packed short message, see {@link #pack(int, int, int)}.
+     *
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean offer(long timestamp, int message) {
+        return offer(timestamp, message, null);
+    }
+
+    /**
+     * Offer a system exclusive message. The array is not copied.
+     *
+     * @return false if the queue was full and the event was dropped
+     */
+    public boolean offer(long timestamp, byte[] data) {
+        return offer(timestamp, data.length == 0 ? 0 : data[0] & 0xFF, data);
+    }
+
+    /**
+     * Move all offered events into the timestamp sorted staging area.
+     * Must only be called by the consumer.
+     */
+    public void fill() {
+        while (true) {
+            int ix = (int) (head & mask);
+            if (sequence.get(ix) != head + 1)
+                return;
+            if (pending_end == capacity) {
+                if (pending_start == 0)
+                    return;
+                int len = pending_end - pending_start;
+                System.arraycopy(pending_timestamps, pending_start, pending_timestamps, 0, len);
+                System.arraycopy(pending_messages, pending_start, pending_messages, 0, len);
+                System.arraycopy(pending_sysex, pending_start, pending_sysex, 0, len);
+                for (int i = len; i < pending_end; i++)
+                    pending_sysex[i] = null;
+                pending_start = 0;
+                pending_end = len;
+            }
+
+            long timestamp = timestamps[ix];
+            int i = pending_end;
+            while (i > pending_start && pending_timestamps[i - 1] > timestamp) {
+                pending_timestamps[i] = pending_timestamps[i - 1];
+                pending_messages[i] = pending_messages[i - 1];
+                pending_sysex[i] = pending_sysex[i - 1];
+                i--;
+            }
+            pending_timestamps[i] = timestamp;
+            pending_messages[i] = messages[ix];
+            pending_sysex[i] = sysex[ix];
+            pending_end++;
+
+            sysex[ix] = null;
+            sequence.set(ix, head + capacity);
+            head++;
+        }
+    }
+
+    /** True if the staging area has an event. Consumer only. */
+    public boolean hasNext() {
+        return pending_start != pending_end;
+    }
+
+    /** Timestamp of the earliest staged event. Consumer only. */
+    public long nextTimestamp() {
+        return pending_timestamps[pending_start];
+    }
+
+    /** Packed message of the earliest staged event. Consumer only. */
+    public int nextMessage() {
+        return pending_messages[pending_start];
+    }
+
+    /** Sysex data of the earliest staged event or null. Consumer only. */
+    public byte[] nextSysex() {
+        return pending_sysex[pending_start];
+    }
+
+    /** Remove the earliest staged event. Consumer only. */
+    public void remove() {
+        pending_sysex[pending_start] = null;
+        pending_start++;
+        if (pending_start == pending_end) {
+            pending_start = 0;
+            pending_end = 0;
+        }
+    }
+
+    /** Remove every event. Consumer only. */
+    public void clear() {
+        fill();
+        while (hasNext())
+            remove();
+    }
+
+    public boolean isEmpty() {
+        return getDepth() == 0;
+    }
+
+    /**
+     * Number of events waiting to be processed. Approximate when called
+     * outside the consumer thread.
+     */
+    public int getDepth() {
+        long queued = offered.get() - head;
+        if (queued < 0)
+            queued = 0;
+        return (int) queued + (pending_end - pending_start);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of events dropped because the queue was full. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
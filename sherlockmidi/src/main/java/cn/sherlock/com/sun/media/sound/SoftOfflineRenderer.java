@@ -0,0 +1,451 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.MidiUnavailableException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.Soundbank;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.TempoMap;
+import jp.kshoji.javax.sound.midi.Track;
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+import cn.sherlock.javax.sound.sampled.AudioInputStream;
+
+/**
+ * Renders a Sequence to audio faster than realtime.
+ *
+ * The renderer opens its own synthesizer with openStream, converts event
+ * ticks into microseconds with the tempo map of the sequence and queues
+ * the events on the main mixer with those timestamps, one control block
+ * ahead of the audio that is pulled from the stream. No thread sleeps, so
+ * rendering runs as fast as the CPU allows.
+ *
+ * Supported output formats are 16 and 24 bit signed PCM and 32 bit float,
+ * little-endian, mono or stereo.
+ */
+public class SoftOfflineRenderer {
+
+    public interface ProgressListener {
+
+        /**
+         * Called periodically from the rendering thread.
+         *
+         * @param position rendered audio in microseconds
+         * @param length total audio to render in microseconds
+         */
+        void progress(long position, long length);
+    }
+
+    // Number of control blocks written to the output at once.
+    private static final int BLOCKS_PER_WRITE = 64;
+
+    private final Soundbank soundbank;
+    private AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+    private Map<String, Object> info = null;
+    private long tail_length = 2000000;
+    private ProgressListener listener = null;
+    private volatile boolean cancelled = false;
+    private boolean[] channels = null;
+
+    private long rendered_frames = 0;
+    private long render_nanos = 0;
+
+    public SoftOfflineRenderer(Soundbank soundbank) {
+        this.soundbank = soundbank;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(AudioFormat format) {
+        if (format.getChannels() < 1 || format.getChannels() > 2)
+            throw new IllegalArgumentException(
+                    "Only mono and stereo audio supported.");
+        if (format.isBigEndian())
+            throw new IllegalArgumentException(
+                    "Only little-endian audio supported.");
+        int bits = format.getSampleSizeInBits();
+        if (format.getEncoding().equals(AudioFormat.Encoding.PCM_SIGNED)) {
+            if (bits != 16 && bits != 24)
+                throw new IllegalArgumentException(
+                        "Only 16 and 24 bit PCM supported.");
+        } else if (format.getEncoding().equals(AudioFloatConverter.PCM_FLOAT)) {
+            if (bits != 32)
+                throw new IllegalArgumentException(
+                        "Only 32 bit float supported.");
+        } else
+            throw new IllegalArgumentException("Audio format not supported.");
+        this.format = format;
+    }
+
+    /**
+     * Synthesizer properties used when the synthesizer is opened,
+     * see {@link SoftSynthesizer#getPropertyInfo}.
+     */
+    public void setSynthesizerProperties(Map<String, Object> info) {
+        this.info = info;
+    }
+
+    /**
+     * Length of audio rendered after the last event, for releases and
+     * reverb to decay.
+     */
+    public void setTailLength(long microseconds) {
+        if (microseconds < 0)
+            throw new IllegalArgumentException("Negative tail length.");
+        tail_length = microseconds;
+    }
+
+    public long getTailLength() {
+        return tail_length;
+    }
+
+    /**
+     * Only send channel messages of these MIDI channels, system messages
+     * are always sent. Null sends every channel.
+     */
+    public void setChannels(int[] channels) {
+        if (channels == null) {
+            this.channels = null;
+            return;
+        }
+        boolean[] filter = new boolean[16];
+        for (int channel : channels) {
+            if (channel < 0 || channel > 15)
+                throw new IllegalArgumentException(
+                        "Invalid MIDI channel: " + channel);
+            filter[channel] = true;
+        }
+        this.channels = filter;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop a render in progress, may be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Audio length of the last render in microseconds.
+     */
+    public long getRenderedMicroseconds() {
+        return (long) (rendered_frames * (1000000.0 / format.getSampleRate()));
+    }
+
+    /**
+     * Speed of the last render as a multiple of realtime.
+     */
+    public double getRealtimeFactor() {
+        if (render_nanos <= 0)
+            return 0;
+        return (rendered_frames / (double) format.getSampleRate())
+                / (render_nanos / 1000000000.0);
+    }
+
+    /**
+     * Render sequence into a WAVE file.
+     *
+     * @return false if the render was cancelled, the file then holds
+     *         the audio rendered until then.
+     */
+    public boolean render(Sequence sequence, File file)
+            throws IOException, MidiUnavailableException {
+        RIFFWriter writer = new RIFFWriter(file, "WAVE");
+        try {
+            writeFormatChunk(writer, format);
+            RIFFWriter data_chunk = writer.writeChunk("data");
+            boolean completed = render(sequence, data_chunk);
+            data_chunk.close();
+            return completed;
+        } finally {
+            writer.close();
+        }
+    }
+
+    static void writeFormatChunk(RIFFWriter writer, AudioFormat format)
+            throws IOException {
+        boolean isfloat = format.getEncoding().equals(
+                AudioFloatConverter.PCM_FLOAT);
+        int channels = format.getChannels();
+        int samplerate = (int) format.getSampleRate();
+        int bits = format.getSampleSizeInBits();
+        int framesize = channels * (bits / 8);
+        RIFFWriter fmt_chunk = writer.writeChunk("fmt ");
+        fmt_chunk.writeUnsignedShort(isfloat ? 3 : 1);
+        fmt_chunk.writeUnsignedShort(channels);
+        fmt_chunk.writeUnsignedInt(samplerate);
+        fmt_chunk.writeUnsignedInt(samplerate * framesize);
+        fmt_chunk.writeUnsignedShort(framesize);
+        fmt_chunk.writeUnsignedShort(bits);
+        fmt_chunk.close();
+    }
+
+    /**
+     * Called on the rendering thread after the synthesizer has been
+     * opened and the soundbank loaded, before any audio is rendered.
+     *
+     * @param frames length of the output in sample frames
+     */
+    protected void prepare(SoftSynthesizer synth, long frames) {
+    }
+
+    /**
+     * Render sequence as raw audio in the output format into out.
+     *
+     * @return false if the render was cancelled
+     */
+    public boolean render(Sequence sequence, OutputStream out)
+            throws IOException, MidiUnavailableException {
+
+        cancelled = false;
+        rendered_frames = 0;
+        render_nanos = 0;
+        long start = System.nanoTime();
+
+        MergedEvents events = mergeTracks(sequence);
+        long[] timestamps = new long[events.count];
+        long[] end = new long[1];
+        int count = convertToMicroseconds(sequence, events, channels,
+                timestamps, end);
+        int[] packed = events.packed;
+        MidiMessage[] messages = events.messages;
+        events = null;
+
+        long length = end[0] + tail_length;
+
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("load default soundbank", false);
+        // Dense passages can have many events in one control block.
+        info.put("midi queue size", 16384);
+        if (this.info != null)
+            info.putAll(this.info);
+
+        SoftSynthesizer synth = new SoftSynthesizer();
+        AudioInputStream stream = synth.openStream(format, info);
+        try {
+            if (soundbank != null) {
+                // Synthesizers share the sample data of the soundbank,
+                // load it once when renderers run in parallel.
+                synchronized (soundbank) {
+                    synth.loadAllInstruments(soundbank);
+                }
+            }
+            SoftMainMixer mainmixer = synth.getMainMixer();
+
+            double samplerate = format.getSampleRate();
+            int blocksize = (int) (samplerate / synth.getControlRate());
+            long block_msec = (long) (1000000.0 / synth.getControlRate());
+            int blockbytes = blocksize * format.getFrameSize();
+            long blocks = (long) Math.ceil(length * samplerate
+                    / (1000000.0 * blocksize));
+            byte[] buffer = new byte[blockbytes * BLOCKS_PER_WRITE];
+            int buffer_pos = 0;
+
+            prepare(synth, blocks * blocksize);
+
+            // The stream starts with a silent block that is returned
+            // before anything is rendered, and the limiter delays its
+            // output by one block. Skip them so the output is aligned to
+            // the event timestamps.
+            readFully(stream, buffer, 0, blockbytes);
+            int latency = synth.agc_on ? 1 : 0;
+
+            int next = 0;
+            for (long block = 0; block < blocks + latency; block++) {
+                if (cancelled)
+                    break;
+
+                // The mixer processes events before block_end in this block
+                long block_end = (long) (block * blocksize
+                        * (1000000.0 / samplerate)) + block_msec;
+                while (next < count && timestamps[next] < block_end) {
+                    MidiMessage message = messages[next];
+                    boolean queued;
+                    if (packed[next] >= 0) {
+                        queued = mainmixer.queueMessage(timestamps[next],
+                                packed[next] & 0xFFFFFF);
+                    } else if (message instanceof ShortMessage) {
+                        queued = mainmixer.queueMessage(timestamps[next],
+                                SoftMidiEventQueue.pack(message.getStatus(),
+                                ((ShortMessage) message).getData1(),
+                                ((ShortMessage) message).getData2()));
+                    } else {
+                        queued = mainmixer.queueMessage(timestamps[next],
+                                message.getMessage());
+                    }
+                    // Queue is full, the rest goes in with the next block
+                    if (!queued)
+                        break;
+                    messages[next++] = null;
+                }
+
+                readFully(stream, buffer, buffer_pos, blockbytes);
+                if (block < latency)
+                    continue;
+                buffer_pos += blockbytes;
+                rendered_frames += blocksize;
+
+                if (buffer_pos == buffer.length) {
+                    out.write(buffer, 0, buffer_pos);
+                    buffer_pos = 0;
+                    if (listener != null)
+                        listener.progress(getRenderedMicroseconds(), length);
+                }
+            }
+            out.write(buffer, 0, buffer_pos);
+            if (listener != null)
+                listener.progress(getRenderedMicroseconds(), length);
+        } finally {
+            synth.close();
+            render_nanos = System.nanoTime() - start;
+        }
+        return !cancelled;
+    }
+
+    private static void readFully(AudioInputStream stream, byte[] buffer,
+            int off, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int ret = stream.read(buffer, off + read, len - read);
+            if (ret < 0)
+                throw new IOException("Unexpected end of stream");
+            read += ret;
+        }
+    }
+
+    // All events of all tracks sorted by tick, events with the same tick
+    // keep their track order. Short messages are held packed as
+    // Track.getShortMessage returns them, with a null message, so no
+    // object is made for them.
+    static final class MergedEvents {
+
+        final long[] ticks;
+        final int[] packed;
+        final MidiMessage[] messages;
+        int count;
+
+        MergedEvents(int count) {
+            ticks = new long[count];
+            packed = new int[count];
+            messages = new MidiMessage[count];
+            this.count = count;
+        }
+    }
+
+    static MergedEvents mergeTracks(Sequence sequence) {
+        Track[] tracks = sequence.getTracks();
+        int count = 0;
+        for (Track track : tracks)
+            count += track.size();
+        MergedEvents events = new MergedEvents(count);
+        long[] ticks = events.ticks;
+        int[] packed = events.packed;
+        MidiMessage[] messages = events.messages;
+        int pos = 0;
+        boolean sorted = true;
+        for (Track track : tracks) {
+            int size = Math.min(track.size(), count - pos);
+            for (int i = 0; i < size; i++) {
+                ticks[pos] = track.getTick(i);
+                packed[pos] = track.getShortMessage(i);
+                if (packed[pos] < 0)
+                    messages[pos] = track.get(i).getMessage();
+                if (pos > 0 && ticks[pos] < ticks[pos - 1])
+                    sorted = false;
+                pos++;
+            }
+        }
+        events.count = pos;
+        if (sorted)
+            return events;
+
+        int[] order = new int[pos];
+        for (int i = 0; i < pos; i++)
+            order[i] = i;
+        sortByTick(order, new int[pos], ticks, 0, pos);
+        long[] sortedticks = new long[pos];
+        int[] sortedpacked = new int[pos];
+        MidiMessage[] sortedmessages = new MidiMessage[pos];
+        for (int i = 0; i < pos; i++) {
+            sortedticks[i] = ticks[order[i]];
+            sortedpacked[i] = packed[order[i]];
+            sortedmessages[i] = messages[order[i]];
+        }
+        System.arraycopy(sortedticks, 0, ticks, 0, pos);
+        System.arraycopy(sortedpacked, 0, packed, 0, pos);
+        System.arraycopy(sortedmessages, 0, messages, 0, pos);
+        return events;
+    }
+
+    // Stable merge sort of the event indices from start to end by tick
+    private static void sortByTick(int[] order, int[] work, long[] ticks,
+            int start, int end) {
+        if (end - start < 2)
+            return;
+        int middle = (start + end) >>> 1;
+        sortByTick(order, work, ticks, start, middle);
+        sortByTick(order, work, ticks, middle, end);
+        if (ticks[order[middle - 1]] <= ticks[order[middle]])
+            return;
+        int left = start;
+        int right = middle;
+        for (int i = start; i < end; i++) {
+            if (right == end || (left < middle
+                    && ticks[order[left]] <= ticks[order[right]]))
+                work[i] = order[left++];
+            else
+                work[i] = order[right++];
+        }
+        System.arraycopy(work, start, order, start, end - start);
+    }
+
+    // Converts event ticks into microseconds with the tempo map of the
+    // sequence. Tempo and other meta events and channel messages filtered
+    // out by channels are consumed, the events left to send are moved to
+    // the front of events, returns their number. end is set to the time
+    // of the last event, filtered or not.
+    private static int convertToMicroseconds(Sequence sequence,
+            MergedEvents events, boolean[] channels, long[] timestamps,
+            long[] end) {
+        TempoMap tempomap = sequence.getTempoMap();
+
+        int count = 0;
+        for (int i = 0; i < events.count; i++) {
+            long msec = tempomap.tickToMicrosecond(events.ticks[i]);
+
+            end[0] = msec;
+
+            int packed = events.packed[i];
+            MidiMessage message = events.messages[i];
+            int status = packed >= 0 ? packed & 0xFF : message.getStatus();
+            if (message instanceof MetaMessage)
+                continue;
+            if (message instanceof SysexMessage && status != 0xF0)
+                continue;
+            if (channels != null && status < 0xF0 && !channels[status & 0x0F])
+                continue;
+            timestamps[count] = msec;
+            events.packed[count] = packed;
+            events.messages[count] = message;
+            count++;
+        }
+        return count;
+    }
+}
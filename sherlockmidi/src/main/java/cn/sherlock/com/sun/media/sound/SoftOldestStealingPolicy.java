@@ -0,0 +1,20 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Steals the oldest voice, held or released.
+ */
+public class SoftOldestStealingPolicy implements VoiceStealingPolicy {
+
+    public int selectChannelVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        return -1;
+    }
+
+    public int selectVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        for (int i = index.oldest(); i != -1; i = index.younger(i))
+            if (!voices[i].isStolen())
+                return i;
+        return -1;
+    }
+}
@@ -325,6 +325,36 @@ public class SoftPerformer {
     }
     private static KeySortComparator keySortComparator = new KeySortComparator();
 
+    // Vibrato depth (cc#77) of the vibrato connection with the given scale
+    static final class VibratoDepthTransform implements ModelTransform {
+
+        private final double s;
+
+        VibratoDepthTransform(double scale) {
+            s = scale;
+        }
+
+        double getScale() {
+            return s;
+        }
+
+        public double transform(double value) {
+            value = value * 2 - 1;
+            value *= 600;
+            if (s == 0) {
+                return value;
+            } else if (s > 0) {
+                if (value < -s)
+                    value = -s;
+                return value;
+            } else {
+                if (value < s)
+                    value = -s;
+                return -value;
+            }
+        }
+    }
+
     private String extractKeys(ModelConnectionBlock conn) {
         StringBuffer sb = new StringBuffer();
         if (conn.getSources() != null) {
@@ -642,29 +672,13 @@ public class SoftPerformer {
                     new ModelIdentifier("lfo", "delay2", instance)));
             connmap.put(extractKeys(connection), connection);
 
-            final double scale = found_vib_connection == null ? 0
+            double scale = found_vib_connection == null ? 0
                     : found_vib_connection.getScale();
             connection = new ModelConnectionBlock(
                 new ModelSource(new ModelIdentifier("lfo", instance)),
                 new ModelSource(new ModelIdentifier("midi_cc", "77"),
-                    new ModelTransform() {
-                        double s = scale;
-                        public double transform(double value) {
-                            value = value * 2 - 1;
-                            value *= 600;
-                            if (s == 0) {
-                                return value;
-                            } else if (s > 0) {
-                                if (value < -s)
-                                    value = -s;
-                                return value;
-                            } else {
-                                if (value < s)
-                                    value = -s;
-                                return -value;
-                            }
-                        }
-                    }), new ModelDestination(ModelDestination.DESTINATION_PITCH));
+                    new VibratoDepthTransform(scale)),
+                new ModelDestination(ModelDestination.DESTINATION_PITCH));
             connmap.put(extractKeys(connection), connection);
 
             connection = new ModelConnectionBlock(
@@ -698,7 +712,6 @@ public class SoftPerformer {
             midi_connections[i] = null;
         }
 
-        int ix = 0;
         boolean mustBeOnTop = false;
 
         for (ModelConnectionBlock connection : connmap.values()) {
@@ -720,6 +733,33 @@ public class SoftPerformer {
                 connections.add(connection);
         }
 
+        initConnections(connections);
+    }
+
+    /**
+     * Create a performer from connections compiled before by
+     * SoftPerformer(ModelPerformer), read back from a SoftSoundbankCache.
+     */
+    SoftPerformer(ModelPerformer performer, ModelConnectionBlock[] connections,
+            boolean forcedVelocity, boolean forcedKeynumber) {
+        this.performer = performer;
+
+        keyFrom = performer.getKeyFrom();
+        keyTo = performer.getKeyTo();
+        velFrom = performer.getVelFrom();
+        velTo = performer.getVelTo();
+        exclusiveClass = performer.getExclusiveClass();
+        selfNonExclusive = performer.isSelfNonExclusive();
+        this.forcedVelocity = forcedVelocity;
+        this.forcedKeynumber = forcedKeynumber;
+
+        midi_ctrl_connections = new int[128][];
+        midi_connections = new int[5][];
+        initConnections(Arrays.asList(connections));
+    }
+
+    private void initConnections(List<ModelConnectionBlock> connections) {
+        int ix = 0;
         for (ModelConnectionBlock connection : connections) {
             if (connection.getSources() != null) {
                 ModelSource[] srcs = connection.getSources();
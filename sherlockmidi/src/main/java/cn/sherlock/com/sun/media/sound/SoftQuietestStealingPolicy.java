@@ -0,0 +1,30 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Steals the voice with the lowest output gain, the oldest one if several
+ * voices are equally quiet.
+ */
+public class SoftQuietestStealingPolicy implements VoiceStealingPolicy {
+
+    public int selectChannelVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        return -1;
+    }
+
+    public int selectVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        int quietest = -1;
+        float level = 0;
+        for (int i = index.oldest(); i != -1; i = index.younger(i)) {
+            SoftVoice voice = voices[i];
+            if (voice.isStolen())
+                continue;
+            float l = voice.getOutputLevel();
+            if (quietest == -1 || l < level) {
+                quietest = i;
+                level = l;
+            }
+        }
+        return quietest;
+    }
+}
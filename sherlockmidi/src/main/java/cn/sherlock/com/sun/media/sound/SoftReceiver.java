@@ -26,21 +26,29 @@ package cn.sherlock.com.sun.media.sound;
 
 import android.support.annotation.NonNull;
 
-import java.util.TreeMap;
-
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiMessage;
 import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.ShortMessageReceiver;
+import jp.kshoji.javax.sound.midi.TimestampedReceiver;
 
 /**
  * Software synthesizer MIDI receiver class.
  *
+ * It is also a TimestampedReceiver, a sequencer sending to it queues the
+ * messages ahead of time in the time base of the synthesizer, and a
+ * ShortMessageReceiver, the short messages of packed tracks are sent to it
+ * without making a ShortMessage.
+ *
  * @author Karl Helgason
  */
-public class SoftReceiver implements MidiDeviceReceiver {
+public class SoftReceiver implements MidiDeviceReceiver,
+        TimestampedReceiver, ShortMessageReceiver {
 
-    protected boolean open = true;
+    protected volatile boolean open = true;
     private final Object control_mutex;
     private SoftSynthesizer synth;
-    protected TreeMap<Long, Object> midimessages;
+    protected SoftMidiEventQueue midimessages;
     protected SoftMainMixer mainmixer;
 
     public SoftReceiver(SoftSynthesizer synth) {
@@ -57,11 +65,44 @@ public class SoftReceiver implements MidiDeviceReceiver {
 
     @Override
     public void send(@NonNull ShortMessage message) {
-        synchronized (control_mutex) {
-            if (!open)
-                throw new IllegalStateException("Receiver is not open");
+        send(message.getStatus(), message.getData1(), message.getData2(),
+                SoftMidiEventQueue.IMMEDIATE);
+    }
+
+    public void send(int status, int data1, int data2, long timestampMicros) {
+        if (!open)
+            throw new IllegalStateException("Receiver is not open");
+        mainmixer.queueMessage(timestampMicros,
+                SoftMidiEventQueue.pack(status, data1, data2));
+    }
+
+    public void send(@NonNull int[] packed, @NonNull long[] timestamps, int count) {
+        if (!open)
+            throw new IllegalStateException("Receiver is not open");
+        SoftMainMixer mainmixer = this.mainmixer;
+        for (int i = 0; i < count; i++)
+            mainmixer.queueMessage(timestamps[i], packed[i]);
+    }
+
+    @Override
+    public void send(@NonNull MidiMessage message, long timeStamp) {
+        if (!open)
+            throw new IllegalStateException("Receiver is not open");
+        if (timeStamp < 0)
+            timeStamp = SoftMidiEventQueue.IMMEDIATE;
+        if (message instanceof ShortMessage) {
+            ShortMessage sms = (ShortMessage) message;
+            mainmixer.queueMessage(timeStamp, SoftMidiEventQueue.pack(
+                    sms.getStatus(), sms.getData1(), sms.getData2()));
+        } else if (!(message instanceof MetaMessage)) {
+            byte[] data = message.getMessage();
+            if (data != null)
+                mainmixer.queueMessage(timeStamp, data);
         }
-        mainmixer.processMessage(message);
+    }
+
+    public long getMicrosecondPosition() {
+        return synth.getMicrosecondPosition();
     }
 
     public void close() {
@@ -0,0 +1,19 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Steals the oldest released voice, or the oldest voice if no voice has
+ * been released. This is the default policy.
+ */
+public class SoftReleaseFirstStealingPolicy implements VoiceStealingPolicy {
+
+    public int selectChannelVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        return -1;
+    }
+
+    public int selectVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index) {
+        int i = index.oldestReleased();
+        return i != -1 ? i : index.oldestHeld();
+    }
+}
@@ -35,4 +35,13 @@ public interface SoftResamplerStreamer extends ModelOscillatorStream {
 
     public void open(ModelWavetable osc, float outputsamplerate)
             throws IOException;
+
+    /**
+     * Open osc with its samples read from decoded, as decoded by a
+     * SoftSampleCache, instead of from the stream of osc. With decoded
+     * null this is the same as open(osc, outputsamplerate).
+     */
+    public void open(ModelWavetable osc,
+            SoftSampleCache.DecodedSample decoded, float outputsamplerate)
+            throws IOException;
 }
@@ -0,0 +1,198 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of samples decoded to float, so voices read them straight from
+ * an array instead of converting the sample bytes on every note.
+ *
+ * Samples are decoded by a background thread the first time they are
+ * asked for, the voice asking plays from the stream as before. The thread
+ * is started with the cache, so get, called while rendering, never starts
+ * one. The cache
+ * holds at most budget bytes of decoded samples and evicts the least
+ * recently used samples first. Wavetables of the same ModelByteBuffer,
+ * one per instrument region using a sample, share one decoded sample.
+ */
+public class SoftSampleCache {
+
+    public static class DecodedSample {
+        // Interleaved samples, as read from the wavetable stream
+        public final float[] data;
+        public final float samplerate;
+
+        DecodedSample(float[] data, float samplerate) {
+            this.data = data;
+            this.samplerate = samplerate;
+        }
+    }
+
+    private final long budget;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private final LinkedHashMap<Object, DecodedSample> samples
+            = new LinkedHashMap<Object, DecodedSample>(16, 0.75f, true);
+    private final Set<Object> pending = new HashSet<Object>();
+    private final ThreadPoolExecutor decoder;
+
+    public SoftSampleCache(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("Negative cache budget.");
+        this.budget = budget;
+        decoder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Sample decoder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        if (budget > 0)
+            decoder.prestartAllCoreThreads();
+    }
+
+    private static Object getKey(ModelWavetable wavetable) {
+        if (wavetable instanceof ModelByteBufferWavetable) {
+            ModelByteBuffer buffer
+                    = ((ModelByteBufferWavetable) wavetable).getBuffer();
+            if (buffer != null)
+                return buffer;
+        }
+        return wavetable;
+    }
+
+    /**
+     * Returns the decoded samples of wavetable, or null when they are not
+     * cached yet, in which case they are decoded in the background.
+     */
+    public synchronized DecodedSample get(final ModelWavetable wavetable) {
+        final Object key = getKey(wavetable);
+        DecodedSample sample = samples.get(key);
+        if (sample != null) {
+            hits++;
+            return sample;
+        }
+        misses++;
+        if (budget == 0 || decoder.isShutdown() || !pending.add(key))
+            return null;
+        decoder.execute(new Runnable() {
+            public void run() {
+                DecodedSample sample = null;
+                try {
+                    sample = decode(wavetable);
+                } catch (IOException e) {
+                    //e.printStackTrace();
+                }
+                put(key, sample);
+            }
+        });
+        return null;
+    }
+
+    private static DecodedSample decode(ModelWavetable wavetable)
+            throws IOException {
+        AudioFloatInputStream stream = wavetable.openStream();
+        if (stream == null)
+            return null;
+        try {
+            int channels = stream.getFormat().getChannels();
+            long frames = stream.getFrameLength();
+            float[] data = new float[frames > 0
+                    && frames * channels <= Integer.MAX_VALUE
+                    ? (int) (frames * channels) : 65536];
+            int len = 0;
+            while (true) {
+                if (len == data.length) {
+                    float[] grown = new float[data.length * 2];
+                    System.arraycopy(data, 0, grown, 0, len);
+                    data = grown;
+                }
+                int ret = stream.read(data, len, data.length - len);
+                if (ret == -1)
+                    break;
+                len += ret;
+            }
+            if (len != data.length) {
+                float[] trimmed = new float[len];
+                System.arraycopy(data, 0, trimmed, 0, len);
+                data = trimmed;
+            }
+            return new DecodedSample(data,
+                    stream.getFormat().getSampleRate());
+        } finally {
+            stream.close();
+        }
+    }
+
+    private synchronized void put(Object key, DecodedSample sample) {
+        if (!pending.remove(key))
+            return; // cleared while decoding
+        if (sample == null)
+            return;
+        long bytes = sample.data.length * 4L;
+        if (bytes > budget)
+            return;
+        Iterator<DecodedSample> iter = samples.values().iterator();
+        while (size + bytes > budget && iter.hasNext()) {
+            size -= iter.next().data.length * 4L;
+            iter.remove();
+            evictions++;
+        }
+        samples.put(key, sample);
+        size += bytes;
+    }
+
+    /**
+     * Remove all samples, and stop decoding. No samples are decoded after
+     * the cache is cleared.
+     */
+    public synchronized void clear() {
+        samples.clear();
+        pending.clear();
+        size = 0;
+        decoder.shutdownNow();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Bytes of decoded samples held.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getSampleCount() {
+        return samples.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized void resetCounters() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+}
@@ -33,7 +33,10 @@ package cn.sherlock.com.sun.media.sound;
  */
 public class SoftSincResampler extends SoftAbstractResampler {
 
-    float[][][] sinc_table;
+    // Shared by all instances, see SoftSincTable
+    private static final SoftSincTable table = new SoftSincTable(100, 1, 800,
+            0, 30);
+
     int sinc_scale_size = 100;
     int sinc_table_fsize = 800;
     int sinc_table_size = 30;
@@ -41,14 +44,6 @@ public class SoftSincResampler extends SoftAbstractResampler {
 
     public SoftSincResampler() {
         super();
-        sinc_table = new float[sinc_scale_size][sinc_table_fsize][];
-        for (int s = 0; s < sinc_scale_size; s++) {
-            float scale = (float) (1.0 / (1.0 + Math.pow(s, 1.1) / 10.0));
-            for (int i = 0; i < sinc_table_fsize; i++) {
-                sinc_table[s][i] = sincTable(sinc_table_size,
-                        -i / ((float)sinc_table_fsize), scale);
-            }
-        }
     }
 
     // Normalized sinc function
@@ -97,7 +92,7 @@ public class SoftSincResampler extends SoftAbstractResampler {
                 p = 0;
             else if (p > max_p)
                 p = max_p;
-            float[][] sinc_table_f = this.sinc_table[p];
+            float[][] sinc_table_f = table.getRow(p);
             while (ix < ix_end && ox < ox_end) {
                 int iix = (int) ix;
                 float[] sinc_table =
@@ -110,6 +105,8 @@ public class SoftSincResampler extends SoftAbstractResampler {
                 ix += pitch;
             }
         } else {
+            int last_p = -1;
+            float[][] sinc_table_f = null;
             while (ix < ix_end && ox < ox_end) {
                 int iix = (int) ix;
                 int p = (int) ((pitch - 1) * 10.0f);
@@ -117,7 +114,10 @@ public class SoftSincResampler extends SoftAbstractResampler {
                     p = 0;
                 else if (p > max_p)
                     p = max_p;
-                float[][] sinc_table_f = this.sinc_table[p];
+                if (p != last_p) {
+                    sinc_table_f = table.getRow(p);
+                    last_p = p;
+                }
 
                 float[] sinc_table =
                         sinc_table_f[(int)((ix - iix) * sinc_table_fsize)];
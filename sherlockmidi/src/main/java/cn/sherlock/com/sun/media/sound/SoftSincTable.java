@@ -0,0 +1,64 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hann windowed sinc tables for the sinc resamplers, shared by all
+ * resamplers in the process.
+ *
+ * The table has one row per anti-alias scale, and each row holds the
+ * filter for every fractional phase. Rows are built when a resampler
+ * first plays at a pitch which needs them, and never change after that.
+ */
+public class SoftSincTable {
+
+    private final int scale_step;
+    private final int phases;
+    private final int extra_phases;
+    private final int size;
+    private final AtomicReferenceArray<float[][]> rows;
+
+    /**
+     * @param scales number of rows
+     * @param scale_step anti-alias scale step between rows, in steps of
+     *        the 100 row table of SoftSincResampler
+     * @param phases number of fractional phases
+     * @param extra_phases phases added after the last one, a table
+     *        which is interpolated between phases needs 1
+     * @param size number of points of each filter
+     */
+    public SoftSincTable(int scales, int scale_step, int phases,
+            int extra_phases, int size) {
+        this.scale_step = scale_step;
+        this.phases = phases;
+        this.extra_phases = extra_phases;
+        this.size = size;
+        rows = new AtomicReferenceArray<float[][]>(scales);
+    }
+
+    public int getScaleCount() {
+        return rows.length();
+    }
+
+    public float[][] getRow(int s) {
+        float[][] row = rows.get(s);
+        if (row == null) {
+            // Rows are deterministic, if two threads race both build the
+            // same row and the first one published is used
+            row = buildRow(s);
+            if (!rows.compareAndSet(s, null, row))
+                row = rows.get(s);
+        }
+        return row;
+    }
+
+    private float[][] buildRow(int s) {
+        float scale = (float) (1.0 / (1.0
+                + Math.pow(s * scale_step, 1.1) / 10.0));
+        float[][] row = new float[phases + extra_phases][];
+        for (int i = 0; i < row.length; i++)
+            row[i] = SoftSincResampler.sincTable(size,
+                    -i / ((float) phases), scale);
+        return row;
+    }
+}
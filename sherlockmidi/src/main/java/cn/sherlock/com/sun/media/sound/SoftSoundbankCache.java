@@ -0,0 +1,753 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+import cn.sherlock.javax.sound.sampled.AudioFormat.Encoding;
+import jp.kshoji.javax.sound.midi.Instrument;
+import jp.kshoji.javax.sound.midi.Soundbank;
+
+/**
+ * Binary cache of compiled soundbanks, so a soundbank file loaded before
+ * is neither parsed nor compiled again.
+ *
+ * The cache file holds the performers of every instrument, the
+ * connections SoftPerformer compiled from them, the key and velocity
+ * index of ModelStandardIndexedDirector and where in the soundbank file
+ * each sample is. It is named after, and checked against, the SHA-1 hash
+ * of the soundbank file and a format version, and is memory mapped when
+ * read. The samples are mapped from the soundbank file itself.
+ *
+ * So a warm start does not hash the whole soundbank file, the hash is
+ * recorded in a key file of cachedir, named after the path of the
+ * soundbank file, with its length and modification time. The file is
+ * hashed again only when they do not match.
+ *
+ * Soundbanks with samples that are not in the soundbank file, or with
+ * oscillators, transforms or instruments of unknown types, can not be
+ * cached.
+ */
+public class SoftSoundbankCache {
+
+    private static final int MAGIC = 0x53534243; // "SSBC"
+    private static final int VERSION = 1;
+    private static final int KEY_MAGIC = 0x53534248; // "SSBH"
+
+    private static final int TRANSFORM_NONE = 0;
+    private static final int TRANSFORM_STANDARD = 1;
+    private static final int TRANSFORM_VELOCITY_TO_FILTER = 2;
+    private static final int TRANSFORM_VIBRATO_DEPTH = 3;
+
+    private static final Encoding[] ENCODINGS = {Encoding.PCM_SIGNED,
+            Encoding.PCM_UNSIGNED, Encoding.PCM_FLOAT, Encoding.ULAW,
+            Encoding.ALAW};
+
+    private SoftSoundbankCache() {
+    }
+
+    /**
+     * Returns the soundbank of file from its cache file in cachedir, or
+     * reads file and caches it for the next time.
+     */
+    public static Soundbank getSoundbank(File file, File cachedir)
+            throws IOException {
+        return getSoundbank(file, hash(file, cachedir), cachedir);
+    }
+
+    // hash is the SHA-1 hash of file
+    static Soundbank getSoundbank(File file, byte[] hash, File cachedir)
+            throws IOException {
+        File cachefile = new File(cachedir, toHex(hash) + ".sbc");
+        if (cachefile.exists()) {
+            Soundbank soundbank = read(file, hash, cachefile);
+            if (soundbank != null)
+                return soundbank;
+        }
+        SF2Soundbank soundbank = new SF2Soundbank(file);
+        try {
+            write(soundbank, file, hash, cachefile);
+        } catch (IOException e) {
+            // Not cacheable, or cachedir not writable
+        }
+        return soundbank;
+    }
+
+    /**
+     * Write the compiled instruments of soundbank, read from file, to
+     * cachefile.
+     */
+    public static void write(Soundbank soundbank, File file, File cachefile)
+            throws IOException {
+        write(soundbank, file, hash(file), cachefile);
+    }
+
+    /**
+     * Read the soundbank of file from cachefile, returns null if the cache
+     * is not of this file or of an older format.
+     */
+    public static Soundbank read(File file, File cachefile)
+            throws IOException {
+        return read(file, hash(file), cachefile);
+    }
+
+    static byte[] hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = is.read(buffer)) != -1)
+                digest.update(buffer, 0, n);
+        } finally {
+            is.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns the SHA-1 hash of file recorded in cachedir, if file has the
+     * length and modification time it had when it was hashed. Otherwise
+     * file is hashed, and the hash recorded for the next time.
+     */
+    static byte[] hash(File file, File cachedir) throws IOException {
+        File keyfile = getKeyFile(file, cachedir);
+        long length = file.length();
+        long modified = file.lastModified();
+        byte[] hash = readKey(keyfile, length, modified);
+        if (hash != null)
+            return hash;
+        hash = hash(file);
+        try {
+            writeKey(keyfile, length, modified, hash);
+        } catch (IOException e) {
+            // cachedir not writable, file is hashed every time
+        }
+        return hash;
+    }
+
+    private static File getKeyFile(File file, File cachedir)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        byte[] path = digest.digest(file.getCanonicalPath().getBytes("UTF-8"));
+        return new File(cachedir, toHex(path) + ".sbk");
+    }
+
+    // Returns null if keyfile is missing, or is not of the file length
+    // and modification time
+    private static byte[] readKey(File keyfile, long length, long modified)
+            throws IOException {
+        if (!keyfile.exists())
+            return null;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(keyfile)));
+        try {
+            if (in.readInt() != KEY_MAGIC || in.readLong() != length
+                    || in.readLong() != modified)
+                return null;
+            byte[] hash = new byte[20];
+            in.readFully(hash);
+            return hash;
+        } catch (EOFException e) {
+            return null; // truncated
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeKey(File keyfile, long length, long modified,
+            byte[] hash) throws IOException {
+        File tmpfile = new File(keyfile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(tmpfile));
+        try {
+            out.writeInt(KEY_MAGIC);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.write(hash);
+        } finally {
+            out.close();
+        }
+        keyfile.delete();
+        if (!tmpfile.renameTo(keyfile)) {
+            tmpfile.delete();
+            throw new IOException("Can not write " + keyfile);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+        return sb.toString();
+    }
+
+    // Writing
+
+    private static class Writer {
+
+        final File file;
+        final DataOutputStream out;
+        final Map<String, Integer> strings
+                = new LinkedHashMap<String, Integer>();
+        final Map<ModelByteBuffer, Integer> buffers
+                = new IdentityHashMap<ModelByteBuffer, Integer>();
+        final List<ModelByteBuffer> bufferlist = new ArrayList<ModelByteBuffer>();
+        final Map<String, Integer> connections
+                = new LinkedHashMap<String, Integer>();
+
+        Writer(File file, OutputStream out) {
+            this.file = file;
+            this.out = new DataOutputStream(out);
+        }
+
+        void writeString(String s) throws IOException {
+            writeString(out, s);
+        }
+
+        void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer ix = strings.get(s);
+            if (ix == null) {
+                ix = strings.size();
+                strings.put(s, ix);
+            }
+            out.writeInt(ix);
+        }
+
+        int getBuffer(ModelByteBuffer buffer) throws IOException {
+            Integer ix = buffers.get(buffer);
+            if (ix != null)
+                return ix;
+            ModelByteBuffer root = buffer.getRoot();
+            if (root.getFile() == null || !root.getFile().equals(file))
+                throw new IOException("Sample data is not in the soundbank file.");
+            if (root != buffer)
+                getBuffer(root);
+            ix = bufferlist.size();
+            buffers.put(buffer, ix);
+            bufferlist.add(buffer);
+            return ix;
+        }
+
+        void writeTransform(DataOutputStream out, ModelTransform transform)
+                throws IOException {
+            if (transform == null) {
+                out.writeByte(TRANSFORM_NONE);
+            } else if (transform instanceof ModelStandardTransform) {
+                ModelStandardTransform t = (ModelStandardTransform) transform;
+                out.writeByte(TRANSFORM_STANDARD);
+                out.writeBoolean(t.getDirection());
+                out.writeBoolean(t.getPolarity());
+                out.writeInt(t.getTransform());
+            } else if (transform instanceof SF2Instrument.VelocityToFilterTransform) {
+                out.writeByte(TRANSFORM_VELOCITY_TO_FILTER);
+            } else if (transform instanceof SoftPerformer.VibratoDepthTransform) {
+                out.writeByte(TRANSFORM_VIBRATO_DEPTH);
+                out.writeDouble(((SoftPerformer.VibratoDepthTransform) transform)
+                        .getScale());
+            } else {
+                throw new IOException("Unknown transform: "
+                        + transform.getClass().getName());
+            }
+        }
+
+        void writeIdentifier(DataOutputStream out, ModelIdentifier id)
+                throws IOException {
+            out.writeBoolean(id != null);
+            if (id == null)
+                return;
+            writeString(out, id.getObject());
+            writeString(out, id.getVariable());
+            out.writeInt(id.getInstance());
+        }
+
+        // Returns the index of conn in the connection table, connections
+        // with the same contents are written once
+        int getConnection(ModelConnectionBlock conn) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            // Default connections are shared, and written by index
+            int ix = Arrays.asList(SoftPerformer.defaultconnections)
+                    .indexOf(conn);
+            out.writeInt(ix);
+            if (ix == -1) {
+                ModelSource[] sources = conn.getSources();
+                out.writeInt(sources == null ? -1 : sources.length);
+                if (sources != null) {
+                    for (ModelSource source : sources) {
+                        writeIdentifier(out, source.getIdentifier());
+                        writeTransform(out, source.getTransform());
+                    }
+                }
+                out.writeDouble(conn.getScale());
+                ModelDestination dest = conn.getDestination();
+                out.writeBoolean(dest != null);
+                if (dest != null) {
+                    writeIdentifier(out, dest.getIdentifier());
+                    writeTransform(out, dest.getTransform());
+                }
+            }
+            out.flush();
+            String key = new String(bytes.toByteArray(), "ISO-8859-1");
+            Integer index = connections.get(key);
+            if (index == null) {
+                index = connections.size();
+                connections.put(key, index);
+            }
+            return index;
+        }
+
+        void writeConnections(ModelConnectionBlock[] connections)
+                throws IOException {
+            out.writeInt(connections.length);
+            for (ModelConnectionBlock conn : connections)
+                out.writeInt(getConnection(conn));
+        }
+
+        void writeOscillator(ModelOscillator osc) throws IOException {
+            if (!(osc instanceof ModelByteBufferWavetable))
+                throw new IOException("Unknown oscillator: "
+                        + osc.getClass().getName());
+            ModelByteBufferWavetable wavetable = (ModelByteBufferWavetable) osc;
+            out.writeInt(getBuffer(wavetable.getBuffer()));
+            ModelByteBuffer buffer8 = wavetable.get8BitExtensionBuffer();
+            out.writeInt(buffer8 == null ? -1 : getBuffer(buffer8));
+            out.writeBoolean(wavetable.isRawData());
+            if (wavetable.isRawData()) {
+                AudioFormat format = wavetable.getFormat();
+                writeString(format.getEncoding().toString());
+                out.writeFloat(format.getSampleRate());
+                out.writeInt(format.getSampleSizeInBits());
+                out.writeInt(format.getChannels());
+                out.writeInt(format.getFrameSize());
+                out.writeFloat(format.getFrameRate());
+                out.writeBoolean(format.isBigEndian());
+            }
+            out.writeFloat(wavetable.getLoopStart());
+            out.writeFloat(wavetable.getLoopLength());
+            out.writeInt(wavetable.getLoopType());
+            out.writeFloat(wavetable.getPitchcorrection());
+            out.writeFloat(wavetable.getAttenuation());
+        }
+
+        void writePerformer(ModelPerformer performer) throws IOException {
+            writeString(performer.getName());
+            out.writeInt(performer.getKeyFrom());
+            out.writeInt(performer.getKeyTo());
+            out.writeInt(performer.getVelFrom());
+            out.writeInt(performer.getVelTo());
+            out.writeInt(performer.getExclusiveClass());
+            out.writeBoolean(performer.isReleaseTriggered());
+            out.writeBoolean(performer.isSelfNonExclusive());
+            out.writeBoolean(performer.isDefaultConnectionsEnabled());
+            out.writeInt(performer.getOscillators().size());
+            for (ModelOscillator osc : performer.getOscillators())
+                writeOscillator(osc);
+            List<ModelConnectionBlock> blocks = performer.getConnectionBlocks();
+            writeConnections(blocks.toArray(
+                    new ModelConnectionBlock[blocks.size()]));
+            SoftPerformer compiled = new SoftPerformer(performer);
+            out.writeBoolean(compiled.forcedVelocity);
+            out.writeBoolean(compiled.forcedKeynumber);
+            writeConnections(compiled.connections);
+        }
+
+        void writeInstrument(Instrument instrument) throws IOException {
+            if (!(instrument instanceof ModelInstrument))
+                throw new IOException("Unknown instrument: "
+                        + instrument.getClass().getName());
+            ModelPerformer[] performers
+                    = ((ModelInstrument) instrument).getPerformers();
+            writeString(instrument.getName());
+            out.writeInt(instrument.getPatch().getBank());
+            out.writeInt(instrument.getPatch().getProgram());
+            out.writeBoolean(instrument.getPatch() instanceof ModelPatch
+                    && ((ModelPatch) instrument.getPatch()).isPercussion());
+            out.writeInt(performers.length);
+            for (ModelPerformer performer : performers)
+                writePerformer(performer);
+
+            ModelStandardIndexedDirector director
+                    = new ModelStandardIndexedDirector(performers, null);
+            for (byte[] trantable : director.trantables) {
+                out.writeInt(trantable.length);
+                out.write(trantable);
+            }
+            for (int counter : director.counters)
+                out.writeInt(counter);
+            out.writeInt(director.mat.length);
+            for (int[] m : director.mat) {
+                out.writeInt(m == null ? -1 : m.length);
+                if (m != null)
+                    for (int ix : m)
+                        out.writeInt(ix);
+            }
+        }
+    }
+
+    private static void write(Soundbank soundbank, File file, byte[] hash,
+            File cachefile) throws IOException {
+        // The body first, it collects the strings, sample buffers and
+        // connections
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Writer writer = new Writer(file, body);
+        writer.writeString(soundbank.getName());
+        writer.writeString(soundbank.getVersion());
+        writer.writeString(soundbank.getVendor());
+        writer.writeString(soundbank.getDescription());
+        Instrument[] instruments = soundbank.getInstruments();
+        writer.out.writeInt(instruments.length);
+        for (Instrument instrument : instruments)
+            writer.writeInstrument(instrument);
+        writer.out.flush();
+
+        File tmpfile = new File(cachefile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(tmpfile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(file.length());
+            out.write(hash);
+            out.writeInt(writer.strings.size());
+            for (String s : writer.strings.keySet()) {
+                byte[] bytes = s.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(writer.bufferlist.size());
+            for (ModelByteBuffer buffer : writer.bufferlist) {
+                ModelByteBuffer root = buffer.getRoot();
+                if (root == buffer) {
+                    out.writeInt(-1);
+                    out.writeLong(root.getFilePointer());
+                } else {
+                    out.writeInt(writer.buffers.get(root));
+                    out.writeLong(buffer.arrayOffset());
+                }
+                out.writeLong(buffer.capacity());
+            }
+            out.writeInt(writer.connections.size());
+            for (String conn : writer.connections.keySet())
+                out.write(conn.getBytes("ISO-8859-1"));
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+        cachefile.delete();
+        if (!tmpfile.renameTo(cachefile)) {
+            tmpfile.delete();
+            throw new IOException("Can not write " + cachefile);
+        }
+    }
+
+    // Reading
+
+    private static class Reader {
+
+        final ByteBuffer in;
+        String[] strings;
+        ModelByteBuffer[] buffers;
+        ModelConnectionBlock[] connections;
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        boolean readBoolean() {
+            return in.get() != 0;
+        }
+
+        String readString() throws IOException {
+            int ix = in.getInt();
+            if (ix == -1)
+                return null;
+            if (ix < 0 || ix >= strings.length)
+                throw new InvalidDataException();
+            return strings[ix];
+        }
+
+        ModelByteBuffer readBuffer() throws IOException {
+            int ix = in.getInt();
+            if (ix == -1)
+                return null;
+            if (ix < 0 || ix >= buffers.length)
+                throw new InvalidDataException();
+            return buffers[ix];
+        }
+
+        ModelTransform readTransform() throws IOException {
+            int type = in.get();
+            switch (type) {
+                case TRANSFORM_NONE:
+                    return null;
+                case TRANSFORM_STANDARD:
+                    boolean direction = readBoolean();
+                    boolean polarity = readBoolean();
+                    return new ModelStandardTransform(direction, polarity,
+                            in.getInt());
+                case TRANSFORM_VELOCITY_TO_FILTER:
+                    return SF2Instrument.VELOCITY_TO_FILTER_TRANSFORM;
+                case TRANSFORM_VIBRATO_DEPTH:
+                    return new SoftPerformer.VibratoDepthTransform(
+                            in.getDouble());
+                default:
+                    throw new InvalidDataException();
+            }
+        }
+
+        ModelIdentifier readIdentifier() throws IOException {
+            if (!readBoolean())
+                return null;
+            String object = readString();
+            String variable = readString();
+            return new ModelIdentifier(object, variable, in.getInt());
+        }
+
+        ModelConnectionBlock readConnection() throws IOException {
+            int ix = in.getInt();
+            if (ix != -1) {
+                if (ix < 0 || ix >= SoftPerformer.defaultconnections.length)
+                    throw new InvalidDataException();
+                return SoftPerformer.defaultconnections[ix];
+            }
+            ModelConnectionBlock conn = new ModelConnectionBlock();
+            int count = in.getInt();
+            if (count == -1) {
+                conn.setSources(null);
+            } else if (count != 0) {
+                ModelSource[] sources = new ModelSource[count];
+                for (int s = 0; s < count; s++) {
+                    ModelIdentifier id = readIdentifier();
+                    sources[s] = new ModelSource(id, readTransform());
+                }
+                conn.setSources(sources);
+            }
+            conn.setScale(in.getDouble());
+            if (readBoolean()) {
+                ModelDestination dest = new ModelDestination(readIdentifier());
+                dest.setTransform(readTransform());
+                conn.setDestination(dest);
+            }
+            return conn;
+        }
+
+        // Connections are shared by all performers using them, like the
+        // default connections of SoftPerformer
+        ModelConnectionBlock[] readConnections() throws IOException {
+            ModelConnectionBlock[] result
+                    = new ModelConnectionBlock[in.getInt()];
+            for (int i = 0; i < result.length; i++) {
+                int ix = in.getInt();
+                if (ix < 0 || ix >= connections.length)
+                    throw new InvalidDataException();
+                result[i] = connections[ix];
+            }
+            return result;
+        }
+
+        ModelOscillator readOscillator() throws IOException {
+            ModelByteBuffer buffer = readBuffer();
+            ModelByteBuffer buffer8 = readBuffer();
+            ModelByteBufferWavetable osc;
+            if (readBoolean()) {
+                String name = readString();
+                Encoding encoding = null;
+                for (Encoding e : ENCODINGS)
+                    if (e.toString().equals(name))
+                        encoding = e;
+                if (encoding == null)
+                    encoding = new Encoding(name);
+                float samplerate = in.getFloat();
+                int bits = in.getInt();
+                int channels = in.getInt();
+                int framesize = in.getInt();
+                float framerate = in.getFloat();
+                AudioFormat format = new AudioFormat(encoding, samplerate,
+                        bits, channels, framesize, framerate, readBoolean());
+                osc = new ModelByteBufferWavetable(buffer, format);
+            } else {
+                osc = new ModelByteBufferWavetable(buffer);
+            }
+            if (buffer8 != null)
+                osc.set8BitExtensionBuffer(buffer8);
+            osc.setLoopStart(in.getFloat());
+            osc.setLoopLength(in.getFloat());
+            osc.setLoopType(in.getInt());
+            osc.setPitchcorrection(in.getFloat());
+            osc.setAttenuation(in.getFloat());
+            return osc;
+        }
+
+        ModelPerformer readPerformer() throws IOException {
+            ModelPerformer performer = new ModelPerformer();
+            performer.setName(readString());
+            performer.setKeyFrom(in.getInt());
+            performer.setKeyTo(in.getInt());
+            performer.setVelFrom(in.getInt());
+            performer.setVelTo(in.getInt());
+            performer.setExclusiveClass(in.getInt());
+            performer.setReleaseTriggered(readBoolean());
+            performer.setSelfNonExclusive(readBoolean());
+            performer.setDefaultConnectionsEnabled(readBoolean());
+            int count = in.getInt();
+            for (int i = 0; i < count; i++)
+                performer.getOscillators().add(readOscillator());
+            performer.getConnectionBlocks().addAll(
+                    Arrays.asList(readConnections()));
+            return performer;
+        }
+
+        SoftCompiledInstrument readInstrument(Soundbank soundbank)
+                throws IOException {
+            String name = readString();
+            int bank = in.getInt();
+            int program = in.getInt();
+            boolean percussion = readBoolean();
+            int count = in.getInt();
+            ModelPerformer[] performers = new ModelPerformer[count];
+            ModelConnectionBlock[][] connections
+                    = new ModelConnectionBlock[count][];
+            boolean[] forcedVelocity = new boolean[count];
+            boolean[] forcedKeynumber = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                performers[i] = readPerformer();
+                forcedVelocity[i] = readBoolean();
+                forcedKeynumber[i] = readBoolean();
+                connections[i] = readConnections();
+            }
+
+            byte[][] trantables = new byte[2][];
+            for (int i = 0; i < trantables.length; i++) {
+                trantables[i] = new byte[in.getInt()];
+                in.get(trantables[i]);
+            }
+            int[] counters = new int[trantables.length];
+            for (int i = 0; i < counters.length; i++)
+                counters[i] = in.getInt();
+            int[][] mat = new int[in.getInt()][];
+            for (int i = 0; i < mat.length; i++) {
+                int len = in.getInt();
+                if (len == -1)
+                    continue;
+                mat[i] = new int[len];
+                for (int j = 0; j < len; j++)
+                    mat[i][j] = in.getInt();
+            }
+
+            return new SoftCompiledInstrument(soundbank,
+                    new ModelPatch(bank, program, percussion), name,
+                    performers, connections, forcedVelocity, forcedKeynumber,
+                    trantables, counters, mat);
+        }
+    }
+
+    private static Soundbank read(File file, byte[] hash, File cachefile)
+            throws IOException {
+        ByteBuffer in;
+        RandomAccessFile raf = new RandomAccessFile(cachefile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                return null;
+            if (in.getLong() != file.length())
+                return null;
+            byte[] cachehash = new byte[hash.length];
+            in.get(cachehash);
+            if (!Arrays.equals(hash, cachehash))
+                return null;
+
+            Reader reader = new Reader(in);
+            reader.strings = new String[in.getInt()];
+            for (int i = 0; i < reader.strings.length; i++) {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                reader.strings[i] = new String(bytes, "UTF-8");
+            }
+
+            ModelByteBuffer data = new ModelByteBuffer(file);
+            try {
+                data.map();
+            } catch (IOException e) {
+                // Samples are read from the file when loaded
+            }
+            reader.buffers = new ModelByteBuffer[in.getInt()];
+            for (int i = 0; i < reader.buffers.length; i++) {
+                int parent = in.getInt();
+                long offset = in.getLong();
+                long capacity = in.getLong();
+                if (parent == -1) {
+                    reader.buffers[i] = data.subbuffer(offset,
+                            offset + capacity, true);
+                } else {
+                    if (parent < 0 || parent >= i)
+                        throw new InvalidDataException();
+                    reader.buffers[i] = reader.buffers[parent].subbuffer(
+                            offset, offset + capacity);
+                }
+            }
+
+            reader.connections = new ModelConnectionBlock[in.getInt()];
+            for (int i = 0; i < reader.connections.length; i++)
+                reader.connections[i] = reader.readConnection();
+
+            SimpleSoundbank soundbank = new SimpleSoundbank();
+            soundbank.setName(reader.readString());
+            soundbank.setVersion(reader.readString());
+            soundbank.setVendor(reader.readString());
+            soundbank.setDescription(reader.readString());
+            int count = in.getInt();
+            for (int i = 0; i < count; i++)
+                soundbank.addInstrument(reader.readInstrument(soundbank));
+            return soundbank;
+        } catch (BufferUnderflowException e) {
+            return null; // truncated
+        } catch (InvalidDataException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
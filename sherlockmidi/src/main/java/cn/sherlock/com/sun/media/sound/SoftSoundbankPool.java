@@ -0,0 +1,325 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.kshoji.javax.sound.midi.Instrument;
+import jp.kshoji.javax.sound.midi.Soundbank;
+
+/**
+ * Soundbanks shared by all synthesizers of the process.
+ *
+ * acquire returns the same soundbank for the same file, and for files
+ * with the same contents, so synthesizers loading it share its samples.
+ * The performers of its instruments and the SoftPerformers compiled from
+ * them are shared too, they are not changed once compiled.
+ *
+ * Every acquire must be matched by a release once the synthesizers
+ * using the soundbank are closed, or have unloaded its instruments. The
+ * samples of the soundbank are unloaded when the last user releases it,
+ * a voice still playing one reads it from the file.
+ *
+ * With a cachedir the hash SoftSoundbankCache recorded for the file is
+ * used while the file keeps its length and modification time.
+ *
+ * The file is hashed and read without holding the lock of the pool, the
+ * other callers acquiring the same file wait for it, and the other pooled
+ * soundbanks can be used meanwhile.
+ */
+public class SoftSoundbankPool {
+
+    private static class Entry {
+        // Set before done, read after done
+        Soundbank soundbank;
+        int refcount = 0;
+        String hashkey;
+        // Guarded by the entry, set when the soundbank has been read, or
+        // could not be read, or the file is found to have the contents of
+        // the alias entry
+        boolean done = false;
+        IOException error;
+        Entry alias;
+        // Guarded by the entry
+        final Map<ModelInstrument, ModelPerformer[]> performers
+                = new IdentityHashMap<ModelInstrument, ModelPerformer[]>();
+        final Map<ModelPerformer, SoftPerformer> softperformers
+                = new IdentityHashMap<ModelPerformer, SoftPerformer>();
+    }
+
+    // Guarded by SoftSoundbankPool.class
+    private static final Map<String, Entry> files
+            = new HashMap<String, Entry>();
+    private static final Map<String, Entry> hashes
+            = new HashMap<String, Entry>();
+    private static final Map<Soundbank, Entry> soundbanks
+            = new IdentityHashMap<Soundbank, Entry>();
+
+    private SoftSoundbankPool() {
+    }
+
+    /**
+     * Returns the pooled soundbank of the SF2 file, reading it if no
+     * soundbank of the file, or of a file with the same contents, is in
+     * the pool.
+     */
+    public static Soundbank acquire(File file) throws IOException {
+        return acquire(file, null);
+    }
+
+    /**
+     * Like acquire(File), but reads a soundbank that is not pooled with
+     * SoftSoundbankCache from cachedir, unless cachedir is null.
+     */
+    public static Soundbank acquire(File file, File cachedir)
+            throws IOException {
+        String filekey = file.getCanonicalPath() + ":" + file.length()
+                + ":" + file.lastModified();
+        Entry entry;
+        boolean read = false;
+        synchronized (SoftSoundbankPool.class) {
+            entry = files.get(filekey);
+            if (entry == null) {
+                // Other callers acquiring the file wait for this one
+                entry = new Entry();
+                files.put(filekey, entry);
+                read = true;
+            }
+            entry.refcount++;
+        }
+        if (!read)
+            return await(entry);
+
+        Soundbank soundbank = null;
+        IOException error = null;
+        try {
+            byte[] hash = cachedir != null
+                    ? SoftSoundbankCache.hash(file, cachedir)
+                    : SoftSoundbankCache.hash(file);
+            String hashkey = SoftSoundbankCache.toHex(hash);
+            Entry same;
+            synchronized (SoftSoundbankPool.class) {
+                same = hashes.get(hashkey);
+                if (same != null) {
+                    // A file with the same contents is pooled, or being
+                    // read, its entry takes the users of this one
+                    files.put(filekey, same);
+                    same.refcount += entry.refcount;
+                } else {
+                    entry.hashkey = hashkey;
+                    hashes.put(hashkey, entry);
+                }
+            }
+            if (same != null) {
+                synchronized (entry) {
+                    entry.alias = same;
+                    entry.done = true;
+                    entry.notifyAll();
+                }
+                soundbank = await(same);
+                return soundbank;
+            }
+            if (cachedir != null) {
+                soundbank = SoftSoundbankCache.getSoundbank(file, hash,
+                        cachedir);
+            } else
+                soundbank = new SF2Soundbank(file);
+            entry.soundbank = soundbank;
+            synchronized (SoftSoundbankPool.class) {
+                soundbanks.put(soundbank, entry);
+            }
+            synchronized (entry) {
+                entry.done = true;
+                entry.notifyAll();
+            }
+            return soundbank;
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            // The entry taking the users of an alias fails on its own
+            if (soundbank == null && entry.alias == null)
+                fail(entry, error);
+        }
+    }
+
+    // Waits until the soundbank of entry has been read
+    private static Soundbank await(Entry entry) throws IOException {
+        boolean interrupted = false;
+        synchronized (entry) {
+            while (!entry.done) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    // The users counted on the entry are released by
+                    // returning the soundbank, the wait is not cut short
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (entry.alias != null)
+            return await(entry.alias);
+        if (entry.soundbank == null)
+            throw new IOException("Soundbank could not be read.",
+                    entry.error);
+        return entry.soundbank;
+    }
+
+    // Removes an entry whose soundbank could not be read, with the files
+    // of the same contents, the callers waiting for it get the error
+    private static void fail(Entry entry, IOException error) {
+        synchronized (SoftSoundbankPool.class) {
+            removeFiles(entry);
+            if (entry.hashkey != null && hashes.get(entry.hashkey) == entry)
+                hashes.remove(entry.hashkey);
+        }
+        synchronized (entry) {
+            entry.error = error;
+            entry.done = true;
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Release a soundbank returned by acquire. When it has no users left
+     * it is removed from the pool and its samples are unloaded.
+     */
+    public static void release(Soundbank soundbank) {
+        Entry entry;
+        synchronized (SoftSoundbankPool.class) {
+            entry = soundbanks.get(soundbank);
+            if (entry == null)
+                throw new IllegalArgumentException("Soundbank not pooled.");
+            if (--entry.refcount > 0)
+                return;
+            soundbanks.remove(soundbank);
+            hashes.remove(entry.hashkey);
+            removeFiles(entry);
+        }
+        unloadSamples(entry);
+    }
+
+    // Must be called holding the lock of SoftSoundbankPool.class
+    private static void removeFiles(Entry entry) {
+        List<String> keys = new ArrayList<String>();
+        for (Map.Entry<String, Entry> e : files.entrySet())
+            if (e.getValue() == entry)
+                keys.add(e.getKey());
+        for (String key : keys)
+            files.remove(key);
+    }
+
+    /**
+     * Get the number of users of a pooled soundbank, 0 if it is not in
+     * the pool.
+     */
+    public static synchronized int getReferenceCount(Soundbank soundbank) {
+        Entry entry = soundbanks.get(soundbank);
+        return entry == null ? 0 : entry.refcount;
+    }
+
+    private static synchronized Entry getEntry(ModelInstrument ins) {
+        return soundbanks.get(ins.getSoundbank());
+    }
+
+    /**
+     * Returns the performers of ins, the same performers for every
+     * synthesizer if ins is an instrument of a pooled soundbank.
+     */
+    static ModelPerformer[] getPerformers(ModelInstrument ins) {
+        Entry entry = getEntry(ins);
+        if (entry == null)
+            return ins.getPerformers();
+        synchronized (entry) {
+            ModelPerformer[] performers = entry.performers.get(ins);
+            if (performers != null)
+                return performers.clone();
+        }
+        ModelPerformer[] performers = ins.getPerformers();
+        synchronized (entry) {
+            // Unless another synthesizer got them first
+            ModelPerformer[] p = entry.performers.get(ins);
+            if (p == null)
+                entry.performers.put(ins, performers);
+            else
+                performers = p;
+            return performers.clone();
+        }
+    }
+
+    /**
+     * Returns performer compiled to a SoftPerformer, compiled once for
+     * all synthesizers if ins is an instrument of a pooled soundbank.
+     */
+    static SoftPerformer getSoftPerformer(ModelInstrument ins,
+            ModelPerformer performer) {
+        Entry entry = getEntry(ins);
+        if (entry == null)
+            return compile(ins, performer);
+        synchronized (entry) {
+            SoftPerformer softperformer = entry.softperformers.get(performer);
+            if (softperformer != null)
+                return softperformer;
+        }
+        SoftPerformer softperformer = compile(ins, performer);
+        synchronized (entry) {
+            SoftPerformer p = entry.softperformers.get(performer);
+            if (p != null)
+                return p;
+            entry.softperformers.put(performer, softperformer);
+            return softperformer;
+        }
+    }
+
+    private static SoftPerformer compile(ModelInstrument ins,
+            ModelPerformer performer) {
+        if (ins instanceof SoftCompiledInstrument) {
+            return ((SoftCompiledInstrument) ins)
+                    .createSoftPerformer(performer);
+        }
+        return new SoftPerformer(performer);
+    }
+
+    /**
+     * Returns true if soundbank is in the pool, its samples are unloaded
+     * by the pool and not by a synthesizer.
+     */
+    static synchronized boolean isPooled(Soundbank soundbank) {
+        return soundbanks.containsKey(soundbank);
+    }
+
+    private static void unloadSamples(Entry entry) {
+        List<ModelPerformer[]> performers = new ArrayList<ModelPerformer[]>();
+        synchronized (entry) {
+            entry.performers.clear();
+            entry.softperformers.clear();
+        }
+        for (Instrument ins : entry.soundbank.getInstruments())
+            if (ins instanceof ModelInstrument)
+                performers.add(((ModelInstrument) ins).getPerformers());
+        for (ModelPerformer[] p : performers) {
+            for (ModelPerformer performer : p) {
+                if (performer.getOscillators() == null)
+                    continue;
+                for (ModelOscillator osc : performer.getOscillators()) {
+                    if (!(osc instanceof ModelByteBufferWavetable))
+                        continue;
+                    ModelByteBufferWavetable w = (ModelByteBufferWavetable) osc;
+                    unload(w.getBuffer());
+                    unload(w.get8BitExtensionBuffer());
+                }
+            }
+        }
+    }
+
+    private static void unload(ModelByteBuffer buffer) {
+        if (buffer != null && buffer.getRoot().getFile() != null)
+            buffer.unload();
+    }
+}
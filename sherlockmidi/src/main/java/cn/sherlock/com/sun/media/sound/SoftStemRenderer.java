@@ -0,0 +1,336 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jp.kshoji.javax.sound.midi.MidiUnavailableException;
+import jp.kshoji.javax.sound.midi.Sequence;
+import jp.kshoji.javax.sound.midi.Soundbank;
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+
+/**
+ * Renders a Sequence into one WAVE file per stem, a stem being a group
+ * of MIDI channels.
+ *
+ * With one thread all stems are rendered in a single pass: every stem
+ * gets a ModelChannelMixer registered on the main mixer, and the voices
+ * of its channels are routed through it. Stems rendered this way are dry,
+ * reverb and chorus are shared by all channels and only end up in the
+ * main mix, and master volume and the limiter are not applied.
+ *
+ * With more threads each stem is rendered by its own synthesizer, which
+ * only receives the channel messages of the stem. All synthesizers share
+ * the sample data of the soundbank. Stems rendered this way include the
+ * effects and the master section.
+ */
+public class SoftStemRenderer {
+
+    // Captures the dry output of the voices routed through it.
+    private static class StemMixer extends ModelAbstractChannelMixer {
+
+        private final OutputStream out;
+        private final AudioFloatConverter converter;
+        private final int nrofchannels;
+        private final int samplesize;
+        private float[] interleaved = new float[0];
+        private byte[] bytes = new byte[0];
+        private IOException exception = null;
+        private long remaining;
+        private final SoftOfflineRenderer renderer;
+
+        StemMixer(OutputStream out, AudioFormat format,
+                SoftOfflineRenderer renderer, long frames) {
+            this.out = out;
+            remaining = frames;
+            this.renderer = renderer;
+            converter = AudioFloatConverter.getConverter(format);
+            nrofchannels = format.getChannels();
+            samplesize = (format.getSampleSizeInBits() + 7) / 8;
+        }
+
+        public boolean process(float[][] buffer, int offset, int len) {
+            // The main output lags the mixers by the limiter latency,
+            // the last blocks rendered are past the end of the stem.
+            if (len > remaining)
+                len = (int) remaining;
+            if (exception != null || len == 0)
+                return true;
+            remaining -= len;
+            int samples = len * nrofchannels;
+            if (interleaved.length < samples) {
+                interleaved = new float[samples];
+                bytes = new byte[samples * samplesize];
+            }
+            for (int c = 0; c < nrofchannels; c++) {
+                float[] in = buffer[c];
+                int ix = c;
+                for (int i = 0; i < len; i++) {
+                    interleaved[ix] = in[offset + i];
+                    ix += nrofchannels;
+                }
+            }
+            converter.toByteArray(interleaved, samples, bytes);
+            try {
+                out.write(bytes, 0, samples * samplesize);
+            } catch (IOException e) {
+                exception = e;
+                renderer.cancel();
+            }
+            return true;
+        }
+
+        public void stop() {
+        }
+    }
+
+    private final Soundbank soundbank;
+    private AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+    private Map<String, Object> info = null;
+    private long tail_length = 2000000;
+    private int[][] stems;
+    private int threads = 1;
+    private SoftOfflineRenderer.ProgressListener listener = null;
+    private final List<SoftOfflineRenderer> renderers
+            = new ArrayList<SoftOfflineRenderer>();
+    private volatile boolean cancelled = false;
+
+    public SoftStemRenderer(Soundbank soundbank) {
+        this.soundbank = soundbank;
+        stems = new int[16][];
+        for (int i = 0; i < stems.length; i++)
+            stems[i] = new int[] { i };
+    }
+
+    public void setFormat(AudioFormat format) {
+        // Validates the format
+        new SoftOfflineRenderer(soundbank).setFormat(format);
+        this.format = format;
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    public void setSynthesizerProperties(Map<String, Object> info) {
+        this.info = info;
+    }
+
+    public void setTailLength(long microseconds) {
+        if (microseconds < 0)
+            throw new IllegalArgumentException("Negative tail length.");
+        tail_length = microseconds;
+    }
+
+    /**
+     * Set the MIDI channels of each stem. The default is one stem per
+     * channel, 16 stems.
+     */
+    public void setStems(int[][] stems) {
+        for (int[] stem : stems)
+            for (int channel : stem)
+                if (channel < 0 || channel > 15)
+                    throw new IllegalArgumentException(
+                            "Invalid MIDI channel: " + channel);
+        this.stems = stems;
+    }
+
+    public int[][] getStems() {
+        return stems;
+    }
+
+    /**
+     * Number of synthesizers rendering stems in parallel, with 1 (the
+     * default) all stems are rendered in one pass of one synthesizer.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid thread count.");
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Progress over all stems, called from the rendering threads.
+     */
+    public void setProgressListener(
+            SoftOfflineRenderer.ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    public void cancel() {
+        synchronized (renderers) {
+            cancelled = true;
+            for (SoftOfflineRenderer renderer : renderers)
+                renderer.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private SoftOfflineRenderer createRenderer(SoftOfflineRenderer renderer) {
+        renderer.setFormat(format);
+        renderer.setSynthesizerProperties(info);
+        renderer.setTailLength(tail_length);
+        synchronized (renderers) {
+            if (cancelled)
+                renderer.cancel();
+            renderers.add(renderer);
+        }
+        return renderer;
+    }
+
+    /**
+     * Render sequence into files, one file for each stem.
+     *
+     * @return false if the render was cancelled
+     */
+    public boolean render(Sequence sequence, File[] files)
+            throws IOException, MidiUnavailableException {
+        if (files.length != stems.length)
+            throw new IllegalArgumentException(
+                    "Expected " + stems.length + " files.");
+        synchronized (renderers) {
+            cancelled = false;
+            renderers.clear();
+        }
+        if (threads == 1)
+            return renderSinglePass(sequence, files);
+        else
+            return renderParallel(sequence, files);
+    }
+
+    private boolean renderSinglePass(Sequence sequence, File[] files)
+            throws IOException, MidiUnavailableException {
+
+        final RIFFWriter[] writers = new RIFFWriter[files.length];
+        final RIFFWriter[] data_chunks = new RIFFWriter[files.length];
+        final StemMixer[] mixers = new StemMixer[files.length];
+        try {
+            final SoftOfflineRenderer renderer = new SoftOfflineRenderer(
+                    soundbank) {
+                protected void prepare(SoftSynthesizer synth, long frames) {
+                    SoftMainMixer mainmixer = synth.getMainMixer();
+                    synchronized (synth.control_mutex) {
+                        for (int i = 0; i < stems.length; i++) {
+                            mixers[i] = new StemMixer(data_chunks[i],
+                                    getFormat(), this, frames);
+                            mainmixer.registerMixer(mixers[i]);
+                            for (int channel : stems[i])
+                                if (channel < synth.channels.length)
+                                    synth.channels[channel].output_mixer
+                                            = mixers[i];
+                        }
+                    }
+                }
+            };
+            createRenderer(renderer);
+            renderer.setProgressListener(listener);
+            for (int i = 0; i < files.length; i++) {
+                writers[i] = new RIFFWriter(files[i], "WAVE");
+                SoftOfflineRenderer.writeFormatChunk(writers[i], format);
+                data_chunks[i] = writers[i].writeChunk("data");
+            }
+
+            // The main mix is not needed
+            boolean completed = renderer.render(sequence, new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+
+            for (StemMixer mixer : mixers)
+                if (mixer != null && mixer.exception != null)
+                    throw mixer.exception;
+            return completed;
+        } finally {
+            for (RIFFWriter writer : writers)
+                if (writer != null)
+                    writer.close();
+        }
+    }
+
+    private boolean renderParallel(final Sequence sequence, File[] files)
+            throws IOException, MidiUnavailableException {
+
+        final long[] positions = new long[stems.length];
+        final long[] lengths = new long[stems.length];
+        final SoftOfflineRenderer.ProgressListener listener = this.listener;
+
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+        for (int i = 0; i < stems.length; i++) {
+            final int stem = i;
+            final File file = files[i];
+            final SoftOfflineRenderer renderer = createRenderer(
+                    new SoftOfflineRenderer(soundbank));
+            renderer.setChannels(stems[i]);
+            if (listener != null) {
+                renderer.setProgressListener(
+                        new SoftOfflineRenderer.ProgressListener() {
+                    public void progress(long position, long length) {
+                        long total_position = 0;
+                        long total_length = 0;
+                        synchronized (positions) {
+                            positions[stem] = position;
+                            lengths[stem] = length;
+                            for (int j = 0; j < positions.length; j++) {
+                                total_position += positions[j];
+                                total_length += lengths[j];
+                            }
+                        }
+                        listener.progress(total_position, total_length);
+                    }
+                });
+            }
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    if (cancelled)
+                        return false;
+                    return renderer.render(sequence, file);
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threads, tasks.size()));
+        try {
+            boolean completed = true;
+            for (Future<Boolean> future : executor.invokeAll(tasks)) {
+                if (!future.get())
+                    completed = false;
+            }
+            return completed;
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            cancel();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof MidiUnavailableException)
+                throw (MidiUnavailableException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -29,16 +29,32 @@ import android.support.annotation.NonNull;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
@@ -47,10 +63,12 @@ import jp.kshoji.javax.sound.midi.Instrument;
 import jp.kshoji.javax.sound.midi.MidiChannel;
 import jp.kshoji.javax.sound.midi.MidiUnavailableException;
 import jp.kshoji.javax.sound.midi.Patch;
+import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.Soundbank;
 import jp.kshoji.javax.sound.midi.Transmitter;
 import jp.kshoji.javax.sound.midi.VoiceStatus;
 import cn.sherlock.javax.sound.sampled.AudioFormat;
+import cn.sherlock.javax.sound.sampled.AudioFormat.Encoding;
 import cn.sherlock.javax.sound.sampled.AudioInputStream;
 import cn.sherlock.javax.sound.sampled.AudioSystem;
 import cn.sherlock.javax.sound.sampled.LineUnavailableException;
@@ -186,11 +204,42 @@ public class SoftSynthesizer implements AudioSynthesizer,
     // 1: DLS Voice Allocation
     protected int voice_allocation_mode = 0;
 
+    private String voice_stealing = "release-first";
+    private int channel_voice_limit = 16;
+    private VoiceStealingPolicy voice_stealing_policy
+            = new SoftReleaseFirstStealingPolicy();
+
     protected boolean load_default_soundbank = false;
     protected boolean reverb_light = true;
     protected boolean reverb_on = true;
     protected boolean chorus_on = true;
     protected boolean agc_on = true;
+    protected int render_threads = 1;
+    protected int midi_queue_size = 1024;
+    protected boolean sample_accurate = false;
+    // Released voices quieter than cull_level for cull_blocks control
+    // blocks are stopped, cull_level 0 turns culling off
+    protected float cull_level = 0;
+    protected int cull_blocks = 8;
+    private long culled_voices = 0;
+    // Decoded samples, null when sample_cache_size is 0
+    protected SoftSampleCache sample_cache = null;
+    private long sample_cache_size = 0;
+    // Streams samples from disk, null when disk_streaming is off
+    protected SoftDiskStreamer disk_streamer = null;
+    private boolean disk_streaming = false;
+    private int stream_preload = 500;
+    // Threads compiling instruments and loading samples
+    private int load_threads = Runtime.getRuntime().availableProcessors();
+    // Instruments are evicted when the loaded samples of the loaded
+    // instruments take more bytes than this, 0 turns eviction off
+    private long sample_memory_limit = 0;
+    // Loaded 16-bit samples are held compressed
+    private boolean sample_compression = false;
+    private long evictions = 0;
+    private long reloads = 0;
+    private long reload_time = 0;
+    private long[] culled_channel_voices = new long[0];
 
     protected SoftChannel[] channels;
     protected SoftChannelProxy[] external_channels = null;
@@ -226,6 +275,7 @@ public class SoftSynthesizer implements AudioSynthesizer,
 
     private SoftMainMixer mainmixer;
     private SoftVoice[] voices;
+    protected SoftVoiceIndex voiceindex;
 
     private Map<String, SoftTuning> tunings
             = new HashMap<>();
@@ -233,12 +283,32 @@ public class SoftSynthesizer implements AudioSynthesizer,
             = new HashMap<>();
     private Map<String, ModelInstrument> loadedlist
             = new HashMap<>();
+    // Soundbank to load the patches missing from inslist from
+    private Soundbank prefetch_soundbank = null;
+    private Set<String> prefetch_pending = new HashSet<>();
+    // Loads the prefetched and reloaded instruments, one at a time, its
+    // thread is started by open and not while rendering
+    private ThreadPoolExecutor instrument_loader = null;
+    // The bank of the last lookup of each program on each channel handed
+    // to the loader, by channel * 128 + program, and the
+    // prefetch_generation it was made in
+    private int[] prefetched_bank = new int[0];
+    private int[] prefetched_generation = new int[0];
+    // Changed when a patch may have to be loaded again: an instrument is
+    // evicted or unloaded, or the prefetch soundbank is set
+    private int prefetch_generation = 0;
+    // Evicted instruments, loaded again when they are played
+    private Map<String, SoftInstrument> evictedlist = new HashMap<>();
+    // Evicted samples that were memory mapped, they are mapped again
+    // instead of loaded when their instrument is loaded again
+    private Set<ModelByteBuffer> unmapped = Collections.newSetFromMap(
+            new IdentityHashMap<ModelByteBuffer, Boolean>());
 
     private ArrayList<MidiDeviceReceiver> recvslist = new ArrayList<>();
 
-    private void getBuffers(ModelInstrument instrument,
+    private void getBuffers(ModelPerformer[] performers,
             List<ModelByteBuffer> buffers) {
-        for (ModelPerformer performer : instrument.getPerformers()) {
+        for (ModelPerformer performer : performers) {
             if (performer.getOscillators() != null) {
                 for (ModelOscillator osc : performer.getOscillators()) {
                     if (osc instanceof ModelByteBufferWavetable) {
@@ -255,43 +325,392 @@ public class SoftSynthesizer implements AudioSynthesizer,
         }
     }
 
-    private boolean loadSamples(List<ModelInstrument> instruments) {
+    private long getSampleBytes(List<ModelPerformer[]> performers) {
+        List<ModelByteBuffer> buffers = new ArrayList<>();
+        for (ModelPerformer[] p : performers)
+            getBuffers(p, buffers);
+        // Instruments share the buffers of their samples
+        Set<ModelByteBuffer> distinct = Collections.newSetFromMap(
+                new IdentityHashMap<ModelByteBuffer, Boolean>());
+        long bytes = 0;
+        for (ModelByteBuffer buff : buffers)
+            if (distinct.add(buff))
+                bytes += buff.capacity();
+        return bytes;
+    }
+
+    // Runs tasks on up to load_threads threads, returns their results in
+    // the order of tasks
+    private <T> List<T> invokeAll(List<Callable<T>> tasks)
+            throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        int threads = Math.min(load_threads, tasks.size());
+        if (threads <= 1) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (IOException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            return results;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<T> future : executor.invokeAll(tasks))
+                results.add(future.get());
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // performers are the performers of each of instruments
+    private boolean loadSamples(List<ModelInstrument> instruments,
+            List<ModelPerformer[]> performers) {
+        SoftDiskStreamer streamer = disk_streamer;
+        if (streamer != null) {
+            try {
+                for (ModelPerformer[] p : performers)
+                    streamer.preload(p);
+            } catch (IOException e) {
+                return false;
+            }
+            return true;
+        }
         if (largemode)
             return true;
         List<ModelByteBuffer> buffers = new ArrayList<>();
-        for (ModelInstrument instrument : instruments)
-            getBuffers(instrument, buffers);
+        for (ModelPerformer[] p : performers)
+            getBuffers(p, buffers);
+
+        // Each thread loads its own share of the samples, a sample must
+        // only be loaded by one thread
+        Set<ModelByteBuffer> roots = Collections.newSetFromMap(
+                new IdentityHashMap<ModelByteBuffer, Boolean>());
+        int threads = Math.max(1, load_threads);
+        final List<List<ModelByteBuffer>> shares = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            shares.add(new ArrayList<ModelByteBuffer>());
+        int n = 0;
+        for (ModelByteBuffer buff : buffers)
+            if (roots.add(buff.getRoot()))
+                shares.get(n++ % threads).add(buff.getRoot());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final List<ModelByteBuffer> share : shares) {
+            if (share.isEmpty())
+                continue;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    ModelByteBuffer.loadAll(share);
+                    return null;
+                }
+            });
+        }
         try {
-            ModelByteBuffer.loadAll(buffers);
+            invokeAll(tasks);
+            if (sample_compression) {
+                // The samples of pooled soundbanks are shared with other
+                // synthesizers, they are left as they are
+                List<ModelPerformer[]> owned = new ArrayList<>();
+                for (int i = 0; i < instruments.size(); i++)
+                    if (!SoftSoundbankPool.isPooled(
+                            instruments.get(i).getSoundbank()))
+                        owned.add(performers.get(i));
+                compressSamples(owned);
+            }
         } catch (IOException e) {
             return false;
         }
         return true;
     }
 
+    // Compresses the loaded 16-bit little-endian samples of performers
+    private void compressSamples(List<ModelPerformer[]> performers)
+            throws IOException {
+        Map<ModelByteBuffer, Integer> roots = new IdentityHashMap<>();
+        Set<ModelByteBuffer> extended = Collections.newSetFromMap(
+                new IdentityHashMap<ModelByteBuffer, Boolean>());
+        for (ModelPerformer[] p : performers) {
+            for (ModelPerformer performer : p) {
+                if (performer.getOscillators() == null)
+                    continue;
+                for (ModelOscillator osc : performer.getOscillators()) {
+                    if (!(osc instanceof ModelByteBufferWavetable))
+                        continue;
+                    ModelByteBufferWavetable w = (ModelByteBufferWavetable)osc;
+                    ModelByteBuffer buff = w.getBuffer();
+                    // Only data read into memory is compressed, mapped data
+                    // is paged in by the operating system and would be
+                    // copied into memory
+                    if (buff == null || !w.isRawData() || buff.array() == null)
+                        continue;
+                    // The 24-bit extension is read from the array of buff,
+                    // the samples sharing its root are not compressed
+                    if (w.get8BitExtensionBuffer() != null) {
+                        extended.add(buff.getRoot());
+                        continue;
+                    }
+                    AudioFormat format = w.getFormat();
+                    if (format.getEncoding().equals(Encoding.PCM_SIGNED)
+                            && format.getSampleSizeInBits() == 16
+                            && !format.isBigEndian()
+                            && !roots.containsKey(buff.getRoot()))
+                        roots.put(buff.getRoot(), format.getChannels());
+                }
+            }
+        }
+        roots.keySet().removeAll(extended);
+        int threads = Math.max(1, load_threads);
+        final List<List<Map.Entry<ModelByteBuffer, Integer>>> shares
+                = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            shares.add(new ArrayList<Map.Entry<ModelByteBuffer, Integer>>());
+        int n = 0;
+        for (Map.Entry<ModelByteBuffer, Integer> entry : roots.entrySet())
+            shares.get(n++ % threads).add(entry);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final List<Map.Entry<ModelByteBuffer, Integer>> share : shares) {
+            if (share.isEmpty())
+                continue;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (Map.Entry<ModelByteBuffer, Integer> entry : share)
+                        entry.getKey().compress(entry.getValue());
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
     private boolean loadInstruments(List<ModelInstrument> instruments) {
+        return loadInstruments(instruments, null);
+    }
+
+    // performers are the performers of each instrument to load,
+    // null loads all performers. The instruments are compiled and their
+    // samples loaded without holding control_mutex, it is only taken to
+    // put them in place.
+    private boolean loadInstruments(final List<ModelInstrument> instruments,
+            List<ModelPerformer[]> performers) {
         if (!isOpen())
             return false;
-        if (!loadSamples(instruments))
+        try {
+            if (performers == null) {
+                List<Callable<ModelPerformer[]>> tasks = new ArrayList<>();
+                for (final ModelInstrument instrument : instruments) {
+                    tasks.add(new Callable<ModelPerformer[]>() {
+                        public ModelPerformer[] call() {
+                            return SoftSoundbankPool.getPerformers(instrument);
+                        }
+                    });
+                }
+                performers = invokeAll(tasks);
+            }
+            if (!loadSamples(instruments, performers))
+                return false;
+
+            List<Callable<SoftInstrument>> tasks = new ArrayList<>();
+            for (int i = 0; i < instruments.size(); i++) {
+                final ModelInstrument instrument = instruments.get(i);
+                final ModelPerformer[] p = performers.get(i);
+                tasks.add(new Callable<SoftInstrument>() {
+                    public SoftInstrument call() {
+                        return new SoftInstrument(instrument, p);
+                    }
+                });
+            }
+            List<SoftInstrument> softinstruments = invokeAll(tasks);
+
+            synchronized (control_mutex) {
+                if (channels != null)
+                    for (SoftChannel c : channels)
+                    {
+                        c.current_instrument = null;
+                        c.current_director = null;
+                    }
+                for (int i = 0; i < instruments.size(); i++) {
+                    ModelInstrument instrument = instruments.get(i);
+                    String pat = patchToString(instrument.getPatch());
+                    SoftInstrument softins = softinstruments.get(i);
+                    softins.last_used = voiceIDCounter;
+                    inslist.put(pat, softins);
+                    loadedlist.put(pat, instrument);
+                    evictedlist.remove(pat);
+                }
+            }
+        } catch (IOException e) {
             return false;
+        }
+        evictInstruments();
+
+        return true;
+    }
 
+    // The loaded samples of ins that can be unloaded and loaded again,
+    // the samples of pooled soundbanks are shared with other synthesizers
+    private Set<ModelByteBuffer> getEvictableSamples(SoftInstrument ins) {
+        Set<ModelByteBuffer> roots = Collections.newSetFromMap(
+                new IdentityHashMap<ModelByteBuffer, Boolean>());
+        if (SoftSoundbankPool.isPooled(
+                ins.getSourceInstrument().getSoundbank()))
+            return roots;
+        List<ModelByteBuffer> buffers = new ArrayList<>();
+        getBuffers(ins.getModelPerformers(), buffers);
+        for (ModelByteBuffer buff : buffers) {
+            ModelByteBuffer root = buff.getRoot();
+            if (root.getFile() != null && (root.array() != null
+                    || root.isMapped() || root.isCompressed()))
+                roots.add(root);
+        }
+        return roots;
+    }
+
+    // Evicts the least recently played instruments until the samples of
+    // the loaded instruments fit in sample_memory_limit. Instruments with
+    // active voices, or selected on a channel, are not evicted.
+    private void evictInstruments() {
         synchronized (control_mutex) {
-            if (channels != null)
-                for (SoftChannel c : channels)
-                {
-                    c.current_instrument = null;
-                    c.current_director = null;
+            if (sample_memory_limit <= 0 || !isOpen())
+                return;
+            // The number of loaded instruments playing each sample
+            Map<ModelByteBuffer, Integer> users = new IdentityHashMap<>();
+            Map<SoftInstrument, Set<ModelByteBuffer>> samples
+                    = new IdentityHashMap<>();
+            long bytes = 0;
+            for (SoftInstrument ins : inslist.values()) {
+                Set<ModelByteBuffer> roots = getEvictableSamples(ins);
+                samples.put(ins, roots);
+                for (ModelByteBuffer root : roots) {
+                    Integer n = users.get(root);
+                    if (n == null)
+                        bytes += root.getMemorySize();
+                    users.put(root, n == null ? 1 : n + 1);
+                }
+            }
+            if (bytes <= sample_memory_limit)
+                return;
+
+            Set<SoftInstrument> busy = Collections.newSetFromMap(
+                    new IdentityHashMap<SoftInstrument, Boolean>());
+            for (SoftChannel c : channels)
+                if (c.current_instrument != null)
+                    busy.add(c.current_instrument);
+            for (SoftVoice voice : voices)
+                if (voice.active && voice.instrument != null)
+                    busy.add(voice.instrument);
+            List<Map.Entry<String, SoftInstrument>> cold = new ArrayList<>();
+            for (Map.Entry<String, SoftInstrument> entry : inslist.entrySet())
+                if (!busy.contains(entry.getValue()))
+                    cold.add(entry);
+            Collections.sort(cold,
+                    new Comparator<Map.Entry<String, SoftInstrument>>() {
+                public int compare(Map.Entry<String, SoftInstrument> a,
+                        Map.Entry<String, SoftInstrument> b) {
+                    long d = a.getValue().last_used - b.getValue().last_used;
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            });
+
+            List<ModelByteBuffer> unload = new ArrayList<>();
+            for (Map.Entry<String, SoftInstrument> entry : cold) {
+                if (bytes <= sample_memory_limit)
+                    break;
+                SoftInstrument ins = entry.getValue();
+                evictedlist.put(entry.getKey(), ins);
+                prefetch_generation++;
+                evictions++;
+                for (ModelByteBuffer root : samples.get(ins)) {
+                    int n = users.get(root) - 1;
+                    users.put(root, n);
+                    if (n == 0) {
+                        bytes -= root.getMemorySize();
+                        unload.add(root);
+                    }
                 }
-            for (Instrument instrument : instruments) {
-                String pat = patchToString(instrument.getPatch());
-                SoftInstrument softins
-                        = new SoftInstrument((ModelInstrument) instrument);
-                inslist.put(pat, softins);
-                loadedlist.put(pat, (ModelInstrument) instrument);
+            }
+            for (String pat : evictedlist.keySet())
+                inslist.remove(pat);
+            for (ModelByteBuffer root : unload) {
+                if (root.isMapped())
+                    unmapped.add(root);
+                root.unload();
             }
         }
+    }
 
-        return true;
+    // Loads an evicted instrument again in the background, the channel
+    // plays the fallback instrument until it is loaded.
+    private void reloadInstrument(final String pat) {
+        final SoftInstrument ins = evictedlist.get(pat);
+        if (ins == null || !prefetch_pending.add(pat))
+            return;
+        final long start = System.nanoTime();
+        submitInstrumentLoad(new Runnable() {
+            public void run() {
+                List<ModelByteBuffer> buffers = new ArrayList<>();
+                getBuffers(ins.getModelPerformers(), buffers);
+                for (ModelByteBuffer buff : buffers) {
+                    ModelByteBuffer root = buff.getRoot();
+                    boolean remap;
+                    synchronized (control_mutex) {
+                        remap = unmapped.remove(root);
+                    }
+                    if (remap) {
+                        try {
+                            root.map();
+                        } catch (IOException e) {
+                            // Loaded from the file instead
+                        }
+                    }
+                }
+                List<ModelPerformer[]> performers = new ArrayList<>();
+                performers.add(ins.getModelPerformers());
+                boolean loaded = loadSamples(
+                        Collections.singletonList(ins.getSourceInstrument()),
+                        performers);
+                synchronized (control_mutex) {
+                    prefetch_pending.remove(pat);
+                    if (!loaded || evictedlist.get(pat) != ins)
+                        return;
+                    if (channels != null)
+                        for (SoftChannel c : channels)
+                        {
+                            c.current_instrument = null;
+                            c.current_director = null;
+                        }
+                    evictedlist.remove(pat);
+                    ins.last_used = voiceIDCounter;
+                    inslist.put(pat, ins);
+                    reloads++;
+                    reload_time += System.nanoTime() - start;
+                }
+                evictInstruments();
+            }
+        });
+    }
+
+    // Must only be called within control_mutex synchronization
+    private void submitInstrumentLoad(Runnable task) {
+        if (instrument_loader != null)
+            instrument_loader.execute(task);
     }
 
     private void processPropertyInfo(Map<String, Object> info) {
@@ -333,6 +752,11 @@ public class SoftSynthesizer implements AudioSynthesizer,
             this.resampler = new SoftSincResampler();
             this.resamplerType = "sinc";
         }
+        else if (resamplerType.equalsIgnoreCase("sinc-compact"))
+        {
+            this.resampler = new SoftCompactSincResampler();
+            this.resamplerType = "sinc-compact";
+        }
 
         setFormat((AudioFormat)items[2].value);
         controlrate = (Float)items[1].value;
@@ -347,6 +771,44 @@ public class SoftSynthesizer implements AudioSynthesizer,
         jitter_correction = (Boolean)items[11].value;
         reverb_light = (Boolean)items[12].value;
         load_default_soundbank = (Boolean)items[13].value;
+        render_threads = Math.max(1, (Integer)items[14].value);
+        midi_queue_size = Math.max(16, (Integer)items[15].value);
+        channel_voice_limit = Math.max(1, (Integer)items[17].value);
+        sample_accurate = (Boolean)items[18].value;
+        if ((Boolean)items[19].value)
+            cull_level = (float)Math.pow(10, (Float)items[20].value / 20.0);
+        else
+            cull_level = 0;
+        cull_blocks = Math.max(1, (Integer)items[21].value);
+        sample_cache_size = Math.max(0, (Long)items[22].value);
+        disk_streaming = (Boolean)items[23].value;
+        stream_preload = Math.max(0, (Integer)items[24].value);
+        load_threads = Math.max(1, (Integer)items[25].value);
+        sample_memory_limit = Math.max(0, (Long)items[26].value);
+        sample_compression = (Boolean)items[27].value;
+
+        String stealingType = (String)items[16].value;
+        if (stealingType.equalsIgnoreCase("oldest"))
+        {
+            voice_stealing_policy = new SoftOldestStealingPolicy();
+            voice_stealing = "oldest";
+        }
+        else if (stealingType.equalsIgnoreCase("quietest"))
+        {
+            voice_stealing_policy = new SoftQuietestStealingPolicy();
+            voice_stealing = "quietest";
+        }
+        else if (stealingType.equalsIgnoreCase("per-channel-limit"))
+        {
+            voice_stealing_policy = new SoftChannelLimitStealingPolicy(
+                    channel_voice_limit);
+            voice_stealing = "per-channel-limit";
+        }
+        else
+        {
+            voice_stealing_policy = new SoftReleaseFirstStealingPolicy();
+            voice_stealing = "release-first";
+        }
     }
 
     private String patchToString(Patch patch) {
@@ -384,15 +846,23 @@ public class SoftSynthesizer implements AudioSynthesizer,
         return mainmixer;
     }
 
+    // Must only be called within control_mutex synchronization
     protected SoftInstrument findInstrument(int program, int bank, int channel) {
+        if ((prefetch_soundbank != null || !evictedlist.isEmpty())
+                && channel >= 0 && channel * 128 < prefetched_bank.length)
+            prefetchInstrument(program, bank, channel);
+        return findInstrument(inslist, program, bank, channel);
+    }
+
+    private static <T> T findInstrument(Map<String, T> inslist,
+            int program, int bank, int channel) {
 
         // Add support for GM2 banks 0x78 and 0x79
         // as specified in DLS 2.2 in Section 1.4.6
         // which allows using percussion and melodic instruments
         // on all channels
         if (bank >> 7 == 0x78 || bank >> 7 == 0x79) {
-            SoftInstrument current_instrument
-                    = inslist.get(program + "." + bank);
+            T current_instrument = inslist.get(program + "." + bank);
             if (current_instrument != null)
                 return current_instrument;
 
@@ -428,8 +898,7 @@ public class SoftSynthesizer implements AudioSynthesizer,
         else
             p_plaf = "";
 
-        SoftInstrument current_instrument
-                = inslist.get(p_plaf + program + "." + bank);
+        T current_instrument = inslist.get(p_plaf + program + "." + bank);
         if (current_instrument != null)
             return current_instrument;
         // Instrument not found fallback to MSB:0, LSB:0
@@ -441,10 +910,100 @@ public class SoftSynthesizer implements AudioSynthesizer,
         return current_instrument;
     }
 
+    // Loads a patch that is not loaded in the background, the channel
+    // plays the fallback instrument until it is loaded. Called while
+    // rendering, so a lookup the channel has already made since the last
+    // eviction, unload or prefetch soundbank change is skipped, and the
+    // patch is made by the loader.
+    private void prefetchInstrument(final int program, final int bank,
+            final int channel) {
+        int ix = channel * 128 + program;
+        if (prefetched_bank[ix] == bank
+                && prefetched_generation[ix] == prefetch_generation)
+            return;
+        prefetched_bank[ix] = bank;
+        prefetched_generation[ix] = prefetch_generation;
+        submitInstrumentLoad(new Runnable() {
+            public void run() {
+                boolean percussion = channel == 9
+                        && bank >> 7 != 0x78 && bank >> 7 != 0x79;
+                prefetchInstrument(new ModelPatch(bank, program, percussion));
+            }
+        });
+    }
+
+    /**
+     * Hint that patch is about to be played. An evicted instrument is
+     * loaded again in the background, as is an instrument that is not
+     * loaded if a prefetch soundbank is set. A loaded instrument is
+     * marked as played, it is evicted after the other instruments.
+     */
+    public void prefetchInstrument(@NonNull final Patch patch) {
+        synchronized (control_mutex) {
+            String pat = patchToString(patch);
+            SoftInstrument loaded = inslist.get(pat);
+            if (loaded != null) {
+                loaded.last_used = voiceIDCounter;
+                return;
+            }
+            if (evictedlist.containsKey(pat)) {
+                reloadInstrument(pat);
+                return;
+            }
+            final Soundbank soundbank = prefetch_soundbank;
+            if (soundbank == null || !prefetch_pending.add(pat))
+                return;
+            submitInstrumentLoad(new Runnable() {
+                public void run() {
+                    Instrument instrument = soundbank.getInstrument(patch);
+                    if (instrument instanceof ModelInstrument)
+                        loadInstrument(instrument);
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the soundbank to load patches from, in the background, when a
+     * program change selects a patch that is not loaded. Used with
+     * loadInstruments(Soundbank, Sequence) for program changes that do
+     * not come from the sequence. Null, the default, disables loading.
+     */
+    public void setPrefetchSoundbank(Soundbank soundbank) {
+        synchronized (control_mutex) {
+            prefetch_soundbank = soundbank;
+            prefetch_pending.clear();
+            prefetch_generation++;
+        }
+    }
+
+    public Soundbank getPrefetchSoundbank() {
+        synchronized (control_mutex) {
+            return prefetch_soundbank;
+        }
+    }
+
     protected int getVoiceAllocationMode() {
         return voice_allocation_mode;
     }
 
+    public VoiceStealingPolicy getVoiceStealingPolicy() {
+        return voice_stealing_policy;
+    }
+
+    /**
+     * Replace the voice stealing policy selected by the "voice stealing"
+     * property, until the synthesizer is opened again. The policy is not
+     * used in DLS voice allocation mode.
+     */
+    public void setVoiceStealingPolicy(VoiceStealingPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        synchronized (control_mutex) {
+            voice_stealing_policy = policy;
+        }
+    }
+
     protected int getGeneralMidiMode() {
         return gmmode;
     }
@@ -581,6 +1140,9 @@ public class SoftSynthesizer implements AudioSynthesizer,
                 c.current_instrument = null;
             inslist.remove(pat);
             loadedlist.remove(pat);
+            evictedlist.remove(pat);
+            prefetch_pending.remove(pat);
+            prefetch_generation++;
             for (SoftChannel channel : channels) {
                 channel.allSoundOff();
             }
@@ -650,6 +1212,93 @@ public class SoftSynthesizer implements AudioSynthesizer,
         return loadInstruments(instruments);
     }
 
+    /**
+     * Load the instruments of soundbank that sequence plays, with only
+     * the regions of each instrument that the keys and velocities played
+     * can trigger. Patches missing from soundbank load the instrument the
+     * synthesizer falls back to.
+     */
+    public boolean loadInstruments(@NonNull Soundbank soundbank,
+            @NonNull Sequence sequence) {
+        Map<String, ModelInstrument> available = new HashMap<>();
+        for (Instrument ins: soundbank.getInstruments()) {
+            if (!(ins instanceof ModelInstrument)) {
+                throw new IllegalArgumentException(
+                        "Unsupported instrument: " + ins);
+            }
+            available.put(patchToString(ins.getPatch()), (ModelInstrument)ins);
+        }
+
+        // The patches played with each instrument, more than one when
+        // the instrument is a fallback.
+        SoftInstrumentUsage usage = new SoftInstrumentUsage(sequence);
+        Map<ModelInstrument, List<Patch>> played = new LinkedHashMap<>();
+        for (Patch patch : usage.getPatches()) {
+            boolean percussion = ((ModelPatch) patch).isPercussion();
+            ModelInstrument ins = findInstrument(available,
+                    patch.getProgram(), patch.getBank(), percussion ? 9 : 0);
+            if (ins == null)
+                continue;
+            List<Patch> patches = played.get(ins);
+            if (patches == null) {
+                patches = new ArrayList<>();
+                played.put(ins, patches);
+            }
+            patches.add(patch);
+        }
+
+        List<ModelInstrument> instruments = new ArrayList<>();
+        List<ModelPerformer[]> performers = new ArrayList<>();
+        for (Map.Entry<ModelInstrument, List<Patch>> entry : played.entrySet()) {
+            List<ModelPerformer> selected = new ArrayList<>();
+            for (ModelPerformer performer
+                    : SoftSoundbankPool.getPerformers(entry.getKey())) {
+                for (Patch patch : entry.getValue()) {
+                    if (usage.isPlayed(patch,
+                            performer.getKeyFrom(), performer.getKeyTo(),
+                            performer.getVelFrom(), performer.getVelTo())) {
+                        selected.add(performer);
+                        break;
+                    }
+                }
+            }
+            instruments.add(entry.getKey());
+            performers.add(selected.toArray(new ModelPerformer[selected.size()]));
+        }
+        return loadInstruments(instruments, performers);
+    }
+
+    /**
+     * Bytes of sample data the loaded instruments play.
+     */
+    public long getLoadedSampleBytes() {
+        if (!isOpen())
+            return 0;
+        List<ModelPerformer[]> performers = new ArrayList<>();
+        synchronized (control_mutex) {
+            for (SoftInstrument ins : inslist.values()) {
+                SoftPerformer[] p = ins.getPerformers();
+                ModelPerformer[] mp = new ModelPerformer[p.length];
+                for (int i = 0; i < p.length; i++)
+                    mp[i] = p[i].performer;
+                performers.add(mp);
+            }
+        }
+        return getSampleBytes(performers);
+    }
+
+    /**
+     * Bytes of sample data of all instruments of soundbank, what
+     * loadAllInstruments loads.
+     */
+    public long getSampleBytes(@NonNull Soundbank soundbank) {
+        List<ModelPerformer[]> performers = new ArrayList<>();
+        for (Instrument ins: soundbank.getInstruments())
+            if (ins instanceof ModelInstrument)
+                performers.add(((ModelInstrument) ins).getPerformers());
+        return getSampleBytes(performers);
+    }
+
     public void unloadAllInstruments(@NonNull Soundbank soundbank) {
         if (!isSoundbankSupported(soundbank))
             throw new IllegalArgumentException("Unsupported soundbank: " + soundbank);
@@ -736,7 +1385,8 @@ public class SoftSynthesizer implements AudioSynthesizer,
 
         item = new AudioSynthesizerPropertyInfo("interpolation", o?resamplerType:"linear");
         item.choices = new String[]{"linear", "linear1", "linear2", "cubic",
-                                    "lanczos", "sinc", "point"};
+                                    "lanczos", "sinc", "sinc-compact",
+                                    "point"};
         item.description = "Interpolation method";
         list.add(item);
 
@@ -792,6 +1442,67 @@ public class SoftSynthesizer implements AudioSynthesizer,
         item = new AudioSynthesizerPropertyInfo("load default soundbank", !o || load_default_soundbank);
         item.description = "Enabled/disable loading default soundbank";
         list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("render threads", o?render_threads:1);
+        item.description = "Number of threads used to render voices";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("midi queue size", o?midi_queue_size:1024);
+        item.description = "Maximum number of queued MIDI events";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("voice stealing", o?voice_stealing:"release-first");
+        item.choices = new String[]{"release-first", "oldest", "quietest",
+                                    "per-channel-limit"};
+        item.description = "Voice stealing policy";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("channel voice limit", o?channel_voice_limit:16);
+        item.description = "Voices per channel with the per-channel-limit policy";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample accurate", o && sample_accurate);
+        item.description = "Apply MIDI events at their exact sample inside control blocks";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("voice culling", o && cull_level != 0);
+        item.description = "Stop released voices which have become inaudible";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("cull threshold",
+                o && cull_level != 0
+                ? (float)(20 * Math.log10(cull_level)) : -96f);
+        item.description = "Voice culling threshold in dBFS";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("cull blocks", o?cull_blocks:8);
+        item.description = "Control blocks a voice must stay below the cull threshold";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample cache size", o?sample_cache_size:0L);
+        item.description = "Bytes of samples decoded to float to keep in memory, 0 disables the cache";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("disk streaming", o && disk_streaming);
+        item.description = "Stream samples of file soundbanks from disk instead of loading them";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("stream preload", o?stream_preload:500);
+        item.description = "Milliseconds of each sample loaded in memory when streaming from disk";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("load threads", o?load_threads:
+                Runtime.getRuntime().availableProcessors());
+        item.description = "Number of threads used to load instruments and samples";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample memory limit", o?sample_memory_limit:0L);
+        item.description = "Bytes of loaded samples to keep, least recently played instruments are unloaded above it, 0 disables the limit";
+        list.add(item);
+
+        item = new AudioSynthesizerPropertyInfo("sample compression", o && sample_compression);
+        item.description = "Hold loaded 16-bit samples losslessly compressed in memory";
+        list.add(item);
         
         AudioSynthesizerPropertyInfo[] items;
         items = list.toArray(new AudioSynthesizerPropertyInfo[0]);
@@ -1019,8 +1730,34 @@ public class SoftSynthesizer implements AudioSynthesizer,
             }
 
             voices = new SoftVoice[maxpoly];
-            for (int i = 0; i < maxpoly; i++)
+            for (int i = 0; i < maxpoly; i++) {
                 voices[i] = new SoftVoice(this);
+                voices[i].index = i;
+            }
+            voiceindex = new SoftVoiceIndex(maxpoly, number_of_midi_channels);
+            culled_voices = 0;
+            culled_channel_voices = new long[number_of_midi_channels];
+            evictions = 0;
+            reloads = 0;
+            reload_time = 0;
+            if (sample_cache_size > 0)
+                sample_cache = new SoftSampleCache(sample_cache_size);
+            instrument_loader = new ThreadPoolExecutor(1, 1, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Instrument loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            instrument_loader.prestartAllCoreThreads();
+            prefetched_bank = new int[number_of_midi_channels * 128];
+            prefetched_generation = new int[number_of_midi_channels * 128];
+            Arrays.fill(prefetched_generation, -1);
+            if (disk_streaming)
+                disk_streamer = new SoftDiskStreamer(stream_preload, 131072,
+                        maxpoly);
 
             mainmixer = new SoftMainMixer(this);
 
@@ -1106,8 +1843,25 @@ public class SoftSynthesizer implements AudioSynthesizer,
                 sourceDataLine = null;
             }
 
+            if (sample_cache != null) {
+                sample_cache.clear();
+                sample_cache = null;
+            }
+            if (disk_streamer != null) {
+                disk_streamer.close();
+                disk_streamer = null;
+            }
+
             inslist.clear();
             loadedlist.clear();
+            if (instrument_loader != null) {
+                instrument_loader.shutdownNow();
+                instrument_loader = null;
+            }
+            prefetch_soundbank = null;
+            prefetch_pending.clear();
+            evictedlist.clear();
+            unmapped.clear();
             tunings.clear();
 
             while (recvslist.size() != 0)
@@ -1132,6 +1886,105 @@ public class SoftSynthesizer implements AudioSynthesizer,
         }
     }
 
+    /**
+     * Get the number of MIDI events waiting in the mixer queue.
+     */
+    public int getMidiQueueDepth() {
+        SoftMainMixer mixer = getMainMixer();
+        if (mixer == null)
+            return 0;
+        return mixer.getQueueDepth();
+    }
+
+    /**
+     * Get the number of MIDI events dropped because the mixer queue was full.
+     */
+    public long getMidiQueueDroppedCount() {
+        SoftMainMixer mixer = getMainMixer();
+        if (mixer == null)
+            return 0;
+        return mixer.getQueueDroppedCount();
+    }
+
+    // Must only be called within control_mutex synchronization
+    protected void voiceCulled(int channel) {
+        culled_voices++;
+        if (channel >= 0 && channel < culled_channel_voices.length)
+            culled_channel_voices[channel]++;
+    }
+
+    /**
+     * Get the number of voices stopped by voice culling since the
+     * synthesizer was opened.
+     */
+    public long getCulledVoiceCount() {
+        synchronized (control_mutex) {
+            return culled_voices;
+        }
+    }
+
+    /**
+     * The decoded sample cache, or null when the "sample cache size"
+     * property is 0.
+     */
+    public SoftSampleCache getSampleCache() {
+        synchronized (control_mutex) {
+            return sample_cache;
+        }
+    }
+
+    /**
+     * The disk streamer, or null when the "disk streaming" property is
+     * off.
+     */
+    public SoftDiskStreamer getDiskStreamer() {
+        synchronized (control_mutex) {
+            return disk_streamer;
+        }
+    }
+
+    /**
+     * Get the number of voices of a MIDI channel stopped by voice culling
+     * since the synthesizer was opened.
+     */
+    public long getCulledVoiceCount(int channel) {
+        synchronized (control_mutex) {
+            if (channel < 0 || channel >= culled_channel_voices.length)
+                return 0;
+            return culled_channel_voices[channel];
+        }
+    }
+
+    /**
+     * Get the number of instruments unloaded to stay within the "sample
+     * memory limit" property since the synthesizer was opened.
+     */
+    public long getEvictionCount() {
+        synchronized (control_mutex) {
+            return evictions;
+        }
+    }
+
+    /**
+     * Get the number of evicted instruments loaded again since the
+     * synthesizer was opened.
+     */
+    public long getReloadCount() {
+        synchronized (control_mutex) {
+            return reloads;
+        }
+    }
+
+    /**
+     * Get the total time in nanoseconds from a note or prefetch hint
+     * needing an evicted instrument until it was loaded again.
+     */
+    public long getReloadTime() {
+        synchronized (control_mutex) {
+            return reload_time;
+        }
+    }
+
     public int getMaxReceivers() {
         return -1;
     }
@@ -56,12 +56,14 @@ public class SoftVoice extends VoiceStatus {
     protected int stealer_velocity = 0;
     protected boolean stealer_releaseTriggered = false;
     protected int voiceID = -1;
+    // Position in the voice array of the synthesizer
+    protected int index = 0;
     protected boolean sustain = false;
     protected boolean sostenuto = false;
     protected boolean portamento = false;
     private SoftFilter filter_left;
     private SoftFilter filter_right;
-    private SoftProcess eg = new SoftEnvelopeGenerator();
+    private SoftEnvelopeGenerator eg = new SoftEnvelopeGenerator();
     private SoftProcess lfo = new SoftLowFrequencyOscillator();
     protected Map<String, SoftControl> objects =
             new HashMap<String, SoftControl>();
@@ -72,7 +74,18 @@ public class SoftVoice extends VoiceStatus {
     protected boolean on = false;
     private boolean audiostarted = false;
     private boolean started = false;
+    // Sub-block rendering: local samples [0, render_pos) of the current
+    // block are already rendered into segment_dry, in segment_count
+    // segments, each ending at segment_end with mixer gains segment_mixer.
+    private int render_pos = 0;
+    private int segment_count = 0;
+    private int[] segment_end = new int[4];
+    private float[] segment_mixer = new float[16];
+    private float[] segment_start_mixer = new float[4];
+    private float[][] segment_dry = null;
     private boolean stopping = false;
+    // Control blocks the voice has been released and below the cull level
+    private int cull_count = 0;
     private float osc_attenuation = 0.0f;
     private ModelOscillatorStream osc_stream;
     private int osc_stream_nrofchannels;
@@ -190,6 +203,35 @@ public class SoftVoice extends VoiceStatus {
         nrofchannels = synth.getFormat().getChannels();
     }
 
+    public int getVoiceID() {
+        return voiceID;
+    }
+
+    /**
+     * Returns true if the key of the voice has been released.
+     */
+    public boolean isReleased() {
+        return !on;
+    }
+
+    /**
+     * Returns true if the voice has been stolen and is fading out.
+     */
+    public boolean isStolen() {
+        return stealer_channel != null;
+    }
+
+    /**
+     * Current output gain of the voice, the larger of the left and right
+     * mixer gains. Voices which have not been rendered yet return
+     * Float.MAX_VALUE.
+     */
+    public float getOutputLevel() {
+        if (!audiostarted)
+            return Float.MAX_VALUE;
+        return Math.max(Math.abs(out_mixer_left), Math.abs(out_mixer_right));
+    }
+
     private int getValueKC(ModelIdentifier id) {
         if (id.getObject().equals("midi_cc")) {
             int ic = Integer.parseInt(id.getVariable());
@@ -296,6 +338,7 @@ public class SoftVoice extends VoiceStatus {
     protected void setNote(int noteNumber) {
         note = noteNumber;
         tunedKey = tuning.getTuning(noteNumber) / 100.0;
+        synthesizer.voiceindex.noteChanged(this);
     }
 
     protected void noteOn(int noteNumber, int velocity, int delay) {
@@ -318,6 +361,7 @@ public class SoftVoice extends VoiceStatus {
         lastSoloMuteValue = 0;
 
         setNote(noteNumber);
+        synthesizer.voiceindex.activate(this);
 
         if (performer.forcedKeynumber)
             co_noteon_keynumber[0] = 0;
@@ -510,6 +554,8 @@ public class SoftVoice extends VoiceStatus {
     protected void shutdown() {
         if (co_noteon_on[0] < -0.5)
             return;
+        if (on)
+            synthesizer.voiceindex.released(this);
         on = false;
 
         co_noteon_on[0] = -1;
@@ -524,6 +570,8 @@ public class SoftVoice extends VoiceStatus {
     }
 
     protected void soundOff() {
+        if (on)
+            synthesizer.voiceindex.released(this);
         on = false;
         soundoff = true;
     }
@@ -532,6 +580,7 @@ public class SoftVoice extends VoiceStatus {
         if (!on)
             return;
         on = false;
+        synthesizer.voiceindex.released(this);
 
         noteOff_velocity = velocity;
 
@@ -571,9 +620,113 @@ public class SoftVoice extends VoiceStatus {
             processConnection(c[i]);
     }
 
+    // Updates pitch, filter and mixer gains from the current parameters.
+    private void processOutputLogic() {
+        osc_stream.setPitch((float)co_osc_pitch[0]);
+
+        int filter_type = (int)co_filter_type[0];
+        double filter_freq;
+
+        if (co_filter_freq[0] == 13500.0)
+            filter_freq = 19912.126958213175;
+        else
+            filter_freq = 440.0 * Math.exp(
+                    ((co_filter_freq[0]) - 6900.0) *
+                    (Math.log(2.0) / 1200.0));
+        /*
+        filter_freq = 440.0 * Math.pow(2.0,
+        ((co_filter_freq[0]) - 6900.0) / 1200.0);*/
+        /*
+         * double velocity = co_noteon_velocity[0]; if(velocity < 0.5)
+         * filter_freq *= ((velocity * 2)*0.75 + 0.25);
+         */
+
+        double q = co_filter_q[0] / 10.0;
+        filter_left.setFilterType(filter_type);
+        filter_left.setFrequency(filter_freq);
+        filter_left.setResonance(q);
+        filter_right.setFilterType(filter_type);
+        filter_right.setFrequency(filter_freq);
+        filter_right.setResonance(q);
+        /*
+        float gain = (float) Math.pow(10,
+        (-osc_attenuation + co_mixer_gain[0]) / 200.0);
+         */
+        float gain = (float)Math.exp(
+                (-osc_attenuation + co_mixer_gain[0])*(Math.log(10) / 200.0));
+
+        if (co_mixer_gain[0] <= -960)
+            gain = 0;
+
+        if (soundoff) {
+            stopping = true;
+            gain = 0;
+            /*
+             * if(co_mixer_gain[0] > -960)
+             *   co_mixer_gain[0] -= 960;
+             */
+        }
+
+        volume = (int)(Math.sqrt(gain) * 128);
+
+        // gain *= 0.2;
+
+        double pan = co_mixer_pan[0] * (1.0 / 1000.0);
+        // System.out.println("pan = " + pan);
+        if (pan < 0)
+            pan = 0;
+        else if (pan > 1)
+            pan = 1;
+
+        if (pan == 0.5) {
+            out_mixer_left = gain * 0.7071067811865476f;
+            out_mixer_right = out_mixer_left;
+        } else {
+            out_mixer_left = gain * (float)Math.cos(pan * Math.PI * 0.5);
+            out_mixer_right = gain * (float)Math.sin(pan * Math.PI * 0.5);
+        }
+
+        double balance = co_mixer_balance[0] * (1.0 / 1000.0);
+        if (balance != 0.5) {
+            if (balance > 0.5)
+                out_mixer_left *= (1 - balance) * 2;
+            else
+                out_mixer_right *= balance * 2;
+        }
+
+        if (synthesizer.reverb_on) {
+            out_mixer_effect1 = (float)(co_mixer_reverb[0] * (1.0 / 1000.0));
+            out_mixer_effect1 *= gain;
+        } else
+            out_mixer_effect1 = 0;
+        if (synthesizer.chorus_on) {
+            out_mixer_effect2 = (float)(co_mixer_chorus[0] * (1.0 / 1000.0));
+            out_mixer_effect2 *= gain;
+        } else
+            out_mixer_effect2 = 0;
+        out_mixer_end = co_mixer_active[0] < 0.5;
+
+        if (!on)
+            if (!osc_stream_off_transmitted) {
+                osc_stream_off_transmitted = true;
+                if (osc_stream != null)
+                    osc_stream.noteOff(noteOff_velocity);
+            }
+    }
+
     protected void processControlLogic() {
+        // Segments of a block the voice was not mixed into are dropped
+        segment_count = 0;
+        render_pos = 0;
+        if (cull_count >= synthesizer.cull_blocks && !stopping) {
+            // Inaudible, retire the voice before rendering this block
+            stopping = true;
+            synthesizer.voiceCulled(channel);
+        }
         if (stopping) {
+            cull_count = 0;
             active = false;
+            synthesizer.voiceindex.deactivate(this);
             stopping = false;
             audiostarted = false;
             instrument = null;
@@ -595,6 +748,7 @@ public class SoftVoice extends VoiceStatus {
                         stealer_releaseTriggered);
                 stealer_releaseTriggered = false;
                 stealer_channel = null;
+                synthesizer.voiceindex.stealers--;
                 stealer_performer = null;
                 stealer_voiceID = -1;
                 stealer_noteNumber = 0;
@@ -611,7 +765,15 @@ public class SoftVoice extends VoiceStatus {
             osc_stream_off_transmitted = false;
             if (osc instanceof ModelWavetable) {
                 try {
-                    resampler.open((ModelWavetable)osc,
+                    ModelWavetable wavetable = (ModelWavetable)osc;
+                    SoftDiskStreamer streamer = synthesizer.disk_streamer;
+                    if (streamer != null)
+                        wavetable = streamer.open(wavetable);
+                    // Streamed samples are not decoded into memory
+                    SoftSampleCache cache = wavetable == osc
+                            ? synthesizer.sample_cache : null;
+                    resampler.open(wavetable,
+                            cache == null ? null : cache.get(wavetable),
                             synthesizer.getFormat().getSampleRate());
                     osc_stream = resampler;
                 } catch (IOException e) {
@@ -658,97 +820,20 @@ public class SoftVoice extends VoiceStatus {
             for (int i = 0; i < performer.ctrl_connections.length; i++)
                 processConnection(performer.ctrl_connections[i]);
 
-            osc_stream.setPitch((float)co_osc_pitch[0]);
-
-            int filter_type = (int)co_filter_type[0];
-            double filter_freq;
-
-            if (co_filter_freq[0] == 13500.0)
-                filter_freq = 19912.126958213175;
-            else
-                filter_freq = 440.0 * Math.exp(
-                        ((co_filter_freq[0]) - 6900.0) *
-                        (Math.log(2.0) / 1200.0));
-            /*
-            filter_freq = 440.0 * Math.pow(2.0,
-            ((co_filter_freq[0]) - 6900.0) / 1200.0);*/
-            /*
-             * double velocity = co_noteon_velocity[0]; if(velocity < 0.5)
-             * filter_freq *= ((velocity * 2)*0.75 + 0.25);
-             */
-
-            double q = co_filter_q[0] / 10.0;
-            filter_left.setFilterType(filter_type);
-            filter_left.setFrequency(filter_freq);
-            filter_left.setResonance(q);
-            filter_right.setFilterType(filter_type);
-            filter_right.setFrequency(filter_freq);
-            filter_right.setResonance(q);
-            /*
-            float gain = (float) Math.pow(10,
-            (-osc_attenuation + co_mixer_gain[0]) / 200.0);
-             */
-            float gain = (float)Math.exp(
-                    (-osc_attenuation + co_mixer_gain[0])*(Math.log(10) / 200.0));
-
-            if (co_mixer_gain[0] <= -960)
-                gain = 0;
-
-            if (soundoff) {
-                stopping = true;
-                gain = 0;
-                /*
-                 * if(co_mixer_gain[0] > -960)
-                 *   co_mixer_gain[0] -= 960;
-                 */
-            }
-
-            volume = (int)(Math.sqrt(gain) * 128);
-
-            // gain *= 0.2;
-
-            double pan = co_mixer_pan[0] * (1.0 / 1000.0);
-            // System.out.println("pan = " + pan);
-            if (pan < 0)
-                pan = 0;
-            else if (pan > 1)
-                pan = 1;
+            processOutputLogic();
 
-            if (pan == 0.5) {
-                out_mixer_left = gain * 0.7071067811865476f;
-                out_mixer_right = out_mixer_left;
-            } else {
-                out_mixer_left = gain * (float)Math.cos(pan * Math.PI * 0.5);
-                out_mixer_right = gain * (float)Math.sin(pan * Math.PI * 0.5);
-            }
-
-            double balance = co_mixer_balance[0] * (1.0 / 1000.0);
-            if (balance != 0.5) {
-                if (balance > 0.5)
-                    out_mixer_left *= (1 - balance) * 2;
+            if (synthesizer.cull_level != 0) {
+                // Only released voices, a held voice can get louder again
+                float level = Math.max(
+                        Math.max(Math.abs(out_mixer_left),
+                                Math.abs(out_mixer_right)),
+                        Math.max(out_mixer_effect1, out_mixer_effect2));
+                if (co_noteon_on[0] < 0.5 && level < synthesizer.cull_level)
+                    cull_count++;
                 else
-                    out_mixer_right *= balance * 2;
+                    cull_count = 0;
             }
 
-            if (synthesizer.reverb_on) {
-                out_mixer_effect1 = (float)(co_mixer_reverb[0] * (1.0 / 1000.0));
-                out_mixer_effect1 *= gain;
-            } else
-                out_mixer_effect1 = 0;
-            if (synthesizer.chorus_on) {
-                out_mixer_effect2 = (float)(co_mixer_chorus[0] * (1.0 / 1000.0));
-                out_mixer_effect2 *= gain;
-            } else
-                out_mixer_effect2 = 0;
-            out_mixer_end = co_mixer_active[0] < 0.5;
-
-            if (!on)
-                if (!osc_stream_off_transmitted) {
-                    osc_stream_off_transmitted = true;
-                    if (osc_stream != null)
-                        osc_stream.noteOff(noteOff_velocity);
-                }
-
         }
         if (started) {
             last_out_mixer_left = out_mixer_left;
@@ -763,56 +848,245 @@ public class SoftVoice extends VoiceStatus {
     protected void mixAudioStream(SoftAudioBuffer in, SoftAudioBuffer out,
             SoftAudioBuffer dout,
             float amp_from, float amp_to) {
-        int bufferlen = in.getSize();
+        mixAudioStream(in.array(), out, dout, amp_from, amp_to, 0,
+                in.getSize());
+    }
+
+    /*
+     * Mix local samples [from, to) of the block, ramping the gain from
+     * amp_from to amp_to over that range. With a delay the local samples
+     * past the end of out go to the start of dout, the next block.
+     */
+    protected void mixAudioStream(float[] fin, SoftAudioBuffer out,
+            SoftAudioBuffer dout, float amp_from, float amp_to,
+            int from, int to) {
         if (amp_from < 0.000000001 && amp_to < 0.000000001)
             return;
-        if(dout != null && delay != 0)
-        {
-            if (amp_from == amp_to) {
-                float[] fout = out.array();
-                float[] fin = in.array();                
-                int j = 0;
-                for (int i = delay; i < bufferlen; i++)
-                    fout[i] += fin[j++] * amp_to;
-                fout = dout.array();
-                for (int i = 0; i < delay; i++)
-                    fout[i] += fin[j++] * amp_to;
-            } else {
-                float amp = amp_from;
-                float amp_delta = (amp_to - amp_from) / bufferlen;
-                float[] fout = out.array();
-                float[] fin = in.array();
-                int j = 0;
-                for (int i = delay; i < bufferlen; i++) {
-                    amp += amp_delta;
-                    fout[i] += fin[j++] * amp;
-                }
-                fout = dout.array();
-                for (int i = 0; i < delay; i++) {
-                    amp += amp_delta;
-                    fout[i] += fin[j++] * amp;
-                }                
+        float[] fout = out.array();
+        float[] fdout = null;
+        int shift = 0;
+        int split = to;
+        if (dout != null && delay != 0) {
+            fdout = dout.array();
+            shift = delay;
+            split = Math.max(from, Math.min(to, out.getSize() - delay));
+        }
+        int dshift = shift - out.getSize();
+        if (amp_from == amp_to) {
+            for (int i = from; i < split; i++)
+                fout[i + shift] += fin[i] * amp_to;
+            for (int i = split; i < to; i++)
+                fdout[i + dshift] += fin[i] * amp_to;
+        } else {
+            float amp = amp_from;
+            float amp_delta = (amp_to - amp_from) / (to - from);
+            for (int i = from; i < split; i++) {
+                amp += amp_delta;
+                fout[i + shift] += fin[i] * amp;
+            }
+            for (int i = split; i < to; i++) {
+                amp += amp_delta;
+                fdout[i + dshift] += fin[i] * amp;
             }
         }
-        else
-        {
-            if (amp_from == amp_to) {
-                float[] fout = out.array();
-                float[] fin = in.array();
-                for (int i = 0; i < bufferlen; i++)
-                    fout[i] += fin[i] * amp_to;
+    }
+
+    // Mix local samples [from, to) of the dry output, ramping the gains
+    // from the last_out_mixer to the out_mixer values.
+    private void mixOutput(SoftAudioBuffer[] buffer, float[] leftdry,
+            float[] rightdry, int from, int to) {
+
+        SoftAudioBuffer left = buffer[SoftMainMixer.CHANNEL_LEFT];
+        SoftAudioBuffer right = buffer[SoftMainMixer.CHANNEL_RIGHT];
+        SoftAudioBuffer mono = buffer[SoftMainMixer.CHANNEL_MONO];
+        SoftAudioBuffer eff1 = buffer[SoftMainMixer.CHANNEL_EFFECT1];
+        SoftAudioBuffer eff2 = buffer[SoftMainMixer.CHANNEL_EFFECT2];
+
+        SoftAudioBuffer dleft = buffer[SoftMainMixer.CHANNEL_DELAY_LEFT];
+        SoftAudioBuffer dright = buffer[SoftMainMixer.CHANNEL_DELAY_RIGHT];
+        SoftAudioBuffer dmono = buffer[SoftMainMixer.CHANNEL_DELAY_MONO];
+        SoftAudioBuffer deff1 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT1];
+        SoftAudioBuffer deff2 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT2];
+
+        if (nrofchannels == 1)
+            out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
+
+        if (from < to) {
+            if (nrofchannels == 1) {
+                mixAudioStream(leftdry, left, dleft, last_out_mixer_left,
+                        out_mixer_left, from, to);
+                if (rightdry != null)
+                    mixAudioStream(rightdry, left, dleft, last_out_mixer_left,
+                            out_mixer_left, from, to);
             } else {
-                float amp = amp_from;
-                float amp_delta = (amp_to - amp_from) / bufferlen;
-                float[] fout = out.array();
-                float[] fin = in.array();
-                for (int i = 0; i < bufferlen; i++) {
-                    amp += amp_delta;
-                    fout[i] += fin[i] * amp;
+                if(rightdry == null &&
+                        last_out_mixer_left == last_out_mixer_right &&
+                        out_mixer_left == out_mixer_right)
+                {
+                    mixAudioStream(leftdry, mono, dmono, last_out_mixer_left,
+                            out_mixer_left, from, to);
                 }
+                else
+                {
+                    mixAudioStream(leftdry, left, dleft, last_out_mixer_left,
+                            out_mixer_left, from, to);
+                    if (rightdry != null)
+                        mixAudioStream(rightdry, right, dright,
+                                last_out_mixer_right, out_mixer_right,
+                                from, to);
+                    else
+                        mixAudioStream(leftdry, right, dright,
+                                last_out_mixer_right, out_mixer_right,
+                                from, to);
+                }
+            }
+
+            if (rightdry == null) {
+                mixAudioStream(leftdry, eff1, deff1, last_out_mixer_effect1,
+                        out_mixer_effect1, from, to);
+                mixAudioStream(leftdry, eff2, deff2, last_out_mixer_effect2,
+                        out_mixer_effect2, from, to);
+            } else {
+                mixAudioStream(leftdry, eff1, deff1,
+                        last_out_mixer_effect1 * 0.5f,
+                        out_mixer_effect1 * 0.5f, from, to);
+                mixAudioStream(leftdry, eff2, deff2,
+                        last_out_mixer_effect2 * 0.5f,
+                        out_mixer_effect2 * 0.5f, from, to);
+                mixAudioStream(rightdry, eff1, deff1,
+                        last_out_mixer_effect1 * 0.5f,
+                        out_mixer_effect1 * 0.5f, from, to);
+                mixAudioStream(rightdry, eff2, deff2,
+                        last_out_mixer_effect2 * 0.5f,
+                        out_mixer_effect2 * 0.5f, from, to);
             }
         }
 
+        last_out_mixer_left = out_mixer_left;
+        last_out_mixer_right = out_mixer_right;
+        last_out_mixer_effect1 = out_mixer_effect1;
+        last_out_mixer_effect2 = out_mixer_effect2;
+    }
+
+    // Read and filter local samples [from, to) into segment_dry.
+    private void readSegment(int from, int to) {
+        if (to <= from)
+            return;
+        float[] leftdry = segment_dry[0];
+        float[] rightdry = segment_dry[1];
+        try {
+            osc_buff[0] = leftdry;
+            if (nrofchannels != 1)
+                osc_buff[1] = rightdry;
+            int ret = osc_stream.read(osc_buff, from, to - from);
+            if (ret == -1) {
+                stopping = true;
+                ret = 0;
+            }
+            if (ret != to - from) {
+                Arrays.fill(leftdry, from + ret, to, 0f);
+                if (nrofchannels != 1)
+                    Arrays.fill(rightdry, from + ret, to, 0f);
+            }
+        } catch (IOException e) {
+            //e.printStackTrace();
+        }
+
+        if (!Double.isInfinite(co_filter_freq[0])) {
+            filter_left.processAudio(leftdry, from, to);
+            if (osc_stream_nrofchannels != 1)
+                filter_right.processAudio(rightdry, from, to);
+        }
+    }
+
+    /*
+     * Render the current block up to sample offset of the main mixer
+     * block with the current parameters, so that parameters changed after
+     * this call apply from that sample on. The rendered samples are kept
+     * in the voice and mixed in by processAudioLogic.
+     */
+    protected void processAudioLogic(int offset, int bufferlen) {
+        int to = Math.min(offset - delay, bufferlen);
+        if (!audiostarted || to <= render_pos)
+            return;
+        if (segment_dry == null || segment_dry[0].length != bufferlen)
+            segment_dry = new float[2][bufferlen];
+        if (segment_count == 0) {
+            segment_start_mixer[0] = last_out_mixer_left;
+            segment_start_mixer[1] = last_out_mixer_right;
+            segment_start_mixer[2] = last_out_mixer_effect1;
+            segment_start_mixer[3] = last_out_mixer_effect2;
+        }
+        readSegment(render_pos, to);
+        if (segment_count == segment_end.length) {
+            segment_end = Arrays.copyOf(segment_end, segment_count * 2);
+            segment_mixer = Arrays.copyOf(segment_mixer, segment_count * 8);
+        }
+        int ix = segment_count * 4;
+        segment_end[segment_count] = to;
+        segment_mixer[ix] = out_mixer_left;
+        segment_mixer[ix + 1] = out_mixer_right;
+        segment_mixer[ix + 2] = out_mixer_effect1;
+        segment_mixer[ix + 3] = out_mixer_effect2;
+        segment_count++;
+        render_pos = to;
+        // The next segment ramps from here
+        last_out_mixer_left = out_mixer_left;
+        last_out_mixer_right = out_mixer_right;
+        last_out_mixer_effect1 = out_mixer_effect1;
+        last_out_mixer_effect2 = out_mixer_effect2;
+    }
+
+    /*
+     * Apply parameters changed by a message in the middle of a block, after
+     * processAudioLogic(offset, bufferlen) rendered the voice up to it.
+     * A note-off or shutdown starts the envelope release from that sample.
+     */
+    protected void processMessageLogic(int offset, int bufferlen) {
+        if (started) {
+            processControlLogic();
+        } else if (audiostarted) {
+            int pos = Math.max(0, Math.min(offset - delay, bufferlen));
+            eg.processGateLogic((bufferlen - pos) / (double)bufferlen);
+            for (int i = 0; i < performer.ctrl_connections.length; i++)
+                processConnection(performer.ctrl_connections[i]);
+            processOutputLogic();
+        }
+    }
+
+    private void processSegments(SoftAudioBuffer[] buffer, int bufferlen) {
+        readSegment(render_pos, bufferlen);
+
+        float mixer_left = out_mixer_left;
+        float mixer_right = out_mixer_right;
+        float mixer_effect1 = out_mixer_effect1;
+        float mixer_effect2 = out_mixer_effect2;
+        last_out_mixer_left = segment_start_mixer[0];
+        last_out_mixer_right = segment_start_mixer[1];
+        last_out_mixer_effect1 = segment_start_mixer[2];
+        last_out_mixer_effect2 = segment_start_mixer[3];
+
+        float[] leftdry = segment_dry[0];
+        float[] rightdry = osc_stream_nrofchannels == 1 ? null
+                : segment_dry[1];
+        int from = 0;
+        for (int i = 0; i < segment_count; i++) {
+            int ix = i * 4;
+            out_mixer_left = segment_mixer[ix];
+            out_mixer_right = segment_mixer[ix + 1];
+            out_mixer_effect1 = segment_mixer[ix + 2];
+            out_mixer_effect2 = segment_mixer[ix + 3];
+            mixOutput(buffer, leftdry, rightdry, from, segment_end[i]);
+            from = segment_end[i];
+        }
+        out_mixer_left = mixer_left;
+        out_mixer_right = mixer_right;
+        out_mixer_effect1 = mixer_effect1;
+        out_mixer_effect2 = mixer_effect2;
+        mixOutput(buffer, leftdry, rightdry, from, bufferlen);
+
+        segment_count = 0;
+        render_pos = 0;
     }
 
     protected void processAudioLogic(SoftAudioBuffer[] buffer) {
@@ -821,6 +1095,13 @@ public class SoftVoice extends VoiceStatus {
 
         int bufferlen = buffer[0].getSize();
 
+        if (segment_count != 0) {
+            processSegments(buffer, bufferlen);
+            if (out_mixer_end)
+                stopping = true;
+            return;
+        }
+
         try {
             osc_buff[0] = buffer[SoftMainMixer.CHANNEL_LEFT_DRY].array();
             if (nrofchannels != 1)
@@ -840,18 +1121,6 @@ public class SoftVoice extends VoiceStatus {
             //e.printStackTrace();
         }
 
-        SoftAudioBuffer left = buffer[SoftMainMixer.CHANNEL_LEFT];
-        SoftAudioBuffer right = buffer[SoftMainMixer.CHANNEL_RIGHT];
-        SoftAudioBuffer mono = buffer[SoftMainMixer.CHANNEL_MONO];
-        SoftAudioBuffer eff1 = buffer[SoftMainMixer.CHANNEL_EFFECT1];
-        SoftAudioBuffer eff2 = buffer[SoftMainMixer.CHANNEL_EFFECT2];
-
-        SoftAudioBuffer dleft = buffer[SoftMainMixer.CHANNEL_DELAY_LEFT];
-        SoftAudioBuffer dright = buffer[SoftMainMixer.CHANNEL_DELAY_RIGHT];
-        SoftAudioBuffer dmono = buffer[SoftMainMixer.CHANNEL_DELAY_MONO];
-        SoftAudioBuffer deff1 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT1];
-        SoftAudioBuffer deff2 = buffer[SoftMainMixer.CHANNEL_DELAY_EFFECT2];
-        
         SoftAudioBuffer leftdry = buffer[SoftMainMixer.CHANNEL_LEFT_DRY];
         SoftAudioBuffer rightdry = buffer[SoftMainMixer.CHANNEL_RIGHT_DRY];
 
@@ -864,51 +1133,8 @@ public class SoftVoice extends VoiceStatus {
                 filter_right.processAudio(rightdry);
         }
 
-        if (nrofchannels == 1) {
-            out_mixer_left = (out_mixer_left + out_mixer_right) / 2;
-            mixAudioStream(leftdry, left, dleft, last_out_mixer_left, out_mixer_left);
-            if (rightdry != null)
-                mixAudioStream(rightdry, left, dleft, last_out_mixer_left,
-                        out_mixer_left);
-        } else {
-            if(rightdry == null && 
-                    last_out_mixer_left == last_out_mixer_right &&
-                    out_mixer_left == out_mixer_right)
-            {
-                mixAudioStream(leftdry, mono, dmono, last_out_mixer_left, out_mixer_left);
-            }
-            else
-            {
-                mixAudioStream(leftdry, left, dleft, last_out_mixer_left, out_mixer_left);
-                if (rightdry != null)
-                    mixAudioStream(rightdry, right, dright, last_out_mixer_right,
-                        out_mixer_right);
-                else
-                    mixAudioStream(leftdry, right, dright, last_out_mixer_right,
-                        out_mixer_right);
-            }
-        }
-
-        if (rightdry == null) {
-            mixAudioStream(leftdry, eff1, deff1, last_out_mixer_effect1,
-                    out_mixer_effect1);
-            mixAudioStream(leftdry, eff2, deff2, last_out_mixer_effect2,
-                    out_mixer_effect2);
-        } else {
-            mixAudioStream(leftdry, eff1, deff1, last_out_mixer_effect1 * 0.5f,
-                    out_mixer_effect1 * 0.5f);
-            mixAudioStream(leftdry, eff2, deff2, last_out_mixer_effect2 * 0.5f,
-                    out_mixer_effect2 * 0.5f);
-            mixAudioStream(rightdry, eff1, deff1, last_out_mixer_effect1 * 0.5f,
-                    out_mixer_effect1 * 0.5f);
-            mixAudioStream(rightdry, eff2, deff2, last_out_mixer_effect2 * 0.5f,
-                    out_mixer_effect2 * 0.5f);
-        }
-
-        last_out_mixer_left = out_mixer_left;
-        last_out_mixer_right = out_mixer_right;
-        last_out_mixer_effect1 = out_mixer_effect1;
-        last_out_mixer_effect2 = out_mixer_effect2;
+        mixOutput(buffer, leftdry.array(),
+                rightdry == null ? null : rightdry.array(), 0, bufferlen);
 
         if (out_mixer_end) {
             stopping = true;
@@ -0,0 +1,348 @@
+package cn.sherlock.com.sun.media.sound;
+
+import java.util.Arrays;
+
+/**
+ * Index of the active voices of a synthesizer.
+ *
+ * Active voices are kept in a bit set over the voice array, and in one
+ * bit set per MIDI channel, so iterating them costs one step per active
+ * voice plus one per 32 voices, and visits the voices in array order
+ * exactly like a scan of the whole voice array does. Voices are also
+ * linked into one list per (channel, note), and into one list of all
+ * active voices ordered by age, oldest first, which is what the voice
+ * stealing policies walk. The voices which are not stolen are in one more
+ * list ordered by age too, the held voices or the released voices, so the
+ * oldest voice of either is found without a walk.
+ *
+ * The index is updated when a voice starts (SoftVoice.noteOn), changes
+ * note (SoftVoice.setNote), is released (SoftVoice.noteOff, soundOff and
+ * shutdown), is stolen or no longer stolen (SoftChannel.initVoice and
+ * noteOff) and stops (SoftVoice.processControlLogic), all of which happen
+ * under the control_mutex of the synthesizer.
+ *
+ * Bit words are ints so a reader outside control_mutex, like the audio
+ * rendering, never sees a torn word.
+ */
+public class SoftVoiceIndex {
+
+    private final int[] active;
+    private final int[][] channel_active;
+    private final int[] channel_count;
+    private final int[] voice_channel;
+    private int count = 0;
+
+    // Number of active voices with a pending stealer
+    protected int stealers = 0;
+
+    // Doubly linked list of the voices of each (channel, note)
+    private final int[] note_head;
+    private final int[] note_next;
+    private final int[] note_prev;
+    private final int[] note_key;
+
+    // Doubly linked list of the active voices ordered by (voiceID, index)
+    private final int[] age_id;
+    private final int[] age_next;
+    private final int[] age_prev;
+    private int age_head = -1;
+    private int age_tail = -1;
+
+    // Doubly linked lists of the held and the released voices which are
+    // not stolen, ordered like the age list
+    private static final int HELD = 0;
+    private static final int RELEASED = 1;
+    private final int[] state;
+    private final int[] state_next;
+    private final int[] state_prev;
+    private final int[] state_head = { -1, -1 };
+    private final int[] state_tail = { -1, -1 };
+
+    public SoftVoiceIndex(int voices, int channels) {
+        int words = (voices + 31) >>> 5;
+        active = new int[words];
+        channel_active = new int[channels][words];
+        channel_count = new int[channels];
+        voice_channel = new int[voices];
+        note_head = new int[channels * 128];
+        Arrays.fill(note_head, -1);
+        note_next = new int[voices];
+        note_prev = new int[voices];
+        note_key = new int[voices];
+        Arrays.fill(note_key, -1);
+        age_id = new int[voices];
+        age_next = new int[voices];
+        age_prev = new int[voices];
+        state = new int[voices];
+        Arrays.fill(state, -1);
+        state_next = new int[voices];
+        state_prev = new int[voices];
+    }
+
+    private static int next(int[] bits, int from) {
+        int w = from >>> 5;
+        if (w >= bits.length)
+            return -1;
+        int word = bits[w] & (-1 << (from & 31));
+        while (word == 0) {
+            if (++w == bits.length)
+                return -1;
+            word = bits[w];
+        }
+        return (w << 5) + Integer.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Index of the first active voice at or after from, or -1.
+     */
+    public int next(int from) {
+        return next(active, from);
+    }
+
+    /**
+     * Index of the first free voice at or after from, or -1.
+     */
+    public int nextFree(int from) {
+        int w = from >>> 5;
+        if (w >= active.length)
+            return -1;
+        int word = ~active[w] & (-1 << (from & 31));
+        while (word == 0) {
+            if (++w == active.length)
+                return -1;
+            word = ~active[w];
+        }
+        int ix = (w << 5) + Integer.numberOfTrailingZeros(word);
+        return ix < voice_channel.length ? ix : -1;
+    }
+
+    /**
+     * Index of the first active voice of channel at or after from, or -1.
+     */
+    public int next(int channel, int from) {
+        if (channel < 0 || channel >= channel_active.length)
+            return -1;
+        return next(channel_active[channel], from);
+    }
+
+    /**
+     * Index of the first active voice playing note on channel, or -1.
+     * The voices of a note are not in voice array order.
+     */
+    public int firstOnNote(int channel, int note) {
+        if (channel < 0 || channel >= channel_active.length)
+            return -1;
+        return note_head[channel * 128 + note];
+    }
+
+    /**
+     * Index of the voice after voice in its (channel, note) list, or -1.
+     */
+    public int nextOnNote(int voice) {
+        return note_next[voice];
+    }
+
+    /**
+     * Index of the oldest active voice, the one with the lowest voiceID,
+     * or -1. Voices with the same voiceID are in voice array order.
+     */
+    public int oldest() {
+        return age_head;
+    }
+
+    /**
+     * Index of the active voice started after voice, or -1.
+     */
+    public int younger(int voice) {
+        return age_next[voice];
+    }
+
+    /**
+     * Index of the oldest held voice which is not stolen, or -1.
+     */
+    public int oldestHeld() {
+        return state_head[HELD];
+    }
+
+    /**
+     * Index of the oldest released voice which is not stolen, or -1.
+     */
+    public int oldestReleased() {
+        return state_head[RELEASED];
+    }
+
+    public boolean isActive(int voice) {
+        return (active[voice >>> 5] & (1 << (voice & 31))) != 0;
+    }
+
+    public int getActiveCount() {
+        return count;
+    }
+
+    public int getActiveCount(int channel) {
+        if (channel < 0 || channel >= channel_count.length)
+            return 0;
+        return channel_count[channel];
+    }
+
+    private void link(int voice, int channel, int note) {
+        if (channel < 0 || channel >= channel_active.length)
+            return;
+        int key = channel * 128 + note;
+        int head = note_head[key];
+        note_key[voice] = key;
+        note_prev[voice] = -1;
+        note_next[voice] = head;
+        if (head != -1)
+            note_prev[head] = voice;
+        note_head[key] = voice;
+    }
+
+    private void unlink(int voice) {
+        int key = note_key[voice];
+        if (key == -1)
+            return;
+        int prev = note_prev[voice];
+        int next = note_next[voice];
+        if (prev == -1)
+            note_head[key] = next;
+        else
+            note_next[prev] = next;
+        if (next != -1)
+            note_prev[next] = prev;
+        note_key[voice] = -1;
+    }
+
+    private void linkAge(int voice, int id) {
+        // Voices mostly start in voiceID order, search from the youngest
+        int prev = age_tail;
+        while (prev != -1 && (age_id[prev] > id
+                || (age_id[prev] == id && prev > voice)))
+            prev = age_prev[prev];
+        int next = prev == -1 ? age_head : age_next[prev];
+        age_id[voice] = id;
+        age_prev[voice] = prev;
+        age_next[voice] = next;
+        if (prev == -1)
+            age_head = voice;
+        else
+            age_next[prev] = voice;
+        if (next == -1)
+            age_tail = voice;
+        else
+            age_prev[next] = voice;
+    }
+
+    private void unlinkAge(int voice) {
+        int prev = age_prev[voice];
+        int next = age_next[voice];
+        if (prev == -1)
+            age_head = next;
+        else
+            age_next[prev] = next;
+        if (next == -1)
+            age_tail = prev;
+        else
+            age_prev[next] = prev;
+    }
+
+    private void linkState(int voice, int list) {
+        // Voices mostly start and are released in age order
+        int id = age_id[voice];
+        int prev = state_tail[list];
+        while (prev != -1 && (age_id[prev] > id
+                || (age_id[prev] == id && prev > voice)))
+            prev = state_prev[prev];
+        int next = prev == -1 ? state_head[list] : state_next[prev];
+        state[voice] = list;
+        state_prev[voice] = prev;
+        state_next[voice] = next;
+        if (prev == -1)
+            state_head[list] = voice;
+        else
+            state_next[prev] = voice;
+        if (next == -1)
+            state_tail[list] = voice;
+        else
+            state_prev[next] = voice;
+    }
+
+    private void unlinkState(int voice) {
+        int list = state[voice];
+        if (list == -1)
+            return;
+        int prev = state_prev[voice];
+        int next = state_next[voice];
+        if (prev == -1)
+            state_head[list] = next;
+        else
+            state_next[prev] = next;
+        if (next == -1)
+            state_tail[list] = prev;
+        else
+            state_prev[next] = prev;
+        state[voice] = -1;
+    }
+
+    protected void activate(SoftVoice voice) {
+        int ix = voice.index;
+        if (isActive(ix))
+            deactivate(voice);
+        int bit = 1 << (ix & 31);
+        active[ix >>> 5] |= bit;
+        count++;
+        int channel = voice.channel;
+        voice_channel[ix] = channel;
+        if (channel >= 0 && channel < channel_active.length) {
+            channel_active[channel][ix >>> 5] |= bit;
+            channel_count[channel]++;
+        }
+        link(ix, channel, voice.note);
+        linkAge(ix, voice.voiceID);
+        linkState(ix, voice.isReleased() ? RELEASED : HELD);
+    }
+
+    protected void deactivate(SoftVoice voice) {
+        int ix = voice.index;
+        if (!isActive(ix))
+            return;
+        int bit = 1 << (ix & 31);
+        active[ix >>> 5] &= ~bit;
+        count--;
+        int channel = voice_channel[ix];
+        if (channel >= 0 && channel < channel_active.length) {
+            channel_active[channel][ix >>> 5] &= ~bit;
+            channel_count[channel]--;
+        }
+        unlink(ix);
+        unlinkAge(ix);
+        unlinkState(ix);
+    }
+
+    protected void released(SoftVoice voice) {
+        int ix = voice.index;
+        if (state[ix] != HELD)
+            return;
+        unlinkState(ix);
+        linkState(ix, RELEASED);
+    }
+
+    protected void stolen(SoftVoice voice) {
+        unlinkState(voice.index);
+    }
+
+    protected void stealCancelled(SoftVoice voice) {
+        int ix = voice.index;
+        if (!isActive(ix) || state[ix] != -1)
+            return;
+        linkState(ix, voice.isReleased() ? RELEASED : HELD);
+    }
+
+    protected void noteChanged(SoftVoice voice) {
+        int ix = voice.index;
+        if (!isActive(ix))
+            return;
+        unlink(ix);
+        link(ix, voice.channel, voice.note);
+    }
+}
@@ -0,0 +1,182 @@
+package cn.sherlock.com.sun.media.sound;
+
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+
+/**
+ * Renders active voices on several threads.
+ *
+ * The active voices are split into contiguous slices, in voice order. The
+ * calling (audio) thread renders the first slice straight into the mixer
+ * buffers, every other slice is rendered by a worker thread into its own
+ * private set of buffers (including the delay and dry scratch buffers).
+ * When all workers are done the private buffers are added to the mixer
+ * buffers in slice order, so the result does not depend on thread
+ * scheduling.
+ *
+ * Compared to serial rendering only the order of the float additions
+ * differs, the difference is bounded by the float rounding error of
+ * the summation: |error| &lt;= (number of slices) * 2^-24 * (sum of the
+ * absolute voice amplitudes) per sample. With one thread the output is
+ * bit-identical to the serial path.
+ */
+public class SoftVoiceRenderPool {
+
+    private static final int[] MIX_CHANNELS = {
+            SoftMainMixer.CHANNEL_LEFT,
+            SoftMainMixer.CHANNEL_RIGHT,
+            SoftMainMixer.CHANNEL_MONO,
+            SoftMainMixer.CHANNEL_EFFECT1,
+            SoftMainMixer.CHANNEL_EFFECT2,
+            SoftMainMixer.CHANNEL_DELAY_LEFT,
+            SoftMainMixer.CHANNEL_DELAY_RIGHT,
+            SoftMainMixer.CHANNEL_DELAY_MONO,
+            SoftMainMixer.CHANNEL_DELAY_EFFECT1,
+            SoftMainMixer.CHANNEL_DELAY_EFFECT2 };
+
+    // Less voices than this per slice are not worth a thread handoff.
+    private static final int MIN_VOICES_PER_SLICE = 4;
+
+    private class Worker implements Runnable {
+
+        SoftAudioBuffer[] buffers;
+        int from;
+        int to;
+        boolean rendered = false;
+        private int generation = 0;
+
+        public void run() {
+            while (true) {
+                synchronized (lock) {
+                    while (active && generation == SoftVoiceRenderPool.this.generation) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            //e.printStackTrace();
+                        }
+                    }
+                    if (!active)
+                        return;
+                    generation = SoftVoiceRenderPool.this.generation;
+                }
+                render(work, from, to, buffers);
+                synchronized (lock) {
+                    pending--;
+                    if (pending == 0)
+                        lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Worker[] workers;
+    private final SoftVoice[] work;
+    private boolean active = true;
+    private int generation = 0;
+    private int pending = 0;
+
+    public SoftVoiceRenderPool(int threads, int maxpoly, int buffersize,
+            AudioFormat format) {
+        work = new SoftVoice[maxpoly];
+        workers = new Worker[threads - 1];
+        for (int i = 0; i < workers.length; i++) {
+            Worker worker = new Worker();
+            worker.buffers = new SoftAudioBuffer[SoftMainMixer.CHANNEL_RIGHT_DRY + 1];
+            for (int j = 0; j < worker.buffers.length; j++)
+                worker.buffers[j] = new SoftAudioBuffer(buffersize, format);
+            workers[i] = worker;
+            Thread thread = new Thread(worker, "Gervill Voice Renderer " + (i + 1));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    private static void render(SoftVoice[] voices, int from, int to,
+            SoftAudioBuffer[] buffers) {
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i].clear();
+        for (int i = from; i < to; i++)
+            voices[i].processAudioLogic(buffers);
+    }
+
+    /**
+     * Render all active voices without a channel mixer into buffers.
+     */
+    public void render(SoftVoice[] voicestatus, SoftVoiceIndex voiceindex,
+            SoftAudioBuffer[] buffers) {
+
+        int count = 0;
+        for (int i = voiceindex.next(0); i != -1; i = voiceindex.next(i + 1))
+            if (voicestatus[i].channelmixer == null)
+                work[count++] = voicestatus[i];
+
+        int slices = Math.min(workers.length + 1, count / MIN_VOICES_PER_SLICE);
+        if (slices <= 1) {
+            for (int i = 0; i < count; i++)
+                work[i].processAudioLogic(buffers);
+            return;
+        }
+
+        int slicelen = count / slices;
+        int first = count - slicelen * (slices - 1);
+
+        synchronized (lock) {
+            int from = first;
+            for (int i = 0; i < workers.length; i++) {
+                Worker worker = workers[i];
+                worker.rendered = i < slices - 1;
+                if (!worker.rendered) {
+                    // An idle worker gets an empty slice
+                    worker.from = count;
+                    worker.to = count;
+                } else {
+                    worker.from = from;
+                    worker.to = from + slicelen;
+                    from += slicelen;
+                }
+            }
+            pending = workers.length;
+            generation++;
+            lock.notifyAll();
+        }
+
+        for (int i = 0; i < first; i++)
+            work[i].processAudioLogic(buffers);
+
+        synchronized (lock) {
+            while (pending != 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    //e.printStackTrace();
+                }
+            }
+        }
+
+        int bufferlen = buffers[SoftMainMixer.CHANNEL_LEFT].getSize();
+        for (Worker worker : workers) {
+            if (!worker.rendered)
+                continue;
+            for (int c : MIX_CHANNELS) {
+                SoftAudioBuffer in = worker.buffers[c];
+                if (in.isSilent())
+                    continue;
+                float[] fin = in.array();
+                float[] fout = buffers[c].array();
+                for (int i = 0; i < bufferlen; i++)
+                    fout[i] += fin[i];
+            }
+        }
+
+        for (int i = 0; i < count; i++)
+            work[i] = null;
+    }
+
+    public void close() {
+        synchronized (lock) {
+            active = false;
+            lock.notifyAll();
+        }
+    }
+}
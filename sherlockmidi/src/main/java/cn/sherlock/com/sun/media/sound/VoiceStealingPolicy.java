@@ -0,0 +1,27 @@
+package cn.sherlock.com.sun.media.sound;
+
+/**
+ * Chooses which voice a channel steals when it needs a new voice.
+ *
+ * Both methods are called under the control_mutex of the synthesizer,
+ * and must only return active voices which are not already stolen
+ * (SoftVoice.isStolen), or -1. The active voices can be walked through
+ * the index, in voice array order or by age.
+ */
+public interface VoiceStealingPolicy {
+
+    /**
+     * Called for every voice a channel starts, before looking for a free
+     * voice. Returns the voice to steal if the channel must reuse a voice
+     * even though there may be free ones, or -1.
+     */
+    public int selectChannelVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index);
+
+    /**
+     * Called when all voices are in use. Returns the voice to steal, or -1
+     * to drop the new voice.
+     */
+    public int selectVoice(int channel, SoftVoice[] voices,
+            SoftVoiceIndex index);
+}
@@ -0,0 +1,245 @@
+package jp.kshoji.javax.sound.midi;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Track} that stores the events in primitive arrays, instead of a {@link MidiEvent} and a {@link MidiMessage} for each event.
+ * The {@link ShortMessage}s are packed into an int with the tick in a long, the other events are kept as they are.
+ * {@link #get(int)} returns a new view of a packed event at each call: changing its tick does not change the track,
+ * and {@link #remove(MidiEvent)} finds a packed event by its tick and message.
+ * {@link #getTick(int)} and {@link #getShortMessage(int)} read the events without making views.
+ */
+public class PackedTrack extends Track {
+	private long[] ticks = new long[16];
+	// ShortMessages as status | data1 << 8 | data2 << 16 | length << 24, the other events as -1 - the index in overflowEvents
+	private int[] messages = new int[16];
+	private int size;
+	// the events that are not ShortMessages, removed events are null until the next sort
+	private List<MidiEvent> overflowEvents = new ArrayList<MidiEvent>();
+
+	@Override
+	public boolean add(@NonNull final MidiEvent event) {
+		final MidiMessage message = event.getMessage();
+		synchronized (this) {
+			if (size == ticks.length) {
+				final long[] newTicks = new long[size * 2];
+				final int[] newMessages = new int[size * 2];
+				System.arraycopy(ticks, 0, newTicks, 0, size);
+				System.arraycopy(messages, 0, newMessages, 0, size);
+				ticks = newTicks;
+				messages = newMessages;
+			}
+
+			int packed = packShortMessage(message);
+			if (packed < 0) {
+				packed = -1 - overflowEvents.size();
+				overflowEvents.add(event);
+			}
+			if (size > 0 && event.getTick() < ticks[size - 1]) {
+				modificationCount++;
+			}
+			ticks[size] = event.getTick();
+			messages[size] = packed;
+			size++;
+		}
+
+		final Sequence sequence = this.sequence;
+		if (sequence != null && message instanceof MetaMessage) {
+			sequence.eventAdded(event);
+		}
+		return true;
+	}
+
+	@NonNull
+	@Override
+	public MidiEvent get(final int index) throws ArrayIndexOutOfBoundsException {
+		final int packed;
+		final long tick;
+		synchronized (this) {
+			checkIndex(index);
+			packed = messages[index];
+			if (packed < 0) {
+				return overflowEvents.get(-1 - packed);
+			}
+			tick = ticks[index];
+		}
+
+		final byte[] data = new byte[packed >>> 24];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (packed >> (i * 8));
+		}
+		return new MidiEvent(new ShortMessage(data), tick);
+	}
+
+	@Override
+	public synchronized long getTick(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return ticks[index];
+	}
+
+	@Override
+	public synchronized int getShortMessage(final int index) throws ArrayIndexOutOfBoundsException {
+		checkIndex(index);
+		return Math.max(messages[index], -1);
+	}
+
+	private void checkIndex(final int index) {
+		if (index < 0 || index >= size) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+	}
+
+	@Override
+	public boolean remove(@NonNull final MidiEvent event) {
+		final MidiMessage message = event.getMessage();
+		synchronized (this) {
+			int packed = packShortMessage(message);
+			final int overflowIndex;
+			if (packed < 0) {
+				overflowIndex = overflowEvents.indexOf(event);
+				if (overflowIndex < 0) {
+					return false;
+				}
+				packed = -1 - overflowIndex;
+			} else {
+				overflowIndex = -1;
+			}
+
+			// an overflow event is found by its index alone, its tick may have been changed after add
+			int index = 0;
+			while (index < size && (messages[index] != packed || (overflowIndex < 0 && ticks[index] != event.getTick()))) {
+				index++;
+			}
+			if (index == size) {
+				return false;
+			}
+			if (overflowIndex >= 0) {
+				overflowEvents.set(overflowIndex, null);
+			}
+			System.arraycopy(ticks, index + 1, ticks, index, size - index - 1);
+			System.arraycopy(messages, index + 1, messages, index, size - index - 1);
+			size--;
+			modificationCount++;
+		}
+
+		final Sequence sequence = this.sequence;
+		if (sequence != null && message instanceof MetaMessage) {
+			sequence.eventRemoved(event);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	synchronized void sortEvents() {
+		// remove all of END_OF_TRACK and the removed events, the ticks of the events kept as they are may have been changed
+		final List<MidiEvent> newOverflowEvents = new ArrayList<MidiEvent>();
+		final int[] priorities = new int[size + 1];
+		int count = 0;
+		boolean moved = false;
+		for (int i = 0; i < size; i++) {
+			int packed = messages[i];
+			if (packed < 0) {
+				final MidiEvent event = overflowEvents.get(-1 - packed);
+				final MidiMessage message = event.getMessage();
+				if (message instanceof MetaMessage && ((MetaMessage) message).getType() == MetaMessage.TYPE_END_OF_TRACK) {
+					// the events after END_OF_TRACK move
+					moved |= i < size - 1;
+					continue;
+				}
+				ticks[i] = event.getTick();
+				packed = -1 - newOverflowEvents.size();
+				newOverflowEvents.add(event);
+				priorities[count] = getPriority(message.getStatus());
+			} else {
+				priorities[count] = getPriority(packed & 0xff);
+			}
+			ticks[count] = ticks[i];
+			messages[count] = packed;
+			count++;
+		}
+		overflowEvents = newOverflowEvents;
+		size = count;
+
+		// sort the events, the events at the same tick with the same priority keep their order
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = ticks[i - 1] < ticks[i] || (ticks[i - 1] == ticks[i] && priorities[i - 1] >= priorities[i]);
+		}
+		if (!sorted) {
+			final int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			mergeSort(order, new int[size], 0, size, priorities);
+			final long[] newTicks = new long[ticks.length];
+			final int[] newMessages = new int[messages.length];
+			for (int i = 0; i < size; i++) {
+				newTicks[i] = ticks[order[i]];
+				newMessages[i] = messages[order[i]];
+			}
+			ticks = newTicks;
+			messages = newMessages;
+			moved = true;
+		}
+		if (moved) {
+			modificationCount++;
+		}
+
+		// add END_OF_TRACK to last
+		final long tick = size == 0 ? 0 : ticks[size - 1] + 1;
+		final MidiEvent endOfTrack = new MidiEvent(new MetaMessage(END_OF_TRACK.clone()), tick);
+		if (size == ticks.length) {
+			final long[] newTicks = new long[size * 2 + 1];
+			final int[] newMessages = new int[size * 2 + 1];
+			System.arraycopy(ticks, 0, newTicks, 0, size);
+			System.arraycopy(messages, 0, newMessages, 0, size);
+			ticks = newTicks;
+			messages = newMessages;
+		}
+		ticks[size] = tick;
+		messages[size] = -1 - overflowEvents.size();
+		overflowEvents.add(endOfTrack);
+		size++;
+	}
+
+	/**
+	 * Sort the event indices from start to end by tick, then by priority, keeping the order of the equal events
+	 *
+	 * @param order the indices to sort
+	 * @param work the array for merging, as long as order
+	 */
+	private void mergeSort(@NonNull final int[] order, @NonNull final int[] work, final int start, final int end, @NonNull final int[] priorities) {
+		if (end - start < 2) {
+			return;
+		}
+		final int middle = (start + end) >>> 1;
+		mergeSort(order, work, start, middle, priorities);
+		mergeSort(order, work, middle, end, priorities);
+		if (!isBefore(order[middle], order[middle - 1], priorities)) {
+			// already in order
+			return;
+		}
+		int left = start;
+		int right = middle;
+		for (int i = start; i < end; i++) {
+			if (right == end || (left < middle && !isBefore(order[right], order[left], priorities))) {
+				work[i] = order[left++];
+			} else {
+				work[i] = order[right++];
+			}
+		}
+		System.arraycopy(work, start, order, start, end - start);
+	}
+
+	private boolean isBefore(final int lhs, final int rhs, @NonNull final int[] priorities) {
+		return ticks[lhs] < ticks[rhs] || (ticks[lhs] == ticks[rhs] && priorities[lhs] > priorities[rhs]);
+	}
+}
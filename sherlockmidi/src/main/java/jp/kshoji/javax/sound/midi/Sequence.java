@@ -20,6 +20,7 @@ public class Sequence {
 	protected float divisionType;
 	protected int resolution;
 	protected Vector<Track> tracks;
+	private TempoMap tempoMap = null;
 
 	private static final float[] SUPPORTING_DIVISION_TYPES = {PPQ, SMPTE_24, SMPTE_25, SMPTE_30, SMPTE_30DROP};
 
@@ -75,7 +76,9 @@ public class Sequence {
 
 		if (numberOfTracks > 0) {
 			for (int i = 0; i < numberOfTracks; i++) {
-				tracks.add(new Track());
+				final Track track = new Track();
+				track.sequence = this;
+				tracks.add(track);
 			}
 		}
 	}
@@ -91,6 +94,20 @@ public class Sequence {
 		 * new Tracks accrue to the end of vector
 		 */
 		final Track track = new Track();
+		track.sequence = this;
+		tracks.add(track);
+		return track;
+	}
+
+	/**
+	 * Create an empty {@link PackedTrack}, which holds large numbers of events in less memory
+	 *
+	 * @return an empty {@link PackedTrack}
+	 */
+	@NonNull
+	public PackedTrack createPackedTrack() {
+		final PackedTrack track = new PackedTrack();
+		track.sequence = this;
 		tracks.add(track);
 		return track;
 	}
@@ -102,7 +119,16 @@ public class Sequence {
 	 * @return true if the track is successfully deleted
 	 */
 	public boolean deleteTrack(@Nullable final Track track) {
-		return tracks.remove(track);
+		if (tracks.remove(track) == false) {
+			return false;
+		}
+
+		track.sequence = null;
+		synchronized (this) {
+			// rebuilt at the next use
+			tempoMap = null;
+		}
+		return true;
 	}
 
 	/**
@@ -120,7 +146,42 @@ public class Sequence {
 	 * @return the {@link Sequence} length in microseconds
 	 */
 	public long getMicrosecondLength() {
-		return (long) (1000000.0f * getTickLength() / ((this.divisionType == 0.0f ? 2 : this.divisionType) * this.resolution * 1.0f));
+		return getTempoMap().tickToMicrosecond(getTickLength());
+	}
+
+	/**
+	 * Get the {@link TempoMap} of the {@link Sequence}, built at the first call
+	 *
+	 * @return the {@link TempoMap}
+	 */
+	@NonNull
+	public synchronized TempoMap getTempoMap() {
+		if (tempoMap == null) {
+			tempoMap = new TempoMap(this);
+		}
+		return tempoMap;
+	}
+
+	/**
+	 * Called when an event has been added to a {@link Track} of the {@link Sequence}
+	 *
+	 * @param event the {@link MidiEvent}
+	 */
+	synchronized void eventAdded(@NonNull final MidiEvent event) {
+		if (tempoMap != null) {
+			tempoMap.eventAdded(event);
+		}
+	}
+
+	/**
+	 * Called when an event has been removed from a {@link Track} of the {@link Sequence}
+	 *
+	 * @param event the {@link MidiEvent}
+	 */
+	synchronized void eventRemoved(@NonNull final MidiEvent event) {
+		if (tempoMap != null) {
+			tempoMap.eventRemoved(event);
+		}
 	}
 
 	/**
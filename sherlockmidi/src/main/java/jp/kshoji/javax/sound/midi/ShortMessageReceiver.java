@@ -0,0 +1,18 @@
+package jp.kshoji.javax.sound.midi;
+
+/**
+ * {@link Receiver} that also receives short messages as their bytes, without a {@link ShortMessage}.
+ * A {@link Sequencer} sends the short messages of a {@link PackedTrack} to it without making the messages.
+ */
+public interface ShortMessageReceiver extends Receiver {
+
+	/**
+	 * Called at short message receiving
+	 *
+	 * @param status the status byte
+	 * @param data1 the first data byte, 0 if the message has no data
+	 * @param data2 the second data byte, 0 if the message has less than two data bytes
+	 * @param timeStamp -1 if the timeStamp information is not available
+	 */
+	void send(int status, int data1, int data2, long timeStamp);
+}
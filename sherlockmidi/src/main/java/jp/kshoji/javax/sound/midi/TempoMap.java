@@ -0,0 +1,257 @@
+package jp.kshoji.javax.sound.midi;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The tempo changes of a {@link Sequence}, for converting between ticks and microseconds.
+ * The tempo segments hold the microsecond of their first tick, so a conversion is a binary search.
+ * The map is kept up to date when tempo events are added to or removed from the tracks of the {@link Sequence},
+ * but not when the tick or the message of an event already in a track is changed.
+ */
+public class TempoMap {
+	private static final int DEFAULT_MPQ = 500000;
+
+	private final Sequence sequence;
+
+	// tempo segments, ordered by tick. The first one is the default tempo from tick 0.
+	private MidiEvent[] events = new MidiEvent[16];
+	private long[] ticks = new long[16];
+	private long[] microseconds = new long[16];
+	private int[] mpqs = new int[16];
+	private int count;
+
+	/**
+	 * Constructor, reads the tempo events of all the tracks.
+	 *
+	 * @param sequence the {@link Sequence}
+	 */
+	TempoMap(@NonNull final Sequence sequence) {
+		this.sequence = sequence;
+		count = 1;
+		mpqs[0] = DEFAULT_MPQ;
+
+		for (final Track track : sequence.getTracks()) {
+			for (int i = 0; i < track.size(); i++) {
+				if (track.getShortMessage(i) >= 0) {
+					// not a tempo event
+					continue;
+				}
+				final MidiEvent event = track.get(i);
+				final int mpq = getTempoMPQ(event);
+				if (mpq > 0) {
+					insert(event, mpq);
+				}
+			}
+		}
+		update(1);
+	}
+
+	/**
+	 * Get the tempo of the tempo event
+	 *
+	 * @param event the {@link MidiEvent}
+	 * @return the tempo in microseconds per quarter note, -1 if the event is not a tempo event
+	 */
+	static int getTempoMPQ(@NonNull final MidiEvent event) {
+		final MidiMessage message = event.getMessage();
+		if (!(message instanceof MetaMessage) || ((MetaMessage) message).getType() != MetaMessage.TYPE_TEMPO) {
+			return -1;
+		}
+		final byte[] data = ((MetaMessage) message).getData();
+		if (data.length != 3) {
+			return -1;
+		}
+		return ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+	}
+
+	/**
+	 * Insert a segment after the segments starting at the same tick or before, without updating the microseconds
+	 *
+	 * @return the index of the segment
+	 */
+	private int insert(@NonNull final MidiEvent event, final int mpq) {
+		if (count == ticks.length) {
+			final int length = count * 2;
+			final MidiEvent[] newEvents = new MidiEvent[length];
+			final long[] newTicks = new long[length];
+			final long[] newMicroseconds = new long[length];
+			final int[] newMpqs = new int[length];
+			System.arraycopy(events, 0, newEvents, 0, count);
+			System.arraycopy(ticks, 0, newTicks, 0, count);
+			System.arraycopy(microseconds, 0, newMicroseconds, 0, count);
+			System.arraycopy(mpqs, 0, newMpqs, 0, count);
+			events = newEvents;
+			ticks = newTicks;
+			microseconds = newMicroseconds;
+			mpqs = newMpqs;
+		}
+
+		final int index = findTick(event.getTick()) + 1;
+		System.arraycopy(events, index, events, index + 1, count - index);
+		System.arraycopy(ticks, index, ticks, index + 1, count - index);
+		System.arraycopy(microseconds, index, microseconds, index + 1, count - index);
+		System.arraycopy(mpqs, index, mpqs, index + 1, count - index);
+		events[index] = event;
+		ticks[index] = event.getTick();
+		mpqs[index] = mpq;
+		count++;
+		return index;
+	}
+
+	/**
+	 * Recompute the microseconds of the segments from the specified index
+	 *
+	 * @param from the index of the first segment to update
+	 */
+	private void update(final int from) {
+		final int resolution = sequence.getResolution();
+		for (int i = Math.max(from, 1); i < count; i++) {
+			microseconds[i] = microseconds[i - 1] + (ticks[i] - ticks[i - 1]) * mpqs[i - 1] / resolution;
+		}
+	}
+
+	/**
+	 * Find the last segment starting at the tick or before
+	 *
+	 * @param tick the tick
+	 * @return the index of the segment
+	 */
+	private int findTick(final long tick) {
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (ticks[middle] <= tick) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Find the last segment starting at the microsecond or before
+	 *
+	 * @param microsecond the microsecond
+	 * @return the index of the segment
+	 */
+	private int findMicrosecond(final long microsecond) {
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (microseconds[middle] <= microsecond) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Called when an event has been added to a track of the {@link Sequence}
+	 *
+	 * @param event the {@link MidiEvent}
+	 */
+	synchronized void eventAdded(@NonNull final MidiEvent event) {
+		final int mpq = getTempoMPQ(event);
+		if (mpq <= 0 || indexOf(event) >= 0) {
+			return;
+		}
+		update(insert(event, mpq));
+	}
+
+	/**
+	 * Called when an event has been removed from a track of the {@link Sequence}
+	 *
+	 * @param event the {@link MidiEvent}
+	 */
+	synchronized void eventRemoved(@NonNull final MidiEvent event) {
+		final int index = indexOf(event);
+		if (index < 0) {
+			return;
+		}
+		System.arraycopy(events, index + 1, events, index, count - index - 1);
+		System.arraycopy(ticks, index + 1, ticks, index, count - index - 1);
+		System.arraycopy(microseconds, index + 1, microseconds, index, count - index - 1);
+		System.arraycopy(mpqs, index + 1, mpqs, index, count - index - 1);
+		count--;
+		events[count] = null;
+		update(index);
+	}
+
+	/**
+	 * Find the segment of the tempo event
+	 *
+	 * @return the index of the segment, -1 if not found
+	 */
+	private int indexOf(@NonNull final MidiEvent event) {
+		for (int i = findTick(event.getTick()); i > 0 && ticks[i] == event.getTick(); i--) {
+			if (events[i] == event) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the number of tempo changes, not counting the default tempo at tick 0
+	 *
+	 * @return the number of tempo changes
+	 */
+	public synchronized int getTempoChangeCount() {
+		return count - 1;
+	}
+
+	/**
+	 * Get the tempo at the specified tick
+	 *
+	 * @param tick the tick
+	 * @return the tempo in microseconds per quarter note
+	 */
+	public synchronized int getTempoMPQ(final long tick) {
+		return mpqs[findTick(tick)];
+	}
+
+	/**
+	 * Get the tempo set by the last tempo event at the specified tick or before
+	 *
+	 * @param tick the tick
+	 * @return the tempo in microseconds per quarter note, -1 if there is no tempo event at the tick or before
+	 */
+	public synchronized int getTempoEventMPQ(final long tick) {
+		final int index = findTick(tick);
+		return index > 0 ? mpqs[index] : -1;
+	}
+
+	/**
+	 * Convert the tick to the time from the start of the {@link Sequence}
+	 *
+	 * @param tick the tick
+	 * @return the time in microseconds
+	 */
+	public synchronized long tickToMicrosecond(final long tick) {
+		if (sequence.getDivisionType() != Sequence.PPQ) {
+			return (long) (tick * 1000000.0 / ((double) sequence.getDivisionType() * sequence.getResolution()));
+		}
+		final int index = findTick(tick);
+		return microseconds[index] + (tick - ticks[index]) * mpqs[index] / sequence.getResolution();
+	}
+
+	/**
+	 * Convert the time from the start of the {@link Sequence} to the last tick at the time or before
+	 *
+	 * @param microsecond the time in microseconds
+	 * @return the tick
+	 */
+	public synchronized long microsecondToTick(final long microsecond) {
+		if (sequence.getDivisionType() != Sequence.PPQ) {
+			return (long) (microsecond * (double) sequence.getDivisionType() * sequence.getResolution() / 1000000.0);
+		}
+		final int index = findMicrosecond(microsecond);
+		// the last tick at the microsecond or before, tickToMicrosecond rounds down
+		return ticks[index] + ((microsecond - microseconds[index] + 1) * sequence.getResolution() - 1) / mpqs[index];
+	}
+}
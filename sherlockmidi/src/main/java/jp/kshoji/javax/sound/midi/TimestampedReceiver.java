@@ -0,0 +1,15 @@
+package jp.kshoji.javax.sound.midi;
+
+/**
+ * {@link Receiver} that processes each message at the time of its timeStamp, instead of when it is received.
+ * A {@link Sequencer} can send messages to it ahead of time.
+ */
+public interface TimestampedReceiver extends Receiver {
+
+	/**
+	 * Get the current time of the clock the timeStamps are in.
+	 *
+	 * @return the current time in microseconds
+	 */
+	long getMicrosecondPosition();
+}
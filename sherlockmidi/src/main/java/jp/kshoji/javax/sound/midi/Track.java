@@ -4,7 +4,6 @@ import android.support.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -17,11 +16,17 @@ import java.util.Set;
  * @author K.Shoji
  */
 public class Track {
-    private static final byte[] END_OF_TRACK = { -1, 47, 0 };
+    static final byte[] END_OF_TRACK = { -1, 47, 0 };
     private static final Track[] emptyTracks = {};
 
     private final List<MidiEvent> events = new ArrayList<MidiEvent>();
 
+    // the Sequence this Track belongs to, its TempoMap is told about added and removed meta events
+    Sequence sequence;
+
+    // counts the edits which moved the events to other indices, or added an event before the tick of the last event
+    volatile int modificationCount;
+
 	/**
 	 * {@link Comparator} for MIDI data sorting
 	 */
@@ -29,43 +34,49 @@ public class Track {
 		@Override
 		public int compare(MidiEvent lhs, MidiEvent rhs) {
 			// sort by tick
-			final int tickDifference = (int) (lhs.getTick() - rhs.getTick());
-			if (tickDifference != 0) {
-				return tickDifference * 256;
+			if (lhs.getTick() != rhs.getTick()) {
+				return lhs.getTick() < rhs.getTick() ? -1 : 1;
 			}
 
-            byte[] lhsMessage = lhs.getMessage().getMessage();
-            byte[] rhsMessage = rhs.getMessage().getMessage();
-
-            // apply zero if message is empty
-            if (lhsMessage == null || lhsMessage.length < 1) {
-                lhsMessage = new byte[] {0};
-            }
-            if (rhsMessage == null || rhsMessage.length < 1) {
-                rhsMessage = new byte[] {0};
-            }
-
-			// same timing
-			// sort by the MIDI data priority order, as:
-			// system message > control messages > note on > note off
-			// swap the priority of note on, and note off
-			int lhsInt = lhsMessage[0] & 0xf0;
-			int rhsInt = rhsMessage[0] & 0xf0;
+			// same timing, the status is zero if message is empty
+			return getPriority(rhs.getMessage().getStatus()) - getPriority(lhs.getMessage().getStatus());
+		}
+	};
 
-			if ((lhsInt & 0x90) == 0x80) {
-				lhsInt |= 0x10;
-			} else {
-				lhsInt &= ~0x10;
-			}
-			if ((rhsInt & 0x90) == 0x80) {
-				rhsInt |= 0x10;
-			} else {
-				rhsInt &= ~0x10;
-			}
+	/**
+	 * Get the sort priority of the events at the same timing
+	 *
+	 * @param status the status of the message
+	 * @return the priority, higher first
+	 */
+	static int getPriority(final int status) {
+		// sort by the MIDI data priority order, as:
+		// system message > control messages > note on > note off
+		// swap the priority of note on, and note off
+		final int priority = status & 0xf0;
+		if ((priority & 0x90) == 0x80) {
+			return priority | 0x10;
+		}
+		return priority & ~0x10;
+	}
 
-			return -(lhsInt - rhsInt);
+	/**
+	 * Pack the {@link ShortMessage} into an int
+	 *
+	 * @param message the {@link MidiMessage}
+	 * @return the status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16 | length &lt;&lt; 24, -1 if the message is not a plain {@link ShortMessage}
+	 */
+	static int packShortMessage(@NonNull final MidiMessage message) {
+		if (message.getClass() != ShortMessage.class) {
+			return -1;
 		}
-	};
+		final int length = message.getLength();
+		if (length < 1 || length > 3) {
+			return -1;
+		}
+		final ShortMessage shortMessage = (ShortMessage) message;
+		return shortMessage.getStatus() | (shortMessage.getData1() << 8) | (shortMessage.getData2() << 16) | (length << 24);
+	}
 
 	/**
 	 * Utilities for {@link Track}
@@ -116,7 +127,10 @@ public class Track {
 					continue;
 				}
 
-				mergedTrack.events.addAll(tracks[trackIndex].events);
+				final Track track = tracks[trackIndex];
+				for (int eventIndex = 0; eventIndex < track.size(); eventIndex++) {
+					mergedTrack.events.add(track.get(eventIndex));
+				}
 			}
 
 			sortEvents(mergedTrack);
@@ -130,27 +144,45 @@ public class Track {
 		 * @param track the Track
 		 */
 		public static void sortEvents(@NonNull final Track track) {
-			synchronized (track.events) {
-				// remove all of END_OF_TRACK
-				final Collection<MidiEvent> filtered = new ArrayList<MidiEvent>();
-				for (final MidiEvent event : track.events) {
-					if (!Arrays.equals(END_OF_TRACK, event.getMessage().getMessage())) {
-						filtered.add(event);
-					}
-				}
-				track.events.clear();
-				track.events.addAll(filtered);
-				
-				// sort the events
-				Collections.sort(track.events, midiEventComparator);
-				
-				// add END_OF_TRACK to last
-				if (track.events.isEmpty()) {
-					track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
-				} else {
-					track.events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), track.events.get(track.events.size() - 1).getTick() + 1));
+			track.sortEvents();
+		}
+	}
+
+	/**
+	 * Sort the {@link MidiEvent}s, order by tick and events, and put END_OF_TRACK to last
+	 */
+	void sortEvents() {
+		synchronized (events) {
+			// remove all of END_OF_TRACK
+			final List<MidiEvent> filtered = new ArrayList<MidiEvent>();
+			boolean moved = false;
+			for (int i = 0; i < events.size(); i++) {
+				final MidiEvent event = events.get(i);
+				if (!Arrays.equals(END_OF_TRACK, event.getMessage().getMessage())) {
+					filtered.add(event);
+				} else if (i < events.size() - 1) {
+					// the events after END_OF_TRACK move
+					moved = true;
 				}
 			}
+			events.clear();
+			events.addAll(filtered);
+
+			// sort the events
+			Collections.sort(events, midiEventComparator);
+			for (int i = 0; i < events.size() && !moved; i++) {
+				moved = events.get(i) != filtered.get(i);
+			}
+			if (moved) {
+				modificationCount++;
+			}
+
+			// add END_OF_TRACK to last
+			if (events.isEmpty()) {
+				events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), 0));
+			} else {
+				events.add(new MidiEvent(new MetaMessage(END_OF_TRACK), events.get(events.size() - 1).getTick() + 1));
+			}
 		}
 	}
 
@@ -161,9 +193,20 @@ public class Track {
 	 * @return true if the event has been added
 	 */
 	public boolean add(@NonNull final MidiEvent event) {
+		final boolean added;
 		synchronized (events) {
-			return events.add(event);
+			// the event before the last one is out of the order read while playing
+			if (!events.isEmpty() && event.getTick() < events.get(events.size() - 1).getTick()) {
+				modificationCount++;
+			}
+			added = events.add(event);
+		}
+
+		final Sequence sequence = this.sequence;
+		if (added && sequence != null && event.getMessage() instanceof MetaMessage) {
+			sequence.eventAdded(event);
 		}
+		return added;
 	}
 
 	/**
@@ -180,6 +223,35 @@ public class Track {
 		}
 	}
 
+	/**
+	 * Get the tick of the {@link MidiEvent} at the specified index, without getting the event
+	 *
+	 * @param index the index of event
+	 * @return the tick
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public long getTick(final int index) throws ArrayIndexOutOfBoundsException {
+		synchronized (events) {
+			return events.get(index).getTick();
+		}
+	}
+
+	/**
+	 * Get the {@link ShortMessage} of the {@link MidiEvent} at the specified index packed into an int, without getting the event.
+	 * The other messages are got with {@link #get(int)}.
+	 *
+	 * @param index the index of event
+	 * @return the status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16 | length &lt;&lt; 24, -1 if the message is not a plain {@link ShortMessage}
+	 * @throws ArrayIndexOutOfBoundsException
+	 */
+	public int getShortMessage(final int index) throws ArrayIndexOutOfBoundsException {
+		final MidiMessage message;
+		synchronized (events) {
+			message = events.get(index).getMessage();
+		}
+		return packShortMessage(message);
+	}
+
 	/**
 	 * Remove {@link MidiEvent} from this {@link Track}
 	 * 
@@ -187,9 +259,19 @@ public class Track {
 	 * @return true if the event has been removed
 	 */
 	public boolean remove(@NonNull final MidiEvent event) {
+		final boolean removed;
 		synchronized (events) {
-			return events.remove(event);
+			removed = events.remove(event);
+			if (removed) {
+				modificationCount++;
+			}
 		}
+
+		final Sequence sequence = this.sequence;
+		if (removed && sequence != null && event.getMessage() instanceof MetaMessage) {
+			sequence.eventRemoved(event);
+		}
+		return removed;
 	}
 
 	/**
@@ -211,12 +293,11 @@ public class Track {
 	public long ticks() {
 		TrackUtils.sortEvents(this);
 
-		synchronized (events) {
-			if (events.isEmpty()) {
-				return 0L;
-			}
-
-			return events.get(events.size() - 1).getTick();
+		final int size = size();
+		if (size == 0) {
+			return 0L;
 		}
+
+		return getTick(size - 1);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,388 @@
+package jp.kshoji.javax.sound.midi;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Reads the events of {@link Track}s in the order of one merged and sorted {@link Track}, without making it.
+ * The next event is taken from a heap of the next events of the tracks, the events at the same timing are in the order of the tracks.
+ * The END_OF_TRACK events of the tracks are skipped, one END_OF_TRACK is read after the last event of all the tracks.
+ * {@link #advance()} moves to the next event without getting it, the event is read from its track with {@link #getEventIndex()}.
+ * The tracks are read as they are, {@link #isModified()} tells the events have been moved by the {@link Track} edits since the cursor was made,
+ * then the cursor should be made again: the reads after the edit may have skipped or repeated the events, or thrown {@link IndexOutOfBoundsException}.
+ */
+public class TrackMergeCursor {
+	private final Track[] tracks;
+	// the index of the next event of each track
+	private final int[] positions;
+	// the modification count of each track, when the cursor was made
+	private final int[] modificationCounts;
+	// the tick and the sort priority of the next event of each track
+	private final long[] headTicks;
+	private final int[] headPriorities;
+	// the indices of the tracks with a next event, as a binary heap ordered by the next event
+	private final int[] heap;
+	private int heapSize;
+	private final MidiEvent endOfTrack;
+	private boolean endOfTrackRead;
+	private int trackIndex = -1;
+	private int eventIndex = -1;
+	private long tick;
+
+	/**
+	 * Constructor, the tracks not sorted by {@link Track.TrackUtils#sortEvents(Track)} are sorted.
+	 *
+	 * @param tracks the {@link Track}s
+	 */
+	public TrackMergeCursor(@NonNull final Track[] tracks) {
+		this.tracks = tracks.clone();
+		positions = new int[tracks.length];
+		modificationCounts = new int[tracks.length];
+		headTicks = new long[tracks.length];
+		headPriorities = new int[tracks.length];
+		heap = new int[tracks.length];
+
+		long endTick = -1;
+		for (int trackIndex = 0; trackIndex < this.tracks.length; trackIndex++) {
+			final Track track = this.tracks[trackIndex];
+			try {
+				// the count is taken before checking, the track edited after that is found by isModified()
+				modificationCounts[trackIndex] = track.modificationCount;
+				while (!isSorted(track)) {
+					Track.TrackUtils.sortEvents(track);
+					modificationCounts[trackIndex] = track.modificationCount;
+				}
+				for (int i = track.size() - 1; i >= 0; i--) {
+					if (!isEndOfTrack(track, i)) {
+						endTick = Math.max(endTick, track.getTick(i));
+						break;
+					}
+				}
+			} catch (final IndexOutOfBoundsException ignored) {
+				// the track has been edited while reading, isModified() returns true
+				modificationCounts[trackIndex] = track.modificationCount - 1;
+			}
+		}
+		endOfTrack = new MidiEvent(new MetaMessage(Track.END_OF_TRACK.clone()), endTick + 1);
+		rewind();
+	}
+
+	/**
+	 * Check if the events of the {@link Track} are in order
+	 *
+	 * @param track the {@link Track}
+	 * @return true if the track is sorted
+	 */
+	private static boolean isSorted(@NonNull final Track track) {
+		final int size = track.size();
+		for (int i = 1; i < size; i++) {
+			final long previousTick = track.getTick(i - 1);
+			final long tick = track.getTick(i);
+			if (previousTick > tick || (previousTick == tick && getPriority(track, i - 1) < getPriority(track, i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isEndOfTrack(@NonNull final Track track, final int index) {
+		if (track.getShortMessage(index) >= 0) {
+			return false;
+		}
+		final MidiMessage message = track.get(index).getMessage();
+		return message instanceof MetaMessage && ((MetaMessage) message).getType() == MetaMessage.TYPE_END_OF_TRACK;
+	}
+
+	private static int getPriority(@NonNull final Track track, final int index) {
+		final int packed = track.getShortMessage(index);
+		if (packed >= 0) {
+			return Track.getPriority(packed & 0xff);
+		}
+		return Track.getPriority(track.get(index).getMessage().getStatus());
+	}
+
+	/**
+	 * Check if the events of the {@link Track}s have been moved to other indices by removing or sorting, or an event has been added before the tick of the last event, since the cursor was made.
+	 * The events added at the tick of the last event of a track or after are read by the cursor.
+	 *
+	 * @return true if the cursor should be made again
+	 */
+	public boolean isModified() {
+		for (int i = 0; i < tracks.length; i++) {
+			if (tracks[i].modificationCount != modificationCounts[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of {@link Track}s
+	 *
+	 * @return the number of tracks
+	 */
+	public int getTrackCount() {
+		return tracks.length;
+	}
+
+	/**
+	 * Get the {@link Track} at the specified index
+	 *
+	 * @param trackIndex the index of the track
+	 * @return the track
+	 */
+	@NonNull
+	public Track getTrack(final int trackIndex) {
+		return tracks[trackIndex];
+	}
+
+	/**
+	 * Move to the first event
+	 */
+	public void rewind() {
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = 0;
+		}
+		build();
+	}
+
+	/**
+	 * Move to the first event at the specified tick or after
+	 *
+	 * @param tick the tick
+	 */
+	public void seek(final long tick) {
+		for (int i = 0; i < tracks.length; i++) {
+			final Track track = tracks[i];
+			int low = 0;
+			int high = track.size();
+			try {
+				while (low < high) {
+					final int middle = (low + high) >>> 1;
+					if (track.getTick(middle) < tick) {
+						low = middle + 1;
+					} else {
+						high = middle;
+					}
+				}
+			} catch (final IndexOutOfBoundsException ignored) {
+				// the track has been edited, isModified() returns true
+			}
+			positions[i] = low;
+		}
+		build();
+		if (heapSize == 0 && endOfTrack.getTick() < tick) {
+			endOfTrackRead = true;
+		}
+	}
+
+	/**
+	 * Get the position of the cursor, as the index of the next event of each track
+	 *
+	 * @param positions the array to set, its length is the number of tracks
+	 */
+	public void getPositions(@NonNull final int[] positions) {
+		System.arraycopy(this.positions, 0, positions, 0, this.positions.length);
+	}
+
+	/**
+	 * Move to the position got by {@link #getPositions(int[])}
+	 *
+	 * @param positions the index of the next event of each track
+	 */
+	public void setPositions(@NonNull final int[] positions) {
+		System.arraycopy(positions, 0, this.positions, 0, this.positions.length);
+		build();
+	}
+
+	/**
+	 * Get the next event without moving the cursor
+	 *
+	 * @return the next {@link MidiEvent}, null if all the events have been read
+	 */
+	@Nullable
+	public MidiEvent peek() {
+		if (heapSize > 0) {
+			return tracks[heap[0]].get(positions[heap[0]]);
+		}
+		return endOfTrackRead ? null : endOfTrack;
+	}
+
+	/**
+	 * Get the tick of the next event without moving the cursor
+	 *
+	 * @return the tick of the next event, {@link Long#MAX_VALUE} if all the events have been read
+	 */
+	public long peekTick() {
+		if (heapSize > 0) {
+			return headTicks[heap[0]];
+		}
+		return endOfTrackRead ? Long.MAX_VALUE : endOfTrack.getTick();
+	}
+
+	/**
+	 * Read the next event
+	 *
+	 * @return the next {@link MidiEvent}, null if all the events have been read
+	 */
+	@Nullable
+	public MidiEvent next() {
+		if (!advance()) {
+			return null;
+		}
+		return getEvent();
+	}
+
+	/**
+	 * Move to the next event without getting it
+	 *
+	 * @return false if all the events have been read
+	 */
+	public boolean advance() {
+		if (heapSize == 0) {
+			trackIndex = -1;
+			eventIndex = -1;
+			if (endOfTrackRead) {
+				return false;
+			}
+			endOfTrackRead = true;
+			tick = endOfTrack.getTick();
+			return true;
+		}
+
+		trackIndex = heap[0];
+		eventIndex = positions[trackIndex];
+		tick = headTicks[trackIndex];
+		positions[trackIndex]++;
+		if (load(trackIndex)) {
+			siftDown(0);
+		} else {
+			heapSize--;
+			if (heapSize > 0) {
+				heap[0] = heap[heapSize];
+				siftDown(0);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the event read last by {@link #next()} or {@link #advance()}
+	 *
+	 * @return the {@link MidiEvent}
+	 * @throws IndexOutOfBoundsException the event has been removed from its track
+	 */
+	@NonNull
+	public MidiEvent getEvent() {
+		if (trackIndex < 0) {
+			return endOfTrack;
+		}
+		return tracks[trackIndex].get(eventIndex);
+	}
+
+	/**
+	 * Get the tick of the event read last
+	 *
+	 * @return the tick
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Get the index of the {@link Track} of the event read last
+	 *
+	 * @return the index of the track, -1 for the END_OF_TRACK after the last event
+	 */
+	public int getTrackIndex() {
+		return trackIndex;
+	}
+
+	/**
+	 * Get the index of the event read last in its {@link Track}
+	 *
+	 * @return the index of the event, -1 for the END_OF_TRACK after the last event
+	 */
+	public int getEventIndex() {
+		return eventIndex;
+	}
+
+	/**
+	 * Make the heap of the tracks from the positions
+	 */
+	private void build() {
+		heapSize = 0;
+		for (int i = 0; i < tracks.length; i++) {
+			if (load(i)) {
+				heap[heapSize++] = i;
+			}
+		}
+		for (int i = heapSize / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+		endOfTrackRead = false;
+		trackIndex = -1;
+		eventIndex = -1;
+	}
+
+	/**
+	 * Set the next event of the track, skipping END_OF_TRACK events
+	 *
+	 * @param track the index of the track
+	 * @return true if the track has a next event, false if the track has been read or the events have been removed while reading
+	 */
+	private boolean load(final int track) {
+		final Track source = tracks[track];
+		try {
+			final int size = source.size();
+			while (positions[track] < size) {
+				final int position = positions[track];
+				final int packed = source.getShortMessage(position);
+				if (packed >= 0) {
+					headPriorities[track] = Track.getPriority(packed & 0xff);
+				} else {
+					final MidiMessage message = source.get(position).getMessage();
+					if (message instanceof MetaMessage && ((MetaMessage) message).getType() == MetaMessage.TYPE_END_OF_TRACK) {
+						positions[track]++;
+						continue;
+					}
+					headPriorities[track] = Track.getPriority(message.getStatus());
+				}
+				headTicks[track] = source.getTick(position);
+				return true;
+			}
+		} catch (final IndexOutOfBoundsException ignored) {
+			// the track has been edited, isModified() returns true
+		}
+		return false;
+	}
+
+	private boolean isBefore(final int lhs, final int rhs) {
+		if (headTicks[lhs] != headTicks[rhs]) {
+			return headTicks[lhs] < headTicks[rhs];
+		}
+		if (headPriorities[lhs] != headPriorities[rhs]) {
+			return headPriorities[lhs] > headPriorities[rhs];
+		}
+		return lhs < rhs;
+	}
+
+	private void siftDown(int index) {
+		final int track = heap[index];
+		while (true) {
+			int child = index * 2 + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && isBefore(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!isBefore(heap[child], track)) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = track;
+	}
+}
@@ -0,0 +1,479 @@
+package jp.kshoji.javax.sound.midi.impl;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
+import jp.kshoji.javax.sound.midi.MetaMessage;
+import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.ShortMessage;
+import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.Track;
+import jp.kshoji.javax.sound.midi.TrackMergeCursor;
+
+/**
+ * Chase state of the played {@link Track}s at every {@link #INTERVAL} events, for seeking.
+ * The state of a tick is the nearest checkpoint before it with the few events after the checkpoint applied,
+ * and is sent as the messages that set it up, instead of the events before the tick.
+ */
+final class ChaseCheckpoints {
+    static final int INTERVAL = 1024;
+
+    private static final int CONTROLLER_BANK_SELECT = 0;
+    private static final int CONTROLLER_DATA_ENTRY = 6;
+    private static final int CONTROLLER_VOLUME = 7;
+    private static final int CONTROLLER_PAN = 10;
+    private static final int CONTROLLER_BANK_SELECT_LSB = 32;
+    private static final int CONTROLLER_DATA_ENTRY_LSB = 38;
+    private static final int CONTROLLER_DATA_INCREMENT = 96;
+    private static final int CONTROLLER_DATA_DECREMENT = 97;
+    private static final int CONTROLLER_NRPN_LSB = 98;
+    private static final int CONTROLLER_NRPN_MSB = 99;
+    private static final int CONTROLLER_RPN_LSB = 100;
+    private static final int CONTROLLER_RPN_MSB = 101;
+    private static final int CONTROLLER_RESET_ALL_CONTROLLERS = 121;
+    // controllers from here are channel mode messages
+    private static final int CONTROLLER_CHANNEL_MODE = 120;
+
+    /**
+     * The chase state at an event
+     */
+    static final class State {
+        // the values are -1 while not set
+        private final byte[] controllers = new byte[16 * 128];
+        private final int[] programs = new int[16];
+        private final int[] pitchBends = new int[16];
+        private final int[] pressures = new int[16];
+        private final boolean[] resetAllControllers = new boolean[16];
+        // last selected parameter of the channel is an NRPN
+        private final boolean[] nrpn = new boolean[16];
+        // data entry values of the channel << 16 | NRPN << 14 | parameter number, as MSB << 7 | LSB, -1 for unset halves
+        private final Map<Integer, Integer> parameters = new HashMap<Integer, Integer>();
+        private int tempoMPQ = -1;
+        // system exclusive messages to send, from the last system reset
+        private int sysexStart = 0;
+        private int sysexEnd = 0;
+
+        State() {
+            Arrays.fill(controllers, (byte) -1);
+            Arrays.fill(programs, -1);
+            Arrays.fill(pitchBends, -1);
+            Arrays.fill(pressures, -1);
+        }
+
+        /**
+         * Copy the state
+         *
+         * @param state the source
+         */
+        void set(@NonNull final State state) {
+            System.arraycopy(state.controllers, 0, controllers, 0, controllers.length);
+            System.arraycopy(state.programs, 0, programs, 0, programs.length);
+            System.arraycopy(state.pitchBends, 0, pitchBends, 0, pitchBends.length);
+            System.arraycopy(state.pressures, 0, pressures, 0, pressures.length);
+            System.arraycopy(state.resetAllControllers, 0, resetAllControllers, 0, resetAllControllers.length);
+            System.arraycopy(state.nrpn, 0, nrpn, 0, nrpn.length);
+            parameters.clear();
+            parameters.putAll(state.parameters);
+            tempoMPQ = state.tempoMPQ;
+            sysexStart = state.sysexStart;
+            sysexEnd = state.sysexEnd;
+        }
+
+        /**
+         * Get the tempo of the state
+         *
+         * @return the tempo in microseconds per quarter note, -1 if no tempo event has been chased
+         */
+        int getTempoMPQ() {
+            return tempoMPQ;
+        }
+
+        /**
+         * Clear the state of all the channels, as a system reset does
+         */
+        private void resetChannels() {
+            Arrays.fill(controllers, (byte) -1);
+            Arrays.fill(programs, -1);
+            Arrays.fill(pitchBends, -1);
+            Arrays.fill(pressures, -1);
+            Arrays.fill(resetAllControllers, false);
+            Arrays.fill(nrpn, false);
+            parameters.clear();
+        }
+
+        /**
+         * Apply a control change
+         */
+        private void controlChange(final int channel, final int controller, final int value) {
+            final int base = channel * 128;
+            switch (controller) {
+                case CONTROLLER_DATA_ENTRY:
+                case CONTROLLER_DATA_ENTRY_LSB: {
+                    final int msb = controllers[base + (nrpn[channel] ? CONTROLLER_NRPN_MSB : CONTROLLER_RPN_MSB)];
+                    final int lsb = controllers[base + (nrpn[channel] ? CONTROLLER_NRPN_LSB : CONTROLLER_RPN_LSB)];
+                    if (msb < 0 || lsb < 0 || (!nrpn[channel] && msb == 127 && lsb == 127)) {
+                        // no parameter selected
+                        return;
+                    }
+                    final int key = (channel << 16) | (nrpn[channel] ? 1 << 14 : 0) | (msb << 7) | lsb;
+                    final Integer oldValue = parameters.get(key);
+                    int dataMsb = oldValue == null ? -1 : oldValue >> 8;
+                    int dataLsb = oldValue == null ? -1 : (byte) oldValue.intValue();
+                    if (controller == CONTROLLER_DATA_ENTRY) {
+                        dataMsb = value;
+                    } else {
+                        dataLsb = value;
+                    }
+                    parameters.put(key, (dataMsb << 8) | (dataLsb & 0xff));
+                    return;
+                }
+                case CONTROLLER_DATA_INCREMENT:
+                case CONTROLLER_DATA_DECREMENT:
+                    // not chased
+                    return;
+                case CONTROLLER_NRPN_LSB:
+                case CONTROLLER_NRPN_MSB:
+                    nrpn[channel] = true;
+                    break;
+                case CONTROLLER_RPN_LSB:
+                case CONTROLLER_RPN_MSB:
+                    nrpn[channel] = false;
+                    break;
+                case CONTROLLER_RESET_ALL_CONTROLLERS:
+                    for (int i = 0; i < CONTROLLER_CHANNEL_MODE; i++) {
+                        if (i != CONTROLLER_BANK_SELECT && i != CONTROLLER_BANK_SELECT_LSB && i != CONTROLLER_VOLUME && i != CONTROLLER_PAN) {
+                            controllers[base + i] = -1;
+                        }
+                    }
+                    pitchBends[channel] = -1;
+                    pressures[channel] = -1;
+                    nrpn[channel] = false;
+                    resetAllControllers[channel] = true;
+                    return;
+                default:
+                    break;
+            }
+            if (controller < CONTROLLER_CHANNEL_MODE) {
+                controllers[base + controller] = (byte) value;
+            }
+        }
+    }
+
+    private final List<MidiMessage> sysexMessages = new ArrayList<MidiMessage>();
+    // the cursor the checkpoints have been made with, for checking the tracks have not been edited since
+    private final TrackMergeCursor cursor;
+    private final boolean[] playingTracks;
+    // checkpoints after every INTERVAL played events, with the cursor positions after the event, and the tick of the event
+    private final List<State> checkpoints = new ArrayList<State>();
+    private final List<int[]> checkpointPositions = new ArrayList<int[]>();
+    private long[] checkpointTicks = new long[16];
+
+    /**
+     * Constructor, reads all the events with the cursor
+     *
+     * @param cursor the {@link TrackMergeCursor}, rewound
+     * @param playingTracks the tracks to chase, by the track index
+     * @throws IndexOutOfBoundsException the tracks have been edited while reading
+     */
+    ChaseCheckpoints(@NonNull final TrackMergeCursor cursor, @NonNull final boolean[] playingTracks) {
+        this.cursor = cursor;
+        this.playingTracks = playingTracks.clone();
+        final State state = new State();
+        addCheckpoint(state, cursor, Long.MIN_VALUE);
+
+        cursor.rewind();
+        int count = 0;
+        while (cursor.advance()) {
+            final int trackIndex = cursor.getTrackIndex();
+            if (!isPlaying(trackIndex)) {
+                continue;
+            }
+            final Track track = cursor.getTrack(trackIndex);
+            final int packed = track.getShortMessage(cursor.getEventIndex());
+            if (packed >= 0) {
+                processShortMessage(state, packed);
+            } else {
+                process(state, track.get(cursor.getEventIndex()).getMessage());
+            }
+            count++;
+            if (count % INTERVAL == 0) {
+                addCheckpoint(state, cursor, cursor.getTick());
+            }
+        }
+    }
+
+    private void addCheckpoint(@NonNull final State state, @NonNull final TrackMergeCursor cursor, final long tick) {
+        final State checkpoint = new State();
+        checkpoint.set(state);
+        final int[] positions = new int[cursor.getTrackCount()];
+        cursor.getPositions(positions);
+        final int index = checkpoints.size();
+        if (index == checkpointTicks.length) {
+            final long[] newTicks = new long[index * 2];
+            System.arraycopy(checkpointTicks, 0, newTicks, 0, index);
+            checkpointTicks = newTicks;
+        }
+        checkpoints.add(checkpoint);
+        checkpointPositions.add(positions);
+        checkpointTicks[index] = tick;
+    }
+
+    /**
+     * Check if the events of the track are chased
+     *
+     * @param trackIndex the index of the track, -1 for the END_OF_TRACK of the cursor
+     * @return true if the track is played
+     */
+    private boolean isPlaying(final int trackIndex) {
+        return trackIndex >= 0 && playingTracks[trackIndex];
+    }
+
+    /**
+     * Check if the checkpoints have been made of the same tracks, with the same tracks played, and the tracks have not been edited since
+     *
+     * @param tracks the {@link Track}s of the cursor to seek
+     * @param playingTracks the tracks to chase, by the track index
+     * @return true if the checkpoints can be used
+     */
+    boolean isFor(@NonNull final Track[] tracks, @NonNull final boolean[] playingTracks) {
+        if (tracks.length != cursor.getTrackCount() || !Arrays.equals(this.playingTracks, playingTracks)) {
+            return false;
+        }
+        for (int trackIndex = 0; trackIndex < tracks.length; trackIndex++) {
+            if (tracks[trackIndex] != cursor.getTrack(trackIndex)) {
+                return false;
+            }
+        }
+        return !cursor.isModified();
+    }
+
+    /**
+     * Apply the message to the state
+     *
+     * @param state the {@link State}
+     * @param message the {@link MidiMessage}
+     */
+    private void process(@NonNull final State state, @NonNull final MidiMessage message) {
+        if (message instanceof ShortMessage) {
+            final ShortMessage shortMessage = (ShortMessage) message;
+            processShortMessage(state, shortMessage.getStatus(), shortMessage.getData1(), shortMessage.getData2());
+        } else if (message instanceof SysexMessage) {
+            if (isSystemReset(message.getMessage())) {
+                state.resetChannels();
+                state.sysexStart = sysexMessages.size();
+            }
+            sysexMessages.add(message);
+            state.sysexEnd = sysexMessages.size();
+        } else if (message instanceof MetaMessage) {
+            final MetaMessage metaMessage = (MetaMessage) message;
+            final byte[] data = metaMessage.getData();
+            if (metaMessage.getType() == MetaMessage.TYPE_TEMPO && data.length == 3) {
+                state.tempoMPQ = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Apply the packed short message to the state
+     *
+     * @param state the {@link State}
+     * @param packed the message as got by {@link Track#getShortMessage(int)}
+     */
+    private static void processShortMessage(@NonNull final State state, final int packed) {
+        processShortMessage(state, packed & 0xff, (packed >> 8) & 0xff, (packed >> 16) & 0xff);
+    }
+
+    /**
+     * Apply the short message to the state
+     *
+     * @param state the {@link State}
+     * @param status the status
+     * @param data1 the first data
+     * @param data2 the second data
+     */
+    private static void processShortMessage(@NonNull final State state, final int status, final int data1, final int data2) {
+        final int channel = status & ShortMessage.MASK_CHANNEL;
+        switch (status & ShortMessage.MASK_EVENT) {
+            case ShortMessage.CONTROL_CHANGE:
+                state.controlChange(channel, data1, data2);
+                break;
+            case ShortMessage.PROGRAM_CHANGE:
+                state.programs[channel] = data1;
+                break;
+            case ShortMessage.CHANNEL_PRESSURE:
+                state.pressures[channel] = data1;
+                break;
+            case ShortMessage.PITCH_BEND:
+                state.pitchBends[channel] = data1 | (data2 << 7);
+                break;
+            default:
+                // notes are not chased
+                break;
+        }
+    }
+
+    /**
+     * Check if the system exclusive message resets all the channels: GM System On, GM2 System On, GS Reset or XG System On
+     *
+     * @param data the message
+     * @return true if the message is a system reset
+     */
+    private static boolean isSystemReset(final byte[] data) {
+        if (data == null || data.length < 6 || (data[0] & 0xff) != ShortMessage.START_OF_EXCLUSIVE) {
+            return false;
+        }
+        final int manufacturer = data[1] & 0xff;
+        if (manufacturer == 0x7e) {
+            // universal non-realtime, GM System On or GM2 System On
+            return data[3] == 0x09 && (data[4] == 0x01 || data[4] == 0x03);
+        }
+        if (manufacturer == 0x41 && data.length >= 11) {
+            // Roland GS Reset
+            return data[3] == 0x42 && data[4] == 0x12 && data[5] == 0x40 && data[6] == 0x00 && data[7] == 0x7f && data[8] == 0x00;
+        }
+        if (manufacturer == 0x43 && data.length >= 9) {
+            // Yamaha XG System On
+            return data[3] == 0x4c && data[4] == 0x00 && data[5] == 0x00 && data[6] == 0x7e && data[7] == 0x00;
+        }
+        return false;
+    }
+
+    /**
+     * Get the chase state before the specified tick, and move the cursor to the first event at the tick or after
+     *
+     * @param cursor a {@link TrackMergeCursor} of the tracks the checkpoints have been made of
+     * @param tick the tick
+     * @param state the {@link State} to set
+     */
+    void getState(@NonNull final TrackMergeCursor cursor, final long tick, @NonNull final State state) {
+        // the last checkpoint before the tick
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (checkpointTicks[middle] < tick) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        state.set(checkpoints.get(low));
+        cursor.setPositions(checkpointPositions.get(low));
+
+        while (cursor.peekTick() < tick) {
+            cursor.advance();
+            final int trackIndex = cursor.getTrackIndex();
+            if (!isPlaying(trackIndex)) {
+                continue;
+            }
+            final Track track = cursor.getTrack(trackIndex);
+            final int packed = track.getShortMessage(cursor.getEventIndex());
+            if (packed >= 0) {
+                processShortMessage(state, packed);
+                continue;
+            }
+            final MidiMessage message = track.get(cursor.getEventIndex()).getMessage();
+            if (message instanceof SysexMessage) {
+                // already in the list
+                if (isSystemReset(message.getMessage())) {
+                    state.resetChannels();
+                    state.sysexStart = state.sysexEnd;
+                }
+                state.sysexEnd++;
+            } else {
+                process(state, message);
+            }
+        }
+    }
+
+    /**
+     * Get the messages that set up the chase state: the system exclusive messages,
+     * then for each channel the controllers, program, parameters, pitch bend and channel pressure.
+     *
+     * @param state the {@link State}
+     * @return the messages to send
+     */
+    @NonNull
+    List<MidiMessage> getMessages(@NonNull final State state) {
+        final List<MidiMessage> messages = new ArrayList<MidiMessage>(sysexMessages.subList(state.sysexStart, state.sysexEnd));
+        try {
+            for (int channel = 0; channel < 16; channel++) {
+                final int base = channel * 128;
+                if (state.resetAllControllers[channel]) {
+                    messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CONTROLLER_RESET_ALL_CONTROLLERS, 0));
+                }
+                for (final int controller : new int[]{CONTROLLER_BANK_SELECT, CONTROLLER_BANK_SELECT_LSB}) {
+                    if (state.controllers[base + controller] >= 0) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, state.controllers[base + controller]));
+                    }
+                }
+                if (state.programs[channel] >= 0) {
+                    messages.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, state.programs[channel], 0));
+                }
+                for (int controller = 0; controller < CONTROLLER_CHANNEL_MODE; controller++) {
+                    switch (controller) {
+                        case CONTROLLER_BANK_SELECT:
+                        case CONTROLLER_BANK_SELECT_LSB:
+                        case CONTROLLER_NRPN_LSB:
+                        case CONTROLLER_NRPN_MSB:
+                        case CONTROLLER_RPN_LSB:
+                        case CONTROLLER_RPN_MSB:
+                            continue;
+                        default:
+                            break;
+                    }
+                    if (state.controllers[base + controller] >= 0) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, state.controllers[base + controller]));
+                    }
+                }
+
+                boolean parameterSelected = false;
+                for (final Map.Entry<Integer, Integer> entry : state.parameters.entrySet()) {
+                    final int key = entry.getKey();
+                    if (key >> 16 != channel) {
+                        continue;
+                    }
+                    parameterSelected = true;
+                    final boolean isNrpn = (key & (1 << 14)) != 0;
+                    messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, isNrpn ? CONTROLLER_NRPN_MSB : CONTROLLER_RPN_MSB, (key >> 7) & 0x7f));
+                    messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, isNrpn ? CONTROLLER_NRPN_LSB : CONTROLLER_RPN_LSB, key & 0x7f));
+                    final int value = entry.getValue();
+                    if (value >> 8 >= 0) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CONTROLLER_DATA_ENTRY, value >> 8));
+                    }
+                    if ((byte) value >= 0) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, CONTROLLER_DATA_ENTRY_LSB, (byte) value));
+                    }
+                }
+
+                // select the last selected parameter again, the halves never set are null as after a reset
+                final int[] selection = state.nrpn[channel] ?
+                        new int[]{CONTROLLER_RPN_MSB, CONTROLLER_RPN_LSB, CONTROLLER_NRPN_MSB, CONTROLLER_NRPN_LSB} :
+                        new int[]{CONTROLLER_NRPN_MSB, CONTROLLER_NRPN_LSB, CONTROLLER_RPN_MSB, CONTROLLER_RPN_LSB};
+                for (final int controller : selection) {
+                    if (state.controllers[base + controller] >= 0) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, state.controllers[base + controller]));
+                    } else if (parameterSelected) {
+                        messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, 127));
+                    }
+                }
+
+                if (state.pitchBends[channel] >= 0) {
+                    messages.add(new ShortMessage(ShortMessage.PITCH_BEND, channel, state.pitchBends[channel] & 0x7f, state.pitchBends[channel] >> 7));
+                }
+                if (state.pressures[channel] >= 0) {
+                    messages.add(new ShortMessage(ShortMessage.CHANNEL_PRESSURE, channel, state.pressures[channel], 0));
+                }
+            }
+        } catch (final InvalidMidiDataException ignored) {
+            // the values came from valid messages
+        }
+        return messages;
+    }
+}
@@ -13,9 +13,14 @@ import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import jp.kshoji.javax.sound.midi.ControllerEventListener;
 import jp.kshoji.javax.sound.midi.InvalidMidiDataException;
@@ -29,9 +34,11 @@ import jp.kshoji.javax.sound.midi.Receiver;
 import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.Sequencer;
 import jp.kshoji.javax.sound.midi.ShortMessage;
-import jp.kshoji.javax.sound.midi.SysexMessage;
+import jp.kshoji.javax.sound.midi.ShortMessageReceiver;
+import jp.kshoji.javax.sound.midi.TimestampedReceiver;
 import jp.kshoji.javax.sound.midi.Track;
 import jp.kshoji.javax.sound.midi.Track.TrackUtils;
+import jp.kshoji.javax.sound.midi.TrackMergeCursor;
 import jp.kshoji.javax.sound.midi.Transmitter;
 import jp.kshoji.javax.sound.midi.io.StandardMidiFileReader;
 
@@ -62,9 +69,18 @@ public class SequencerImpl implements Sequencer {
     private final SparseBooleanArray trackMute = new SparseBooleanArray();
     private final SparseBooleanArray trackSolo = new SparseBooleanArray();
     private float tempoInBPM = 120.0f;
+    private volatile long lookahead = 0;
 
     private volatile boolean isRunning = false;
     private volatile boolean isRecording = false;
+    // track mute, solo or record enable changed
+    private volatile boolean needUpdatePlayingTracks = false;
+
+    // the chase checkpoints are made on setSequence, and on this executor when the tracks or the played tracks change, not while playing
+    private volatile ChaseCheckpoints chaseCheckpoints = null;
+    private final Object chaseCheckpointsLock = new Object();
+    @Nullable
+    private ExecutorService chaseCheckpointsExecutor = null;
 
     /**
      * Thread for this Sequencer
@@ -80,11 +96,26 @@ public class SequencerImpl implements Sequencer {
         private Track recordingTrack;
 
         // playing
-        private Track playingTrack = null;
+        private TrackMergeCursor playingCursor = null;
+        private Track[] playingCursorTracks = new Track[0];
+        private boolean[] playingTracks = new boolean[0];
         private long tickPositionSetTime;
         private long runningStoppedTime;
         private boolean needRefreshPlayingTrack = false;
 
+        // seeking
+        private final ChaseCheckpoints.State chaseState = new ChaseCheckpoints.State();
+        private volatile boolean needChase = false;
+        // the number of the events sent at sentTick, they are not sent again when continuing from tickPosition after the tracks have been edited
+        private long sentTick = -1;
+        private int sentCount = 0;
+        private boolean needSkipSentEvents = false;
+
+        // lookahead scheduling
+        private double tickPositionNanoTime;
+        private final Map<Receiver, Long> receiverClockOffsets = new IdentityHashMap<Receiver, Long>();
+        private volatile boolean needResetReceiverClocks = false;
+
         /**
          * Constructor
          */
@@ -111,8 +142,14 @@ public class SequencerImpl implements Sequencer {
          */
         private void setTickPosition(final long tick) {
             tickPosition = tick;
+            needSkipSentEvents = false;
             if (isRunning) {
                 tickPositionSetTime = System.currentTimeMillis();
+                tickPositionNanoTime = System.nanoTime();
+
+                // continue playing from the tick
+                needChase = true;
+                interrupt();
             }
         }
 
@@ -129,6 +166,7 @@ public class SequencerImpl implements Sequencer {
             recordingStartedTime = System.currentTimeMillis();
             recordStartedTick = getTickPosition();
             isRecording = true;
+            needUpdatePlayingTracks = true;
         }
 
         /**
@@ -185,7 +223,11 @@ public class SequencerImpl implements Sequencer {
             }
 
             tickPosition = getLoopStartPoint();
+            needSkipSentEvents = false;
             tickPositionSetTime = System.currentTimeMillis();
+            tickPositionNanoTime = System.nanoTime();
+            needResetReceiverClocks = true;
+            needChase = true;
             isRunning = true;
 
             synchronized (this) {
@@ -251,6 +293,29 @@ public class SequencerImpl implements Sequencer {
             }
         }
 
+        /**
+         * Check if the packed short message is sent to a {@link Receiver} that is not a {@link ShortMessageReceiver}, or to a {@link ControllerEventListener}
+         *
+         * @param packedMessage the message as got by {@link Track#getShortMessage(int)}
+         * @return true if the {@link MidiMessage} of the event is needed
+         */
+        private boolean isMidiMessageNeeded(final int packedMessage) {
+            synchronized (receivers) {
+                // not iterated with an Iterator, called for every event
+                for (int i = 0; i < receivers.size(); i++) {
+                    if (!(receivers.get(i) instanceof ShortMessageReceiver)) {
+                        return true;
+                    }
+                }
+            }
+            if ((packedMessage & ShortMessage.MASK_EVENT) == ShortMessage.CONTROL_CHANGE) {
+                synchronized (controllerEventListenerMap) {
+                    return controllerEventListenerMap.get((packedMessage >> 8) & 0xff) != null;
+                }
+            }
+            return false;
+        }
+
         @Override
         public void run() {
             super.run();
@@ -294,116 +359,154 @@ public class SequencerImpl implements Sequencer {
                     }
                 }
 
-                if (playingTrack == null) {
+                if (playingCursor == null) {
                     if (needRefreshPlayingTrack) {
                         refreshPlayingTrack();
                     }
 
-                    if (playingTrack == null) {
+                    if (playingCursor == null) {
                         continue;
                     }
                 }
 
                 // process looping
-                for (int loop = 0; loop < getLoopCount() + 1; loop = (getLoopCount() == LOOP_CONTINUOUSLY ? loop : loop + 1)) {
+                for (int loop = 0; loop < getLoopCount() + 1; ) {
                     if (needRefreshPlayingTrack) {
                         refreshPlayingTrack();
                     }
 
-                    for (int i = 0; i < playingTrack.size(); i++) {
-                        final MidiEvent midiEvent = playingTrack.get(i);
-                        final MidiMessage midiMessage = midiEvent.getMessage();
-
-                        if (needRefreshPlayingTrack) {
-                            // skip to lastTick
-                            if (midiEvent.getTick() < tickPosition) {
-                                if (midiMessage instanceof MetaMessage) {
-                                    // process tempo change message
-                                    final MetaMessage metaMessage = (MetaMessage) midiMessage;
-                                    if (processTempoChange(metaMessage) == false) {
-                                        // not tempo message, process the event
-                                        synchronized (receivers) {
-                                            for (final Receiver receiver : receivers) {
-                                                receiver.send(midiMessage, 0);
-                                            }
-                                        }
-                                    }
-                                } else if (midiMessage instanceof SysexMessage) {
-                                    // process system messages
-                                    synchronized (receivers) {
-                                        for (final Receiver receiver : receivers) {
-                                            receiver.send(midiMessage, 0);
-                                        }
-                                    }
-                                } else if (midiMessage instanceof ShortMessage) {
-                                    // process control change / program change messages
-                                    final ShortMessage shortMessage = (ShortMessage) midiMessage;
-                                    switch (shortMessage.getCommand()) {
-                                        case ShortMessage.NOTE_ON:
-                                        case ShortMessage.NOTE_OFF:
-                                            break;
-                                        default:
-                                            synchronized (receivers) {
-                                                for (final Receiver receiver : receivers) {
-                                                    receiver.send(midiMessage, 0);
-                                                }
-                                            }
-                                            break;
-                                    }
+                    boolean seeking = false;
+                    int skipCount = 0;
+                    try {
+                        if (needChase) {
+                            needChase = false;
+                            chase(tickPosition);
+                        } else if (needSkipSentEvents) {
+                            // the tracks have been edited, the receivers have the state before tickPosition
+                            playingCursor.seek(tickPosition);
+                        } else {
+                            playingCursor.rewind();
+                        }
+                        if (needSkipSentEvents && sentTick == tickPosition) {
+                            skipCount = sentCount;
+                        }
+                        needSkipSentEvents = false;
+
+                        while (playingCursor.advance()) {
+                            if (needUpdatePlayingTracks) {
+                                updatePlayingTracks();
+                            }
+                            final int trackIndex = playingCursor.getTrackIndex();
+                            if (trackIndex >= 0 && !playingTracks[trackIndex]) {
+                                // muted, not solo, or recording track
+                                continue;
+                            }
+
+                            final long tick = playingCursor.getTick();
+                            // the short messages are read packed, the MidiMessage is got only for the meta and system exclusive messages, or the receivers and listeners needing one
+                            final int packedMessage = trackIndex >= 0 ? playingCursor.getTrack(trackIndex).getShortMessage(playingCursor.getEventIndex()) : -1;
+                            final MidiMessage midiMessage = packedMessage < 0 || isMidiMessageNeeded(packedMessage) ? playingCursor.getEvent().getMessage() : null;
+                            if (playingCursor.isModified()) {
+                                // the event may not be the next one
+                                break;
+                            }
+                            if (skipCount > 0) {
+                                if (tick == sentTick) {
+                                    // sent before the tracks have been edited
+                                    skipCount--;
+                                    continue;
                                 }
+                                skipCount = 0;
+                            }
 
+                            if (tick < getLoopStartPoint() || (getLoopEndPoint() != -1 && tick > getLoopEndPoint())) {
+                                // outer loop
+                                tickPosition = tick;
+                                tickPositionSetTime = System.currentTimeMillis();
+                                // the events before may have been scheduled ahead of now
+                                tickPositionNanoTime = Math.max(tickPositionNanoTime, System.nanoTime());
                                 continue;
-                            } else {
-                                // refresh playingTrack completed
-                                needRefreshPlayingTrack = false;
                             }
-                        }
 
-                        if (midiEvent.getTick() < getLoopStartPoint() || (getLoopEndPoint() != -1 && midiEvent.getTick() > getLoopEndPoint())) {
-                            // outer loop
-                            tickPosition = midiEvent.getTick();
-                            tickPositionSetTime = System.currentTimeMillis();
-                            continue;
-                        }
+                            try {
+                                if (lookahead > 0) {
+                                    scheduleEvent(tick);
+                                } else {
+                                    final long sleepLength = (long) ((1.0f / getTicksPerMicrosecond()) * (tick - tickPosition) / 1000f / getTempoFactor());
+                                    if (sleepLength > 0) {
+                                        sleep(sleepLength);
+                                    }
+                                    tickPosition = tick;
+                                    tickPositionSetTime = System.currentTimeMillis();
+                                    tickPositionNanoTime = System.nanoTime();
+                                }
+                            } catch (final InterruptedException ignored) {
+                                // ignore exception
+                            }
 
-                        try {
-                            final long sleepLength = (long) ((1.0f / getTicksPerMicrosecond()) * (midiEvent.getTick() - tickPosition) / 1000f / getTempoFactor());
-                            if (sleepLength > 0) {
-                                sleep(sleepLength);
+                            if (isRunning == false) {
+                                break;
                             }
-                            tickPosition = midiEvent.getTick();
-                            tickPositionSetTime = System.currentTimeMillis();
-                        } catch (final InterruptedException ignored) {
-                            // ignore exception
-                        }
 
-                        if (isRunning == false) {
-                            break;
-                        }
+                            if (needRefreshPlayingTrack || needChase) {
+                                // continue from tickPosition in this loop
+                                seeking = true;
+                                break;
+                            }
 
-                        if (needRefreshPlayingTrack) {
-                            break;
-                        }
+                            if (tick != sentTick) {
+                                sentTick = tick;
+                                sentCount = 0;
+                            }
+                            sentCount++;
 
-                        // process tempo change message
-                        if (midiMessage instanceof MetaMessage) {
-                            final MetaMessage metaMessage = (MetaMessage) midiMessage;
-                            if (processTempoChange(metaMessage)) {
-                                fireEventListeners(midiMessage);
+                            // process tempo change message
+                            if (midiMessage instanceof MetaMessage) {
+                                final MetaMessage metaMessage = (MetaMessage) midiMessage;
+                                if (processTempoChange(metaMessage)) {
+                                    fireEventListeners(midiMessage);
 
-                                // do not send tempo message to the receivers.
-                                continue;
+                                    // do not send tempo message to the receivers.
+                                    continue;
+                                }
+                            }
+
+                            // send MIDI events
+                            synchronized (receivers) {
+                                for (int i = 0; i < receivers.size(); i++) {
+                                    final Receiver receiver = receivers.get(i);
+                                    if (packedMessage >= 0 && receiver instanceof ShortMessageReceiver) {
+                                        ((ShortMessageReceiver) receiver).send(packedMessage & 0xff, (packedMessage >> 8) & 0xff, (packedMessage >> 16) & 0xff, getTimeStamp(receiver));
+                                    } else {
+                                        receiver.send(midiMessage, getTimeStamp(receiver));
+                                    }
+                                }
                             }
-                        }
 
-                        // send MIDI events
-                        synchronized (receivers) {
-                            for (final Receiver receiver : receivers) {
-                                receiver.send(midiMessage, 0);
+                            if (midiMessage != null) {
+                                fireEventListeners(midiMessage);
                             }
                         }
+                    } catch (final IndexOutOfBoundsException e) {
+                        if (!playingCursor.isModified()) {
+                            throw e;
+                        }
+                        // the events have been removed while reading
+                    }
+
+                    if (playingCursor.isModified()) {
+                        // the tracks have been edited, continue from tickPosition with a new cursor
+                        needRefreshPlayingTrack = true;
+                        needSkipSentEvents = true;
+                        seeking = true;
+                    }
+
+                    if (isRunning == false) {
+                        break;
+                    }
 
-                        fireEventListeners(midiMessage);
+                    if (seeking == false && getLoopCount() != LOOP_CONTINUOUSLY) {
+                        loop++;
                     }
                 }
 
@@ -413,6 +516,92 @@ public class SequencerImpl implements Sequencer {
             }
         }
 
+        /**
+         * Wait until the event at the specified tick is in the lookahead window.
+         * The time of the event is counted from the time of the previous event on the {@link System#nanoTime()} clock,
+         * so the waiting does not add up to drift.
+         *
+         * @param tick the tick of the event
+         * @throws InterruptedException
+         */
+        private void scheduleEvent(final long tick) throws InterruptedException {
+            final double eventNanoTime = tickPositionNanoTime + (tick - tickPosition) * getNanosecondsPerTick();
+            final long window = isTimestampedReceivers() ? lookahead * 1000 : 0;
+            long now = System.nanoTime();
+            if (eventNanoTime - now > window) {
+                // wake up with half of the window left, the events of the next half are sent at once
+                final long wakeUpTime = (long) eventNanoTime - window / 2;
+                while (now < wakeUpTime && isRunning && !needRefreshPlayingTrack && !needChase) {
+                    final long sleepLength = wakeUpTime - now;
+                    sleep(sleepLength / 1000000, (int) (sleepLength % 1000000));
+                    now = System.nanoTime();
+                }
+            }
+
+            tickPosition = tick;
+            tickPositionNanoTime = eventNanoTime;
+            // the event may be sent before its time
+            tickPositionSetTime = System.currentTimeMillis() + (long) ((eventNanoTime - System.nanoTime()) / 1000000);
+        }
+
+        /**
+         * Get the length of a tick on the current tempo and tempo factor
+         *
+         * @return the nanoseconds per tick
+         */
+        private double getNanosecondsPerTick() {
+            final double ticksPerSecond;
+            if (sequence.getDivisionType() == Sequence.PPQ) {
+                ticksPerSecond = (double) tempoInBPM / 60.0 * sequence.getResolution();
+            } else {
+                ticksPerSecond = (double) sequence.getDivisionType() * sequence.getResolution();
+            }
+            return 1000000000.0 / ticksPerSecond / getTempoFactor();
+        }
+
+        /**
+         * Check if all the receivers are {@link TimestampedReceiver}s, the events may only be sent ahead of time then.
+         *
+         * @return true if all the receivers take timeStamps
+         */
+        private boolean isTimestampedReceivers() {
+            synchronized (receivers) {
+                for (final Receiver receiver : receivers) {
+                    if (!(receiver instanceof TimestampedReceiver)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Get the timeStamp of the current event for the specified receiver
+         *
+         * @param receiver the {@link Receiver}
+         * @return the time of the event on the receiver's clock, -1 if the receiver has no clock
+         */
+        private long getTimeStamp(@NonNull final Receiver receiver) {
+            if (lookahead <= 0) {
+                return 0;
+            }
+            if (!(receiver instanceof TimestampedReceiver)) {
+                return -1;
+            }
+
+            if (needResetReceiverClocks) {
+                // the clocks may have drifted apart since the last start
+                needResetReceiverClocks = false;
+                receiverClockOffsets.clear();
+            }
+            Long offset = receiverClockOffsets.get(receiver);
+            if (offset == null) {
+                offset = ((TimestampedReceiver) receiver).getMicrosecondPosition() - System.nanoTime() / 1000;
+                receiverClockOffsets.put(receiver, offset);
+            }
+            return offset + (long) (tickPositionNanoTime / 1000);
+        }
+
         /**
          * Process the tempo change events
          *
@@ -435,20 +624,79 @@ public class SequencerImpl implements Sequencer {
         }
 
         /**
-         * Merge current sequence's track to play
+         * Make the cursor to play the tracks of current sequence
          */
         private void refreshPlayingTrack() {
             if (sequence == null) {
                 return;
             }
 
+            needRefreshPlayingTrack = false;
             final Track[] tracks = sequence.getTracks();
             if (tracks.length > 0) {
-                try {
-                    // at first, merge all track into one track
-                    playingTrack = TrackUtils.mergeSequenceToTrack(SequencerImpl.this, recordEnable);
-                } catch (final InvalidMidiDataException ignored) {
-                    // ignore exception
+                // the tracks are merged while playing
+                playingCursor = new TrackMergeCursor(tracks);
+                playingCursorTracks = tracks;
+                updatePlayingTracks();
+
+                final ChaseCheckpoints checkpoints = chaseCheckpoints;
+                if (checkpoints == null || !checkpoints.isFor(tracks, playingTracks)) {
+                    // the tracks have been edited, made again for the next seek
+                    prepareChaseCheckpoints(tracks);
+                }
+
+                // continue from tickPosition, chased unless the tracks have been edited while playing
+                if (!needSkipSentEvents) {
+                    needChase = true;
+                }
+            }
+        }
+
+        /**
+         * Apply the track mute, solo and record enable to the tracks of the cursor
+         */
+        private void updatePlayingTracks() {
+            needUpdatePlayingTracks = false;
+            final int trackCount = playingCursor.getTrackCount();
+            if (playingTracks.length != trackCount) {
+                playingTracks = new boolean[trackCount];
+            }
+            getPlayingTracks(sequence.getTracks(), playingTracks);
+        }
+
+        /**
+         * Send the chase state at the specified tick in one batch, instead of the events before the tick,
+         * and move the cursor to the first event at the tick or after
+         *
+         * @param tick the tick
+         */
+        private void chase(final long tick) {
+            if (tick <= 0) {
+                // nothing to chase
+                playingCursor.rewind();
+                return;
+            }
+
+            if (needUpdatePlayingTracks) {
+                updatePlayingTracks();
+            }
+            ChaseCheckpoints checkpoints = chaseCheckpoints;
+            if (checkpoints == null || !checkpoints.isFor(playingCursorTracks, playingTracks)) {
+                // seeking before the checkpoints of the tracks played now have been made
+                checkpoints = new ChaseCheckpoints(playingCursor, playingTracks);
+                chaseCheckpoints = checkpoints;
+            }
+            checkpoints.getState(playingCursor, tick, chaseState);
+            if (chaseState.getTempoMPQ() > 0) {
+                setTempoInMPQ(chaseState.getTempoMPQ());
+            }
+
+            final List<MidiMessage> messages = checkpoints.getMessages(chaseState);
+            synchronized (receivers) {
+                for (final MidiMessage message : messages) {
+                    for (final Receiver receiver : receivers) {
+                        receiver.send(message, 0);
+                    }
                 }
             }
         }
@@ -500,6 +748,86 @@ public class SequencerImpl implements Sequencer {
         return new Info("Sequencer", "jp.kshoji", "Android MIDI Sequencer", "0.1");
     }
 
+    /**
+     * Get the tracks played with the track mute, solo and record enable
+     *
+     * @param tracks the {@link Track}s
+     * @param playingTracks the array to set, by the track index
+     */
+    private void getPlayingTracks(@NonNull final Track[] tracks, @NonNull final boolean[] playingTracks) {
+        final int trackCount = playingTracks.length;
+        boolean hasSoloTrack = false;
+        for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+            if (getTrackSolo(trackIndex)) {
+                hasSoloTrack = true;
+                break;
+            }
+        }
+
+        for (int trackIndex = 0; trackIndex < trackCount; trackIndex++) {
+            boolean playing = !getTrackMute(trackIndex) && (!hasSoloTrack || getTrackSolo(trackIndex));
+            if (playing && isRecording && trackIndex < tracks.length) {
+                // currently recording track is not played
+                final Set<Integer> recordEnableChannels = recordEnable.get(tracks[trackIndex]);
+                playing = recordEnableChannels == null || recordEnableChannels.isEmpty();
+            }
+            playingTracks[trackIndex] = playing;
+        }
+    }
+
+    /**
+     * Make the chase checkpoints of the tracks with the tracks played now, unless they have been made
+     *
+     * @param tracks the {@link Track}s
+     */
+    private void makeChaseCheckpoints(@NonNull final Track[] tracks) {
+        synchronized (chaseCheckpointsLock) {
+            final boolean[] playingTracks = new boolean[tracks.length];
+            getPlayingTracks(tracks, playingTracks);
+            final ChaseCheckpoints checkpoints = chaseCheckpoints;
+            if (checkpoints != null && checkpoints.isFor(tracks, playingTracks)) {
+                return;
+            }
+            try {
+                chaseCheckpoints = new ChaseCheckpoints(new TrackMergeCursor(tracks), playingTracks);
+            } catch (final IndexOutOfBoundsException ignored) {
+                // the tracks have been edited while reading, made again when the playing cursor is
+            }
+        }
+    }
+
+    /**
+     * Make the chase checkpoints of the tracks on the executor, while the sequencer is open
+     *
+     * @param tracks the {@link Track}s
+     */
+    private void prepareChaseCheckpoints(@NonNull final Track[] tracks) {
+        final ExecutorService executor = chaseCheckpointsExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    makeChaseCheckpoints(tracks);
+                }
+            });
+        } catch (final RejectedExecutionException ignored) {
+            // closed
+        }
+    }
+
+    /**
+     * Make the chase checkpoints of the current sequence on the executor, after the track mute, solo or record enable changed
+     */
+    private void prepareChaseCheckpoints() {
+        final Sequence sequence = this.sequence;
+        if (sequence != null) {
+            prepareChaseCheckpoints(sequence.getTracks());
+        }
+    }
+
     @Override
     public void open() throws MidiUnavailableException {
         // open devices
@@ -513,6 +841,19 @@ public class SequencerImpl implements Sequencer {
             transmitters.addAll(MidiSystemUtils.getTransmitters());
         }
 
+        if (chaseCheckpointsExecutor == null) {
+            chaseCheckpointsExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "MidiSequencerChase");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        // set before starting the thread, it runs while open
+        isOpen = true;
         if (sequencerThread == null) {
             sequencerThread = new SequencerThread();
             sequencerThread.setName("MidiSequencer_" + sequencerThread.getId());
@@ -523,7 +864,6 @@ public class SequencerImpl implements Sequencer {
             }
         }
 
-        isOpen = true;
         synchronized (sequencerThread) {
             sequencerThread.notifyAll();
         }
@@ -548,6 +888,11 @@ public class SequencerImpl implements Sequencer {
             sequencerThread = null;
         }
 
+        if (chaseCheckpointsExecutor != null) {
+            chaseCheckpointsExecutor.shutdownNow();
+            chaseCheckpointsExecutor = null;
+        }
+
         synchronized (metaEventListeners) {
             metaEventListeners.clear();
         }
@@ -739,12 +1084,18 @@ public class SequencerImpl implements Sequencer {
 
     @Override
     public long getMicrosecondPosition() {
-        return (long) (getTickPosition() / getTicksPerMicrosecond());
+        if (sequence == null) {
+            return 0;
+        }
+        return sequence.getTempoMap().tickToMicrosecond(getTickPosition());
     }
 
     @Override
     public void setMicrosecondPosition(final long microseconds) {
-        setTickPosition((long) (getTicksPerMicrosecond() * microseconds));
+        if (sequence == null) {
+            return;
+        }
+        setTickPosition(sequence.getTempoMap().microsecondToTick(microseconds));
     }
 
     /**
@@ -769,6 +1120,31 @@ public class SequencerImpl implements Sequencer {
         return ticksPerMicrosecond;
     }
 
+    /**
+     * Get the lookahead of the scheduling
+     *
+     * @return the lookahead in microseconds, 0 if disabled
+     */
+    public long getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * Set the lookahead of the scheduling.
+     * When the lookahead is larger than 0 and all the receivers are {@link TimestampedReceiver}s, the events are sent
+     * up to the lookahead ahead of their time, with the timeStamps of their time on the receiver's clock.
+     * Otherwise the events are sent at their time. Either way their time is kept on the {@link System#nanoTime()} clock.
+     * The event listeners are called when the events are sent.
+     *
+     * @param microseconds the lookahead in microseconds, 0 to disable the lookahead scheduling
+     */
+    public void setLookahead(final long microseconds) {
+        if (microseconds < 0) {
+            throw new IllegalArgumentException("Invalid lookahead value:" + microseconds);
+        }
+        lookahead = microseconds;
+    }
+
     @Override
     public long getMicrosecondLength() {
         return sequence.getMicrosecondLength();
@@ -788,6 +1164,13 @@ public class SequencerImpl implements Sequencer {
     public void setSequence(@Nullable final Sequence sequence) throws InvalidMidiDataException {
         this.sequence = sequence;
 
+        if (sequence == null) {
+            chaseCheckpoints = null;
+        } else {
+            // made here, not on the sequencer thread when seeking
+            makeChaseCheckpoints(sequence.getTracks());
+        }
+
         if (sequencerThread != null && sequence != null) {
             sequencerThread.needRefreshPlayingTrack = true;
         }
@@ -867,6 +1250,14 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTickPosition(final long tick) {
         if (sequencerThread != null) {
+            if (sequence != null && sequence.getDivisionType() == Sequence.PPQ) {
+                // the tempo at the new position, without replaying the tempo events before it
+                // the tempo set by the user is kept if no tempo event is before the position
+                final int tempo = sequence.getTempoMap().getTempoEventMPQ(tick);
+                if (tempo > 0) {
+                    setTempoInMPQ(tempo);
+                }
+            }
             sequencerThread.setTickPosition(tick);
         }
     }
@@ -879,6 +1270,8 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTrackMute(final int track, final boolean mute) {
         trackMute.put(track, mute);
+        needUpdatePlayingTracks = true;
+        prepareChaseCheckpoints();
     }
 
     @Override
@@ -889,6 +1282,8 @@ public class SequencerImpl implements Sequencer {
     @Override
     public void setTrackSolo(final int track, final boolean solo) {
         trackSolo.put(track, solo);
+        needUpdatePlayingTracks = true;
+        prepareChaseCheckpoints();
     }
 
     @Override
@@ -903,6 +1298,8 @@ public class SequencerImpl implements Sequencer {
                 recordEnable.put(track, null);
             }
         }
+        needUpdatePlayingTracks = true;
+        prepareChaseCheckpoints();
     }
 
     @Override
@@ -922,6 +1319,8 @@ public class SequencerImpl implements Sequencer {
             trackRecordEnable.add(channel);
             recordEnable.put(track, trackRecordEnable);
         }
+        needUpdatePlayingTracks = true;
+        prepareChaseCheckpoints();
     }
 
     @Override
@@ -18,6 +18,7 @@ import jp.kshoji.javax.sound.midi.MetaMessage;
 import jp.kshoji.javax.sound.midi.MidiEvent;
 import jp.kshoji.javax.sound.midi.MidiFileFormat;
 import jp.kshoji.javax.sound.midi.MidiMessage;
+import jp.kshoji.javax.sound.midi.PackedTrack;
 import jp.kshoji.javax.sound.midi.Sequence;
 import jp.kshoji.javax.sound.midi.ShortMessage;
 import jp.kshoji.javax.sound.midi.SysexMessage;
@@ -176,7 +177,7 @@ public class StandardMidiFileReader extends MidiFileReader {
 	public MidiFileFormat getMidiFileFormat(@NonNull final URL url) throws InvalidMidiDataException, IOException {
 		final InputStream inputStream = url.openStream();
 		try {
-			return getMidiFileFormat(inputStream);
+			return getMidiFileFormatWithLength(inputStream);
 		} finally {
 			inputStream.close();
 		}
@@ -187,15 +188,50 @@ public class StandardMidiFileReader extends MidiFileReader {
 	public MidiFileFormat getMidiFileFormat(@NonNull final File file) throws InvalidMidiDataException, IOException {
 		final InputStream inputStream = new FileInputStream(file);
 		try {
-			return getMidiFileFormat(inputStream);
+			return getMidiFileFormatWithLength(inputStream);
 		} finally {
 			inputStream.close();
 		}
 	}
 
+	/**
+	 * Read the whole MIDI file, to get its length in bytes and its length in microseconds from the tempo map
+	 *
+	 * @param inputStream the source stream
+	 * @return the {@link MidiFileFormat} with the lengths
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	@NonNull
+	private MidiFileFormat getMidiFileFormatWithLength(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
+		final ByteArrayInputStream byteArrayInputStream = convertToByteArrayInputStream(inputStream);
+		final int bytes = byteArrayInputStream.available();
+
+		byteArrayInputStream.mark(0);
+		final ExtendedMidiFileFormat header = (ExtendedMidiFileFormat) getMidiFileFormat(byteArrayInputStream);
+		byteArrayInputStream.reset();
+		final Sequence sequence = getSequence(byteArrayInputStream, true);
+
+		return new ExtendedMidiFileFormat(header.getType(), header.getDivisionType(), header.getResolution(), bytes, sequence.getMicrosecondLength(), header.getNumberTracks());
+	}
+
 	@NonNull
     @Override
 	public Sequence getSequence(@NonNull final InputStream inputStream) throws InvalidMidiDataException, IOException {
+		return getSequence(inputStream, false);
+	}
+
+	/**
+	 * Read the {@link Sequence} from the stream
+	 *
+	 * @param inputStream the source stream
+	 * @param packed true to read the events into {@link PackedTrack}s, for large files
+	 * @return the {@link Sequence}
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
+	@NonNull
+	public Sequence getSequence(@NonNull final InputStream inputStream, final boolean packed) throws InvalidMidiDataException, IOException {
 		final MidiDataInputStream midiDataInputStream = new MidiDataInputStream(convertToByteArrayInputStream(inputStream));
 		
 		try {
@@ -205,7 +241,7 @@ public class StandardMidiFileReader extends MidiFileReader {
 			int numberOfTracks = midiFileFormat.getNumberTracks();
 			
 			while (numberOfTracks-- > 0) {
-				final Track track = sequence.createTrack();
+				final Track track = packed ? sequence.createPackedTrack() : sequence.createTrack();
 				if (midiDataInputStream.readInt() != MidiFileFormat.HEADER_MTrk) {
 					throw new InvalidMidiDataException("Invalid track header");
 				}
@@ -0,0 +1,62 @@
+package cn.sherlock.com.sun.media.sound;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import jp.kshoji.javax.sound.midi.Instrument;
+
+/**
+ * Load time of the soundbank of the sample app, from a File, best of a
+ * number of runs in a warm JVM. The times are printed, the test only fails
+ * if the soundbank does not load.
+ *
+ * The regions of the instruments are built when their performers are
+ * first asked for, so the load is timed with and without getPerformers.
+ */
+public class SF2LoadBenchmarkTest {
+
+    // The soundbank of the sample app, the tests run in the module directory
+    private static final File GM_SF2
+            = new File("../sample/src/main/assets/gm.sf2");
+
+    private static final int WARMUP = 10;
+    private static final int RUNS = 30;
+
+    private static int load(boolean performers) throws Exception {
+        SF2Soundbank soundbank = new SF2Soundbank(GM_SF2);
+        Instrument[] instruments = soundbank.getInstruments();
+        int n = 0;
+        if (performers) {
+            for (Instrument ins : instruments)
+                n += ((ModelInstrument) ins).getPerformers().length;
+        }
+        return instruments.length + n;
+    }
+
+    private static double best(boolean performers) throws Exception {
+        for (int i = 0; i < WARMUP; i++)
+            assertTrue(load(performers) > 0);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            int n = load(performers);
+            best = Math.min(best, System.nanoTime() - start);
+            assertTrue(n > 0);
+        }
+        return best / 1000000.0;
+    }
+
+    @Test
+    public void load() throws Exception {
+        System.out.printf("gm.sf2 load: %.2f ms%n", best(false));
+    }
+
+    @Test
+    public void loadAndGetPerformers() throws Exception {
+        System.out.printf("gm.sf2 load + getPerformers: %.2f ms%n",
+                best(true));
+    }
+}
@@ -0,0 +1,119 @@
+package cn.sherlock.com.sun.media.sound;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import cn.sherlock.javax.sound.sampled.AudioFormat;
+
+/**
+ * Sample compression must lower the memory the samples take: the array of
+ * the soundbank samples is dropped once they are compressed.
+ */
+public class SampleCompressionTest {
+
+    // The soundbank of the sample app, the tests run in the module directory
+    private static final File GM_SF2
+            = new File("../sample/src/main/assets/gm.sf2");
+
+    private static SoftSynthesizer open(boolean compression)
+            throws Exception {
+        SoftSynthesizer synth = new SoftSynthesizer();
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("sample compression", compression);
+        synth.openStream(new AudioFormat(44100, 16, 2, true, false), info);
+        return synth;
+    }
+
+    private static SF2Soundbank readStream() throws Exception {
+        InputStream in = new BufferedInputStream(new FileInputStream(GM_SF2));
+        try {
+            return new SF2Soundbank(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isCollected(WeakReference<?> ref) {
+        for (int i = 0; i < 10 && ref.get() != null; i++) {
+            System.gc();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        return ref.get() == null;
+    }
+
+    @Test
+    public void compressionDropsSampleArray() throws Exception {
+        SF2Soundbank soundbank = readStream();
+        ModelByteBuffer root = soundbank.getSamples()[0].getDataBuffer()
+                .getRoot();
+        WeakReference<byte[]> array = new WeakReference<byte[]>(root.array());
+        long size = root.capacity();
+
+        SoftSynthesizer synth = open(true);
+        try {
+            synth.loadAllInstruments(soundbank);
+            for (SF2Sample sample : soundbank.getSamples())
+                assertTrue(sample.getDataBuffer().isCompressed());
+            assertNull(root.array());
+            assertTrue(isCollected(array));
+            assertTrue(root.getMemorySize() < size);
+        } finally {
+            synth.close();
+        }
+    }
+
+    @Test
+    public void compressedSamplesReadTheSame() throws Exception {
+        SF2Soundbank plain = readStream();
+        SF2Soundbank compressed = readStream();
+        SoftSynthesizer synth = open(true);
+        try {
+            synth.loadAllInstruments(compressed);
+            SF2Sample[] a = plain.getSamples();
+            SF2Sample[] b = compressed.getSamples();
+            for (int i = 0; i < a.length; i++) {
+                ModelByteBuffer x = a[i].getDataBuffer();
+                ModelByteBuffer y = b[i].getDataBuffer();
+                assertEquals(x.capacity(), y.capacity());
+                InputStream xs = x.getInputStream();
+                InputStream ys = y.getInputStream();
+                for (long j = 0; j < x.capacity(); j++)
+                    assertEquals(xs.read(), ys.read());
+            }
+        } finally {
+            synth.close();
+        }
+    }
+
+    @Test
+    public void mappedSamplesAreNotCompressed() throws Exception {
+        SF2Soundbank soundbank = new SF2Soundbank(GM_SF2);
+        SoftSynthesizer synth = open(true);
+        try {
+            synth.loadAllInstruments(soundbank);
+            for (SF2Sample sample : soundbank.getSamples()) {
+                ModelByteBuffer buffer = sample.getDataBuffer();
+                if (buffer.isMapped())
+                    assertFalse(buffer.isCompressed());
+            }
+        } finally {
+            synth.close();
+        }
+    }
+}